@@ -0,0 +1,26 @@
+package com.example;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of QueueService. Every call returns at once, and the future completes
+ * when the operation does, or completes exceptionally with the exception the blocking call would
+ * have thrown.
+ */
+public interface AsyncQueueService {
+  /** push a message onto a queue. */
+  public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody);
+
+  /** retrieves a single message from a queue; the future completes with null if there is none. */
+  public CompletableFuture<Message> pullAsync(String queueUrl);
+
+  /**
+   * retrieves a single message from a queue, waiting up to waitTime for one to become available;
+   * the future completes with null if none arrives in time.
+   */
+  public CompletableFuture<Message> pullAsync(String queueUrl, Duration waitTime);
+
+  /** deletes a message from the queue that was received by pullAsync(). */
+  public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId);
+}
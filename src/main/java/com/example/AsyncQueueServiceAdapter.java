@@ -0,0 +1,47 @@
+package com.example;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Makes any QueueService asynchronous by running its blocking calls on an executor.
+ *
+ * <p>By default every call runs on its own virtual thread when the JVM has them (Java 21+), so
+ * thousands of outstanding calls cost no platform threads. Older JVMs fall back to a cached pool of
+ * daemon threads, which never lets long polls starve other calls but costs a platform thread per
+ * outstanding call. The wrapped service must be thread-safe, as all the bundled ones are.
+ */
+public class AsyncQueueServiceAdapter implements AsyncQueueService {
+  private final QueueService queueService;
+  private final Executor executor;
+
+  public AsyncQueueServiceAdapter(QueueService queueService) {
+    this(queueService, VirtualThreads.newPerTaskExecutor("async-queue-service"));
+  }
+
+  public AsyncQueueServiceAdapter(QueueService queueService, Executor executor) {
+    this.queueService = queueService;
+    this.executor = executor;
+  }
+
+  @Override
+  public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody) {
+    return CompletableFuture.runAsync(() -> queueService.push(queueUrl, messageBody), executor);
+  }
+
+  @Override
+  public CompletableFuture<Message> pullAsync(String queueUrl) {
+    return CompletableFuture.supplyAsync(() -> queueService.pull(queueUrl), executor);
+  }
+
+  @Override
+  public CompletableFuture<Message> pullAsync(String queueUrl, Duration waitTime) {
+    return CompletableFuture.supplyAsync(() -> queueService.pull(queueUrl, waitTime), executor);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+    return CompletableFuture.runAsync(() -> queueService.delete(queueUrl, receiptId), executor);
+  }
+}
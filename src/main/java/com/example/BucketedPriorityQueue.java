@@ -0,0 +1,220 @@
+package com.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * An unbounded priority queue of MessageStore handles for a fixed range of at most 64 priorities.
+ *
+ * <p>Each priority has its own FIFO lane, a LinkedHandleQueue chained through the store, and a bit
+ * per lane in {@code occupied} says which lanes may hold messages, so push and a pull of the
+ * highest priority message are O(1), allocate nothing, and only contend with other threads using
+ * the same lane. Messages of the same priority come out in the order they were pushed.
+ *
+ * <p>A message that has been delivered before, i.e. one put back after its visibility timeout
+ * expired, goes to a separate redelivery lane that is drained before the lane of its priority. It
+ * was at the head of its lane when it was pulled, so it shows up at the head again.
+ *
+ * <p>With priority aging, a pull compares the heads of the occupied lanes by their
+ * {@link PriorityAging} rank instead of taking the highest lane. The head is the oldest message of
+ * its lane, so that is the message with the highest effective priority, found in at most 64 peeks
+ * and without moving any message between lanes.
+ *
+ * <p>A lane's bit is set after a push and only cleared by a consumer that found the lane empty,
+ * which then checks the lane once more so a concurrent push is not lost.
+ */
+class BucketedPriorityQueue implements HandleQueue {
+  /** The largest number of priorities a queue can have, one bit of {@code occupied} each. */
+  static final int MAX_LEVELS = Long.SIZE;
+
+  private final MessageStore store;
+  private final int minPriority;
+  private final int maxPriority;
+  private final long agingMillis;
+  private final LinkedHandleQueue[] lanes;
+  private final LinkedHandleQueue[] redelivered;
+  private final AtomicLong occupied = new AtomicLong();
+  private final LongAdder count = new LongAdder();
+
+  BucketedPriorityQueue(MessageStore store, int minPriority, int maxPriority) {
+    this(store, minPriority, maxPriority, 0);
+  }
+
+  /** Creates a queue whose messages gain a priority level every agingMillis; 0 disables aging. */
+  BucketedPriorityQueue(MessageStore store, int minPriority, int maxPriority, long agingMillis) {
+    checkRange(minPriority, maxPriority);
+    int levels = maxPriority - minPriority + 1;
+
+    this.store = store;
+    this.minPriority = minPriority;
+    this.maxPriority = maxPriority;
+    this.agingMillis = agingMillis;
+    this.lanes = new LinkedHandleQueue[levels];
+    this.redelivered = new LinkedHandleQueue[levels];
+    for (int i = 0; i < levels; i++) {
+      lanes[i] = new LinkedHandleQueue(store);
+      redelivered[i] = new LinkedHandleQueue(store);
+    }
+  }
+
+  /**
+   * Checks that a queue can have the given priority range.
+   *
+   * @throws IllegalArgumentException if it does not cover 1 to MAX_LEVELS priorities.
+   */
+  static void checkRange(int minPriority, int maxPriority) {
+    long levels = (long) maxPriority - minPriority + 1;
+    if (levels < 1 || levels > MAX_LEVELS) {
+      throw new IllegalArgumentException(
+          "Priority range must cover 1 to " + MAX_LEVELS + " priorities: " + minPriority + ".." + maxPriority);
+    }
+  }
+
+  int getMinPriority() {
+    return minPriority;
+  }
+
+  int getMaxPriority() {
+    return maxPriority;
+  }
+
+  long getAgingMillis() {
+    return agingMillis;
+  }
+
+  /**
+   * Adds a message to the lane of its priority.
+   *
+   * @throws IllegalArgumentException if the priority is outside the queue's range.
+   */
+  @Override
+  public boolean offer(long handle) {
+    int level = level(handle);
+
+    (store.attempts(handle) > 0 ? redelivered : lanes)[level].offer(handle);
+    count.increment();
+
+    long bit = 1L << level;
+    if ((occupied.get() & bit) == 0) {
+      occupied.getAndUpdate(bits -> bits | bit);
+    }
+    return true;
+  }
+
+  /**
+   * Removes the oldest message of the highest (effective) priority, or returns NO_HANDLE if the
+   * queue is empty.
+   */
+  @Override
+  public long poll() {
+    for (;;) {
+      long bits = occupied.get();
+      if (bits == 0) {
+        return MessageStore.NO_HANDLE;
+      }
+
+      int level = nextLevel(bits);
+      long handle = redelivered[level].poll();
+      if (handle == MessageStore.NO_HANDLE) {
+        handle = lanes[level].poll();
+      }
+      if (handle != MessageStore.NO_HANDLE) {
+        count.decrement();
+        return handle;
+      }
+      clearIfEmpty(level);
+    }
+  }
+
+  @Override
+  public boolean remove(long handle) {
+    int priority = store.priority(handle);
+    if (priority < minPriority || priority > maxPriority) {
+      return false;
+    }
+
+    int level = priority - minPriority;
+    if (redelivered[level].remove(handle) || lanes[level].remove(handle)) {
+      count.decrement();
+      return true;
+    }
+    return false;
+  }
+
+  /** Passes every handle to action from the highest priority to the lowest, in pull order within each. */
+  @Override
+  public void forEach(LongConsumer action) {
+    for (int level = lanes.length - 1; level >= 0; level--) {
+      redelivered[level].forEach(action);
+      lanes[level].forEach(action);
+    }
+  }
+
+  /** The number of messages queued; only an estimate while other threads are using the queue. */
+  @Override
+  public int size() {
+    return Math.max(0, count.intValue());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    long bits;
+    while ((bits = occupied.get()) != 0) {
+      int level = Long.numberOfTrailingZeros(bits);
+      if (!redelivered[level].isEmpty() || !lanes[level].isEmpty()) {
+        return false;
+      }
+      clearIfEmpty(level); // sets the bit again if a push slipped in, for the next round to see
+    }
+    return true;
+  }
+
+  private int level(long handle) {
+    int priority = store.priority(handle);
+    if (priority < minPriority || priority > maxPriority) {
+      throw new IllegalArgumentException(
+          "Priority " + priority + " is outside the range " + minPriority + ".." + maxPriority);
+    }
+    return priority - minPriority;
+  }
+
+  /** The lane to pull from next: the highest occupied one, or with aging the one whose head ranks highest. */
+  private int nextLevel(long bits) {
+    int highest = MAX_LEVELS - 1 - Long.numberOfLeadingZeros(bits);
+    if (agingMillis <= 0) {
+      return highest;
+    }
+
+    int best = highest;
+    long bestRank = Long.MIN_VALUE;
+    for (long remaining = bits; remaining != 0; remaining &= remaining - 1) {
+      int level = Long.numberOfTrailingZeros(remaining);
+      long head = redelivered[level].peek();
+      if (head == MessageStore.NO_HANDLE) {
+        head = lanes[level].peek();
+      }
+      if (head == MessageStore.NO_HANDLE) {
+        continue; // emptied meanwhile; poll clears the bit if it picks this lane
+      }
+
+      // The head may be pulled and its slot reused meanwhile, which at worst makes poll pick this lane once
+      long timestamp = MessageStore.timestamp(store.arrival(head));
+      long rank = PriorityAging.rank(minPriority + level, timestamp, agingMillis);
+      if (rank >= bestRank) { // levels ascend, so ties go to the higher priority
+        best = level;
+        bestRank = rank;
+      }
+    }
+    return best;
+  }
+
+  /** Clears the bit of a lane found empty, then sets it again if a push slipped in meanwhile. */
+  private void clearIfEmpty(int level) {
+    long bit = 1L << level;
+    occupied.getAndUpdate(bits -> bits & ~bit);
+    if (!redelivered[level].isEmpty() || !lanes[level].isEmpty()) {
+      occupied.getAndUpdate(bits -> bits | bit);
+    }
+  }
+}
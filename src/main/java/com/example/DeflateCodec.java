@@ -0,0 +1,55 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** PayloadCodec.DEFLATE: zlib-wrapped DEFLATE at the fastest level, which suits JSON well. */
+final class DeflateCodec implements PayloadCodec {
+  private static final int BUFFER_SIZE = 8192;
+
+  @Override
+  public char id() {
+    return 'd';
+  }
+
+  @Override
+  public byte[] compress(byte[] body) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(body);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 16);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end(); // Frees the native zlib stream now rather than at finalization
+    }
+  }
+
+  @Override
+  public byte[] decompress(byte[] compressed) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Truncated DEFLATE body");
+        }
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Corrupt DEFLATE body", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
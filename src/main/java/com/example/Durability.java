@@ -0,0 +1,31 @@
+package com.example;
+
+/** When FileQueueService forces the writes to a queue's segment files to disk. */
+public enum Durability {
+  /**
+   * Never: the operating system writes the mapped pages back in its own time, so a crash of the
+   * host, though not of the process, can lose recent writes.
+   */
+  NONE,
+
+  /** Every durability interval, in the background, so a host crash loses at most that much. */
+  INTERVAL,
+
+  /**
+   * Before push returns. Pushes waiting at the same time share one force of the queue's segments
+   * (group commit), so throughput grows with the number of producers while each waits about as
+   * long as one force.
+   */
+  SYNC;
+
+  /** Parses a config value such as "none" or "sync", ignoring case. */
+  static Durability fromConfig(String value) {
+    String normalized = value.trim();
+    for (Durability durability : values()) {
+      if (durability.name().equalsIgnoreCase(normalized)) {
+        return durability;
+      }
+    }
+    throw new IllegalArgumentException("Unknown durability: " + value);
+  }
+}
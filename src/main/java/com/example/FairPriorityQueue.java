@@ -0,0 +1,295 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * An unbounded priority queue of MessageStore handles that shares each priority level fairly
+ * between tenants.
+ *
+ * <p>Priorities are strict: a pull takes from the highest level holding messages. Within a level
+ * every tenant has its own FIFO lane, and the lanes holding messages take turns by deficit round
+ * robin. A lane at the front of the round gets a quantum of its tenant's weight, serves one message
+ * per pull until the quantum is used up or the lane is empty, then goes to the back. Every message
+ * costs the same, so a tenant of weight w gets w pulls for every one of a tenant of weight 1 while
+ * both have a backlog, and a pull is O(1) however many tenants there are.
+ *
+ * <p>A lane is a pair of HandleLists chained through the store, so a queued message costs nothing
+ * beyond its slot. Messages pushed without a tenant share the lane of the default tenant "". A message put back
+ * after its visibility timeout goes to the head of its tenant's lane, like in BucketedPriorityQueue.
+ * Priority aging does not apply: the round robin, not the message age, orders a level.
+ *
+ * <p>Each level is guarded by its own lock, held only for the O(1) step of a push or pull, so
+ * producers and consumers of different priorities do not contend. Only levels holding messages are
+ * kept: a level that runs empty retires under its lock and leaves the map, and a push that finds
+ * its level retired creates a new one, so a pull never looks at more than the levels that emptied
+ * since the last pull. Likewise a tenant is forgotten once it has no backlog and the default weight.
+ */
+class FairPriorityQueue implements HandleQueue {
+  /** The tenant of messages pushed without one. */
+  static final String DEFAULT_TENANT = "";
+
+  /** The weight and backlog of a tenant, shared by its lanes on every level. */
+  private static final class Tenant {
+    volatile int weight = 1;
+    final AtomicInteger backlog = new AtomicInteger();
+  }
+
+  /** The waiting messages of one tenant on one level. Guarded by the level. */
+  private static final class Lane {
+    final String name;
+    final Tenant tenant;
+    final HandleList redelivered;
+    final HandleList messages;
+    int deficit; // Pulls left in the lane's current turn
+
+    Lane(String name, Tenant tenant, MessageStore store) {
+      this.name = name;
+      this.tenant = tenant;
+      this.redelivered = new HandleList(store);
+      this.messages = new HandleList(store);
+    }
+
+    boolean isEmpty() {
+      return redelivered.isEmpty() && messages.isEmpty();
+    }
+
+    long poll() {
+      long handle = redelivered.pollFirst();
+      return handle != MessageStore.NO_HANDLE ? handle : messages.pollFirst();
+    }
+  }
+
+  /** The lanes of one priority; only lanes holding messages exist, in round robin order. */
+  private final class Level {
+    private final int priority;
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final ArrayDeque<Lane> round = new ArrayDeque<>();
+    private boolean retired; // Empty and out of levels; a push must use a new level
+
+    Level(int priority) {
+      this.priority = priority;
+    }
+
+    /** Adds a message, unless the level is retired. */
+    synchronized boolean offer(String name, Tenant tenant, long handle) {
+      if (retired) {
+        return false;
+      }
+      Lane lane = lanes.get(name);
+      if (lane == null) {
+        lane = new Lane(name, tenant, store);
+        lanes.put(name, lane);
+        round.addLast(lane); // Joins at the back of the round
+      }
+      (store.attempts(handle) > 0 ? lane.redelivered : lane.messages).addLast(handle);
+      return true;
+    }
+
+    synchronized long poll() {
+      Lane lane = round.peekFirst();
+      if (lane == null) {
+        retire();
+        return MessageStore.NO_HANDLE;
+      }
+      if (lane.deficit <= 0) {
+        lane.deficit = lane.tenant.weight; // Start of the lane's turn
+      }
+
+      long handle = lane.poll();
+      lane.deficit--;
+      if (lane.isEmpty()) {
+        round.pollFirst(); // An idle tenant saves up no credit
+        lanes.remove(lane.name);
+        if (round.isEmpty()) {
+          retire();
+        }
+      } else if (lane.deficit <= 0) {
+        round.addLast(round.pollFirst());
+      }
+      return handle;
+    }
+
+    /** Takes the empty level out of levels. The caller holds the level's lock. */
+    private void retire() {
+      retired = true;
+      levels.remove(priority, this);
+    }
+
+    synchronized boolean isEmpty() {
+      return round.isEmpty();
+    }
+
+    synchronized boolean remove(String name, long handle) {
+      Lane lane = lanes.get(name);
+      if (lane == null || !(lane.redelivered.remove(handle) || lane.messages.remove(handle))) {
+        return false;
+      }
+      if (lane.isEmpty()) {
+        round.remove(lane);
+        lanes.remove(name);
+        if (round.isEmpty()) {
+          retire();
+        }
+      }
+      return true;
+    }
+
+    /** Passes the messages to action in the order of the current round, each lane's in pull order. */
+    synchronized void forEach(LongConsumer action) {
+      for (Lane lane : round) {
+        lane.redelivered.forEach(action);
+        lane.messages.forEach(action);
+      }
+    }
+  }
+
+  private final MessageStore store;
+  private final ConcurrentSkipListMap<Integer, Level> levels =
+      new ConcurrentSkipListMap<>(Collections.reverseOrder()); // Highest priority first
+  private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+  private final LongAdder count = new LongAdder();
+
+  FairPriorityQueue(MessageStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Sets how many messages a tenant gets per round at each priority level; the default is 1.
+   *
+   * @throws IllegalArgumentException if weight is less than 1.
+   */
+  void setWeight(String tenant, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("Tenant weight must be at least 1: " + weight);
+    }
+    tenants.compute(tenantName(tenant), (name, t) -> {
+      t = t == null ? new Tenant() : t;
+      t.weight = weight;
+      return t.weight == 1 && t.backlog.get() == 0 ? null : t;
+    });
+  }
+
+  int getWeight(String tenant) {
+    Tenant t = tenants.get(tenantName(tenant));
+    return t == null ? 1 : t.weight;
+  }
+
+  /** The number of waiting messages of a tenant across all priorities. */
+  int backlog(String tenant) {
+    Tenant t = tenants.get(tenantName(tenant));
+    return t == null ? 0 : Math.max(0, t.backlog.get());
+  }
+
+  /** The backlog of every tenant that has waiting messages. */
+  Map<String, Integer> backlogs() {
+    Map<String, Integer> backlogs = new HashMap<>();
+    tenants.forEach((name, t) -> {
+      int backlog = t.backlog.get();
+      if (backlog > 0) {
+        backlogs.put(name, backlog);
+      }
+    });
+    return backlogs;
+  }
+
+  @Override
+  public boolean offer(long handle) {
+    if (handle == MessageStore.NO_HANDLE) {
+      throw new IllegalArgumentException("No message to queue");
+    }
+    String name = tenantName(store.tenant(handle));
+    // Counted first, so that the tenant stays in tenants while its lanes hold the message
+    Tenant tenant = tenants.compute(name, (k, t) -> {
+      t = t == null ? new Tenant() : t;
+      t.backlog.incrementAndGet();
+      return t;
+    });
+
+    while (!levels.computeIfAbsent(store.priority(handle), Level::new).offer(name, tenant, handle)) {
+      // Retired meanwhile; the next computeIfAbsent creates a new level
+    }
+    count.increment();
+    return true;
+  }
+
+  /** Removes the next message of the highest priority holding any, or returns NO_HANDLE if the queue is empty. */
+  @Override
+  public long poll() {
+    // Only levels holding messages are in the map; a level found empty retires.
+    for (Level level : levels.values()) {
+      long handle = level.poll();
+      if (handle != MessageStore.NO_HANDLE) {
+        removed(handle);
+        return handle;
+      }
+    }
+    return MessageStore.NO_HANDLE;
+  }
+
+  @Override
+  public boolean remove(long handle) {
+    Level level = levels.get(store.priority(handle));
+    String name = tenantName(store.tenant(handle));
+    if (level != null && level.remove(name, handle)) {
+      removed(handle);
+      return true;
+    }
+    return false;
+  }
+
+  /** The number of messages queued; only an estimate while other threads are using the queue. */
+  @Override
+  public int size() {
+    return Math.max(0, count.intValue());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (Level level : levels.values()) {
+      if (!level.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The number of priority levels kept, which are only those holding messages once pulled. */
+  int levelCount() {
+    return levels.size();
+  }
+
+  /** The number of tenants kept, which are those with a backlog or a weight other than 1. */
+  int tenantCount() {
+    return tenants.size();
+  }
+
+  /**
+   * Passes every handle to action from the highest priority to the lowest, and in round robin
+   * order within each priority, holding the lock of one level at a time.
+   */
+  @Override
+  public void forEach(LongConsumer action) {
+    for (Level level : levels.values()) {
+      level.forEach(action);
+    }
+  }
+
+  /** Uncounts a message taken out, and forgets its tenant if that has nothing left to track. */
+  private void removed(long handle) {
+    tenants.computeIfPresent(tenantName(store.tenant(handle)), (name, t) ->
+        t.backlog.decrementAndGet() <= 0 && t.weight == 1 ? null : t);
+    count.decrement();
+  }
+
+  private static String tenantName(String tenant) {
+    return tenant == null ? DEFAULT_TENANT : tenant;
+  }
+}
@@ -0,0 +1,100 @@
+package com.example;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lock of a file queue, held by one thread on the host at a time: a ReentrantLock orders the
+ * threads of this JVM, and the thread holding it takes an exclusive FileChannel lock on the queue's
+ * lock file against other processes.
+ *
+ * <p>Waiting threads are parked and handed the lock as soon as it is released, instead of polling
+ * for it, and the operating system releases the file lock of a process that dies, so a crash cannot
+ * leave a queue locked. A file lock is held on behalf of the whole JVM, so there is one instance
+ * per lock file, shared by every FileQueueService in the JVM.
+ */
+final class FileQueueLock {
+  private static final ConcurrentHashMap<Path, FileQueueLock> LOCKS = new ConcurrentHashMap<>();
+
+  private final Path file;
+  private final ReentrantLock lock = new ReentrantLock();
+  private FileChannel channel; // Kept open between locks; guarded by lock
+  private FileLock fileLock;
+
+  private FileQueueLock(Path file) {
+    this.file = file;
+  }
+
+  /** The lock of a lock file. */
+  static FileQueueLock of(Path file) {
+    return LOCKS.computeIfAbsent(file.toAbsolutePath().normalize(), FileQueueLock::new);
+  }
+
+  /**
+   * Waits for the lock. A thread holding it may take it again, and must release it as often.
+   *
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   * @throws IOException if the lock file cannot be opened or locked.
+   */
+  void lock() throws InterruptedException, IOException {
+    lock.lockInterruptibly();
+    if (lock.getHoldCount() > 1) {
+      return;
+    }
+
+    try {
+      if (channel == null || !channel.isOpen()) {
+        Files.createDirectories(file.getParent()); // The queue's directory
+        if (Files.isDirectory(file)) {
+          Files.delete(file); // Left behind by the mkdir locking of earlier versions
+        }
+        channel = FileChannel.open(file, CREATE, WRITE);
+      }
+      fileLock = channel.lock();
+    } catch (IOException e) {
+      closeChannel(); // An interrupt has closed it already
+      lock.unlock();
+      if (e instanceof FileLockInterruptionException || e instanceof ClosedByInterruptException) {
+        throw new InterruptedException();
+      }
+      throw e;
+    }
+  }
+
+  /** Releases the lock, and the file lock with its last hold. */
+  void unlock() {
+    try {
+      if (lock.getHoldCount() == 1 && fileLock != null) {
+        try {
+          fileLock.release();
+        } catch (IOException e) {
+          e.printStackTrace();
+          closeChannel(); // Releases the file lock too
+        }
+        fileLock = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+      }
+      channel = null;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.example;
+
+import java.util.Map;
+
+/**
+ * Converts the file queues under the queueDirectory of config.properties from the text format of
+ * earlier versions to the binary one, so that no process pays for the conversion on first use.
+ * Safe to run while processes use the queues, since each queue is converted under its lock.
+ *
+ * <p>Usage: java com.example.FileQueueMigration
+ */
+public final class FileQueueMigration {
+  private FileQueueMigration() {}
+
+  public static void main(String[] args) throws Exception {
+    Map<String, Integer> converted = new FileQueueService().migrateTextFormat();
+    if (converted.isEmpty()) {
+      System.out.println("No queue is in the text format.");
+    }
+    converted.forEach((queue, count) -> System.out.println(queue + ": " + count + " messages converted"));
+  }
+}
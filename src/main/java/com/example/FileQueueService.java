@@ -1,27 +1,50 @@
 package com.example;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-
-import static java.nio.file.StandardCopyOption.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.LongSupplier;
 
 public class FileQueueService implements QueueService {
+  // The most messages compaction moves under one hold of a queue's lock.
+  private static final int COMPACTION_BATCH = 256;
+
+  // Runs the background flushes, compactions and checkpoints of every service.
+  private static final ScheduledExecutorService BACKGROUND =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "file-queue-background");
+            thread.setDaemon(true);
+            return thread;
+          });
+
   private final String queueDir;
 
-  // The character used to separate fields of the record in the message file.
-  // Message ID should never contain this character.
+  // The character that separated the fields of a record in the original text format.
+  // Only used to convert queues still written in it.
   private final String fieldDelimiter;
 
   // Visibility Timeout (in seconds).
@@ -33,7 +56,33 @@ public class FileQueueService implements QueueService {
   // Set it when we want an alternative time to the system time, e.g. when test.
   private LongSupplier timeSupplier;
 
+  // Compression of the bodies this service writes, by queue name.
+  private final Map<String, PayloadCompression> compressions = new ConcurrentHashMap<>();
+
+  // The size (in bytes) of the preallocated, memory-mapped segments of a queue.
+  private long segmentSize;
+
+  // This process's index of each queue's storage, by queue name.
+  private final Map<String, QueueLog> logs = new ConcurrentHashMap<>();
+
+  // When writes to the segment files are forced to disk, and how often (in milliseconds)
+  // with INTERVAL durability.
+  private volatile Durability durability = Durability.NONE;
+  private final long durabilityInterval;
+  private ScheduledFuture<?> flushes; // Guarded by this
+
+  // A sealed segment is compacted once its live messages fill at most this fraction of it.
+  private final double compactionThreshold;
+
   public FileQueueService() {
+    this(null);
+  }
+
+  /**
+   * Creates a service keeping its queues under queueDirectory instead of the configured one, or
+   * under the configured one if queueDirectory is null.
+   */
+  public FileQueueService(String queueDirectory) {
     Properties confInfo = new Properties();
 
     try (InputStream inStream =
@@ -43,162 +92,558 @@ public class FileQueueService implements QueueService {
       e.printStackTrace();
     }
 
-    queueDir = confInfo.getProperty("queueDirectory", "nzhou-qs");
+    queueDir =
+        queueDirectory != null ? queueDirectory : confInfo.getProperty("queueDirectory", "nzhou-qs");
     fieldDelimiter = confInfo.getProperty("fieldDelimiter", ":");
     visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    segmentSize = Long.parseLong(confInfo.getProperty("segmentSize", "64")) << 20;
+    durabilityInterval = Long.parseLong(confInfo.getProperty("durabilityInterval", "1000"));
+    setDurability(Durability.fromConfig(confInfo.getProperty("durability", "none")));
+    compactionThreshold = Double.parseDouble(confInfo.getProperty("compactionThreshold", "0.5"));
+
+    // Intervals in seconds; 0 disables the task.
+    long compactionInterval = Long.parseLong(confInfo.getProperty("compactionInterval", "60"));
+    long checkpointInterval = Long.parseLong(confInfo.getProperty("checkpointInterval", "10"));
+    if (compactionInterval > 0) {
+      schedule(this, FileQueueService::compact, TimeUnit.SECONDS.toMillis(compactionInterval));
+    }
+    if (checkpointInterval > 0) {
+      schedule(this, FileQueueService::checkpoint, TimeUnit.SECONDS.toMillis(checkpointInterval));
+    }
   }
 
-  public void setTimeSupplier(LongSupplier timeSupplier) {
-    this.timeSupplier = timeSupplier;
+  /** Sets the segment size, in bytes, of the queues this service has not used yet. */
+  void setSegmentSize(long segmentSize) {
+    this.segmentSize = segmentSize;
   }
 
-  private void lock(File lock) throws InterruptedException {
-    while (!lock.mkdir()) {
-      Thread.sleep(50);
+  /**
+   * Sets when the writes of this service are forced to disk. With SYNC, a push returns once its
+   * messages are durable; deliveries and deletes are not waited for, but are forced along with the
+   * next push, flush or interval.
+   */
+  public synchronized void setDurability(Durability durability) {
+    if (flushes != null) {
+      flushes.cancel(false);
+      flushes = null;
+    }
+    this.durability = durability;
+    if (durability == Durability.INTERVAL) {
+      flushes = schedule(this, FileQueueService::flush, durabilityInterval);
     }
   }
 
-  private void unlock(File lock) {
-    lock.delete();
+  public Durability getDurability() {
+    return durability;
   }
 
-  @Override
-  public void push(String queueUrl, String messageBody) {
-    String queueName = fromUrl(queueUrl);
-    File messages = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
+  /** Forces the writes this service has made to every queue to disk, whatever the durability. */
+  public void flush() {
+    for (QueueLog log : logs.values()) {
+      try {
+        log.commit().flush();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Compacts the sparse segments of every queue this service uses, moving a bounded batch of
+   * messages at a time so that pushes and pulls only ever wait for one batch. See
+   * QueueLog.compactable.
+   */
+  public void compact() {
+    for (String queueName : logs.keySet()) {
+      while (compactBatch(queueName) > 0) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves a batch of the messages of a sparse segment of a queue to its end, with their attempts
+   * and visibility, and drops the originals.
+   *
+   * @return the number of messages moved.
+   */
+  private int compactBatch(String queueName) {
+    FileQueueLock lock = getLock(queueName);
+    try {
+      lock.lock();
+    } catch (InterruptedException | IOException e) {
+      return 0;
+    }
+
+    QueueLog log = getLog(queueName);
     try {
-      lock(lock);
+      log.refresh();
+      List<QueueLog.Entry> entries = log.compactable(now(), COMPACTION_BATCH, compactionThreshold);
+      List<QueueLog.Record> copies = new ArrayList<>(entries.size());
+      for (QueueLog.Entry entry : entries) {
+        copies.add(log.copyOf(entry));
+      }
+      log.append(copies);
+      if (durability == Durability.SYNC) {
+        log.commit().flush(); // Copies first, so a crash in between duplicates rather than loses
+      }
+      for (QueueLog.Entry entry : entries) {
+        log.ack(entry);
+      }
+      return entries.size();
     } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.invalidate();
+      return 0;
+    } catch (IOException e) {
       e.printStackTrace();
-      unlock(lock);
-      return;
+      log.invalidate();
+      return 0;
+    } finally {
+      lock.unlock();
     }
+  }
 
-    if (Files.notExists(messages.toPath())) {
+  /**
+   * Writes the checkpoint of every queue this service has pulled from, from which a process
+   * starting up resumes instead of walking the whole queue.
+   */
+  public void checkpoint() {
+    for (String queueName : logs.keySet()) {
+      FileQueueLock lock = getLock(queueName);
       try {
-        // Create the empty file with default permissions.
-        Files.createFile(messages.toPath());
-      } catch (IOException e) {
-        // Some sort of failure, such as permissions.
-        System.err.format("createFile error: %s%n", e);
-        unlock(lock);
+        lock.lock();
+      } catch (InterruptedException | IOException e) {
         return;
       }
+
+      QueueLog log = getLog(queueName);
+      try {
+        log.refresh();
+        log.checkpoint();
+      } catch (IOException e) {
+        e.printStackTrace();
+        log.invalidate();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Converts every queue in the queue directory still written in the text format of earlier
+   * versions, rather than leaving it to the first push or pull of each. Messages keep their
+   * attempts and visibility, but the receipt handles of those in flight no longer delete them.
+   *
+   * @return the number of messages converted, by queue name.
+   */
+  public Map<String, Integer> migrateTextFormat() throws IOException, InterruptedException {
+    Map<String, Integer> converted = new TreeMap<>();
+    if (!Files.isDirectory(Paths.get(queueDir))) {
+      return converted;
     }
 
-    try (PrintWriter pw = new PrintWriter(new FileWriter(messages, true))) { // append
-      pw.println(createRecord(0, messageBody));
-    } catch (IOException e) {
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(queueDir), Files::isDirectory)) {
+      for (Path dir : dirs) {
+        String queueName = dir.getFileName().toString();
+        FileQueueLock lock = getLock(queueName);
+        lock.lock();
+        try {
+          int count = getLog(queueName).migrate();
+          if (count >= 0) {
+            converted.put(queueName, count);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    return converted;
+  }
+
+  /**
+   * Runs a task on a service every interval, until the service is garbage collected; the task only
+   * holds it weakly, so that a service nobody uses any more does not keep its mappings alive.
+   */
+  private static ScheduledFuture<?> schedule(
+      FileQueueService service, Consumer<FileQueueService> action, long interval) {
+    WeakReference<FileQueueService> ref = new WeakReference<>(service);
+    AtomicReference<ScheduledFuture<?>> task = new AtomicReference<>();
+    task.set(
+        BACKGROUND.scheduleWithFixedDelay(
+            () -> {
+              FileQueueService s = ref.get();
+              if (s != null) {
+                action.accept(s);
+              } else {
+                task.get().cancel(false);
+              }
+            },
+            interval,
+            interval,
+            TimeUnit.MILLISECONDS));
+    return task.get();
+  }
+
+  public void setTimeSupplier(LongSupplier timeSupplier) {
+    this.timeSupplier = timeSupplier;
+  }
+
+  @Override
+  public void push(String queueUrl, String messageBody) {
+    pushBatch(queueUrl, Collections.singletonList(messageBody));
+  }
+
+  /** Pushes a binary message, whose raw bytes are written to a record marked as binary. */
+  @Override
+  public void push(String queueUrl, ByteBuffer messageBody) {
+    Message msg = new Message((String) null);
+    msg.setBodyBuffer(messageBody.slice());
+    appendOrFail(fromUrl(queueUrl), Collections.singletonList(msg), 0);
+  }
+
+  /** Pushes a message that becomes visible after delay. */
+  public void push(String queueUrl, String messageBody, Duration delay) {
+    push(queueUrl, messageBody, Instant.ofEpochMilli(now()).plus(delay));
+  }
+
+  /**
+   * Pushes a message that becomes visible at deliverAt. The record is written with its visibility
+   * already set, so pulls in every process skip it until then, as they skip in-flight messages.
+   */
+  public void push(String queueUrl, String messageBody, Instant deliverAt) {
+    appendOrFail(
+        fromUrl(queueUrl),
+        Collections.singletonList(new Message(messageBody)),
+        deliverAt.toEpochMilli() - 1);
+  }
+
+  /** Appends all the messages to the queue with a single write under a single lock. */
+  @Override
+  public void pushBatch(String queueUrl, List<String> messageBodies) {
+    List<Message> messages = new ArrayList<>(messageBodies.size());
+    for (String messageBody : messageBodies) {
+      messages.add(new Message(messageBody));
+    }
+    appendOrFail(fromUrl(queueUrl), messages, 0);
+  }
+
+  /**
+   * Appends new messages for a push, which must not return unless they were written, and with SYNC
+   * durability made durable.
+   *
+   * @throws IllegalStateException if they were not; the cause was printed where it happened.
+   */
+  private void appendOrFail(String queueName, List<Message> messages, long visibleFrom) {
+    if (!append(queueName, messages, visibleFrom)) {
+      throw new IllegalStateException(
+          durability == Durability.SYNC
+              ? "The messages may not be durable in queue " + queueName
+              : "The messages were not written to queue " + queueName);
+    }
+  }
+
+  /**
+   * Appends new messages to a queue under its lock.
+   *
+   * @return true if the messages were written.
+   */
+  private boolean append(String queueName, List<Message> messages) {
+    return append(queueName, messages, 0);
+  }
+
+  /**
+   * Appends new messages, visible after visibleFrom, to a queue under its lock, and with SYNC
+   * durability waits for them to be durable once the lock is released.
+   *
+   * @return true if the messages were written, and made durable if required.
+   */
+  private boolean append(String queueName, List<Message> messages, long visibleFrom) {
+    FileQueueLock lock = getLock(queueName);
+    try {
+      lock.lock();
+    } catch (InterruptedException | IOException e) {
       e.printStackTrace();
+      return false;
+    }
+
+    long write;
+    try {
+      if (!appendRecords(queueName, messages, visibleFrom)) {
+        return false;
+      }
+      write = getLog(queueName).commit().written();
     } finally {
-      unlock(lock);
+      lock.unlock();
     }
+    return durability != Durability.SYNC || awaitDurable(queueName, write);
   }
 
-  @Override
-  public Message pull(String queueUrl) {
-    Message msg = null;
+  /**
+   * Waits until a write to a queue is durable, forced either by this thread or together with the
+   * writes of others. Best called without the queue's lock, so that other writers can join the group.
+   *
+   * @return true if the write is durable.
+   */
+  private boolean awaitDurable(String queueName, long write) {
+    try {
+      getLog(queueName).commit().await(write);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /** Appends new messages to a queue. The caller must hold the queue's lock. */
+  private boolean appendRecords(String queueName, List<Message> messages) {
+    return appendRecords(queueName, messages, 0);
+  }
+
+  /**
+   * Appends new messages, visible after visibleFrom, to a queue's active segment. The caller must
+   * hold the queue's lock.
+   */
+  private boolean appendRecords(String queueName, List<Message> messages, long visibleFrom) {
+    PayloadCompression compression = compressions.get(queueName);
+    List<QueueLog.Record> records = new ArrayList<>(messages.size());
+    for (Message msg : messages) {
+      records.add(createRecord(visibleFrom, msg, compression));
+    }
+
+    QueueLog log = getLog(queueName);
+    try {
+      log.refresh();
+      log.append(records);
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      log.invalidate();
+      return false;
+    }
+  }
+
+  /**
+   * Compresses the bodies of at least the threshold that this service writes to a queue from now
+   * on, or stops compressing if compression is null.
+   *
+   * <p>Each record says whether and how its body is compressed, so records of either kind can be
+   * mixed in a queue, and any process can read them; only the processes writing to the queue need
+   * the setting.
+   */
+  public void setCompression(String queueUrl, PayloadCompression compression) {
+    if (compression == null) {
+      compressions.remove(fromUrl(queueUrl));
+    } else {
+      compressions.put(fromUrl(queueUrl), compression);
+    }
+  }
+
+  /**
+   * Sets the redrive policy of a queue, or removes it if policy is null. The policy is stored in
+   * the queue directory, so every process using the queue applies it. A message received
+   * maxReceiveCount times is moved to the dead-letter queue by the next pull that comes across it.
+   * Dead-letter queues must not form a cycle, since a pull holds both queues' locks while moving.
+   */
+  public void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
     String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
+    if (policy != null && fromUrl(policy.getDeadLetterQueueUrl()).equals(queueName)) {
+      throw new IllegalArgumentException("A queue cannot be its own dead-letter queue: " + queueUrl);
+    }
 
+    FileQueueLock lock = getLock(queueName);
     try {
-      lock(lock);
-    } catch (InterruptedException e2) {
-      unlock(lock);
-      return null;
+      lock.lock();
+    } catch (InterruptedException | IOException e) {
+      e.printStackTrace();
+      return;
     }
 
-    // create a temporary file
-    Path queuePath = Paths.get(queueDir);
-    Path tempFile;
+    Path policyFile = getRedrivePolicyFile(queueName);
     try {
-      tempFile = Files.createTempFile(queuePath, null, ".msg");
-    } catch (IOException e1) {
-      unlock(lock);
-      return null;
+      if (policy == null) {
+        Files.deleteIfExists(policyFile);
+      } else {
+        Properties props = new Properties();
+        props.setProperty("maxReceiveCount", Integer.toString(policy.getMaxReceiveCount()));
+        props.setProperty("deadLetterQueueUrl", policy.getDeadLetterQueueUrl());
+        try (OutputStream out = Files.newOutputStream(policyFile)) {
+          props.store(out, null);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      lock.unlock();
     }
+  }
+
+  /**
+   * Moves the visible messages of a dead-letter queue back to queueUrl as new messages, with their
+   * receive count reset.
+   *
+   * @return the number of messages moved.
+   */
+  public int redriveDeadLetters(String deadLetterQueueUrl, String queueUrl) {
+    String queueName = fromUrl(queueUrl);
+    String deadLetterQueueName = fromUrl(deadLetterQueueUrl);
+    FileQueueLock lock = getLock(queueName);
+    FileQueueLock deadLetterLock = getLock(deadLetterQueueName);
 
-    try (BufferedReader reader = new BufferedReader(new FileReader(messageFile));
-        PrintWriter pwTemp = new PrintWriter(new FileWriter(tempFile.toFile(), true))) {
-      String msgLine = null;
+    // Take the locks in the same order as pull does when it dead-letters a message.
+    try {
+      lock.lock();
+    } catch (InterruptedException | IOException e) {
+      return 0;
+    }
+    try {
+      deadLetterLock.lock();
+    } catch (InterruptedException | IOException e) {
+      lock.unlock();
+      return 0;
+    }
 
-      while ((msgLine = reader.readLine()) != null) {
-        if (msg == null) {
-          msg = getVisibleMessage(msgLine);
+    QueueLog deadLetterLog = getLog(deadLetterQueueName);
+    try {
+      long now = now();
+      deadLetterLog.refresh();
+      List<Message> bodies = new ArrayList<>();
+      List<QueueLog.Entry> entries = new ArrayList<>();
+      for (QueueLog.Entry entry; (entry = deadLetterLog.next(now)) != null; ) {
+        bodies.add(toMessage(entry, null));
+        entries.add(entry);
+      }
 
-          if (msg == null) {
-            pwTemp.println(msgLine);
-          } else {
-            pwTemp.println(getDeliveredRecord(msgLine, msg.getReceiptId()));
-          }
-        } else {
-          pwTemp.println(msgLine);
-        }
+      // Only drop the messages from the dead-letter queue once they are in the queue.
+      if (bodies.isEmpty()
+          || !appendRecords(queueName, bodies)
+          || (durability == Durability.SYNC
+              && !awaitDurable(queueName, getLog(queueName).commit().written()))) {
+        deadLetterLog.invalidate();
+        return 0;
+      }
+      for (QueueLog.Entry entry : entries) {
+        deadLetterLog.ack(entry);
       }
+      return bodies.size();
     } catch (IOException e) {
       e.printStackTrace();
+      deadLetterLog.invalidate();
+      return 0;
     } finally {
-      try { // if msg has been set then update the queue file
-        if (msg != null) {
-          Files.move(tempFile, messageFile.toPath(), REPLACE_EXISTING);
+      deadLetterLock.unlock();
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Message pull(String queueUrl) {
+    List<Message> msgs = pullBatch(queueUrl, 1);
+    return msgs.isEmpty() ? null : msgs.get(0);
+  }
+
+  /**
+   * Delivers up to maxMessages visible messages, oldest first, updating the headers of their
+   * records in place. Binary bodies are returned as views of the memory-mapped segment.
+   */
+  @Override
+  public List<Message> pullBatch(String queueUrl, int maxMessages) {
+    List<Message> msgs = new ArrayList<>();
+    String queueName = fromUrl(queueUrl);
+    FileQueueLock lock = getLock(queueName);
+
+    try {
+      lock.lock();
+    } catch (InterruptedException | IOException e2) {
+      return msgs;
+    }
+
+    RedrivePolicy policy = readRedrivePolicy(queueName);
+    List<Message> deadLetters = new ArrayList<>();
+    List<QueueLog.Entry> deadEntries = new ArrayList<>();
+    QueueLog log = getLog(queueName);
+
+    try {
+      long now = now();
+      long visibleFrom = now + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+      log.refresh();
+
+      for (QueueLog.Entry entry; msgs.size() < maxMessages && (entry = log.next(now)) != null; ) {
+        int attempts = entry.attempts();
+        if (policy != null && policy.isExhausted(attempts)) {
+          deadLetters.add(toMessage(entry, null));
+          deadEntries.add(entry);
         } else {
-          Files.delete(tempFile);
+          // The message's offset and delivery make the handle unique, across processes too.
+          String receiptId = ReceiptHandle.encode(ReceiptHandle.NODE_ID, entry.offset, attempts + 1);
+          msgs.add(toMessage(entry, receiptId));
+          log.deliver(entry, visibleFrom, ReceiptHandle.NODE_ID);
         }
-      } catch (IOException x) {
       }
 
-      unlock(lock);
+      // Add dead letters to their queue before dropping them from this one, so a crash in between
+      // duplicates them rather than losing them. If that fails they stay, and the next pull that
+      // comes across them tries again.
+      if (!deadLetters.isEmpty() && !append(fromUrl(policy.getDeadLetterQueueUrl()), deadLetters)) {
+        log.invalidate();
+        return msgs;
+      }
+      for (QueueLog.Entry entry : deadEntries) {
+        log.ack(entry);
+      }
+      return msgs;
+    } catch (IOException e) {
+      e.printStackTrace();
+      log.invalidate();
+      return new ArrayList<>();
+    } finally {
+      lock.unlock();
     }
-
-    return msg;
   }
 
   @Override
   public void delete(String queueUrl, String receiptId) {
+    deleteBatch(queueUrl, Collections.singletonList(receiptId));
+  }
+
+  /**
+   * Deletes the messages whose receipt handles are from their latest delivery and whose visibility
+   * timeout has not expired, marking their records acked in place.
+   */
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
     String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
-    Path tempFile;
+    FileQueueLock lock = getLock(queueName);
 
     try {
-      lock(lock);
-
-      // create a temporary file
-      Path queuePath = Paths.get(queueDir);
-      tempFile = Files.createTempFile(queuePath, null, ".msg");
+      lock.lock();
     } catch (InterruptedException | IOException e) {
-      unlock(lock);
       return;
     }
 
-    boolean processed = false;
-
-    try (BufferedReader reader = new BufferedReader(new FileReader(messageFile));
-        PrintWriter writer = new PrintWriter(new FileWriter(tempFile.toFile(), true))) {
-      String msgLine = null;
-      while ((msgLine = reader.readLine()) != null) {
-        if (isToDelete(msgLine, receiptId)) {
-          processed = true;
-        } else {
-          writer.println(msgLine);
+    QueueLog log = getLog(queueName);
+    try {
+      long now = now();
+      log.refresh();
+      for (String receiptId : new HashSet<>(receiptIds)) {
+        ReceiptHandle handle = ReceiptHandle.parse(receiptId);
+        if (handle != null) {
+          log.ack(handle, now);
         }
       }
     } catch (IOException e) {
       e.printStackTrace();
+      log.invalidate();
     } finally {
-      try { // if processed then update the queue file
-        if (processed) {
-          Files.move(tempFile, messageFile.toPath(), REPLACE_EXISTING);
-        } else {
-          Files.delete(tempFile);
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-
-      unlock(lock);
+      lock.unlock();
     }
   }
 
@@ -209,31 +654,35 @@ public class FileQueueService implements QueueService {
    */
   protected void purgeQueue(String queueUrl) {
     String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
+    FileQueueLock lock = getLock(queueName);
 
     try {
-      lock(lock);
-    } catch (InterruptedException e) {
+      lock.lock();
+    } catch (InterruptedException | IOException e) {
       e.printStackTrace();
-      unlock(lock);
       return;
     }
 
-    if (Files.exists(messageFile.toPath())) {
-      try {
-        Files.delete(messageFile.toPath());
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
+    QueueLog log = getLog(queueName);
     try {
-      // Create the empty file with default permissions.
-      Files.createFile(messageFile.toPath());
+      log.refresh();
+      log.purge();
     } catch (IOException e) {
+      e.printStackTrace();
+      log.invalidate();
+    } finally {
+      lock.unlock();
     }
+  }
+
+  /** The number of writes of this service to a queue that are not durable yet. */
+  long getPendingWrites(String queueUrl) {
+    return getLog(fromUrl(queueUrl)).commit().pending();
+  }
 
-    unlock(lock);
+  /** The number of segment files of a queue, as far as this process knows. */
+  int getSegmentCount(String queueUrl) {
+    return getLog(fromUrl(queueUrl)).segmentCount();
   }
 
   /**
@@ -258,110 +707,90 @@ public class FileQueueService implements QueueService {
     }
   }
 
-  /** Get File for the queue */
-  private File getMessagesFile(String queueName) {
-    Path path = Paths.get(queueDir, queueName, "messages");
-    return path.toFile();
+  /** Get the storage of the queue. */
+  private QueueLog getLog(String queueName) {
+    return logs.computeIfAbsent(
+        queueName, name -> new QueueLog(Paths.get(queueDir, name), fieldDelimiter, segmentSize));
   }
 
-  /**
-   * Get the lock file for the queue, and also make sure the directory for the queue exists.
-   *
-   * @param queueName
-   * @return
-   */
-  private File getLockFile(String queueName) {
-    Path queueFolder = Paths.get(queueDir, queueName);
-
-    if (Files.notExists(queueFolder)) {
-      // Create the folder with default permissions, etc.
-      try {
-        Files.createDirectories(queueFolder);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-
-    Path path = Paths.get(queueDir, queueName, ".lock");
-    return path.toFile();
-  }
-
-  //
-  // Message record helper functions.
-  // Record format:
-  //		<prior attempts>delimiter<visible from time>delimiter<receipt id>delimiter<message body>
-  //            0													1													2										3
-  //
-
-  private String createRecord(long visibleFrom, String message) {
-    return "0" + fieldDelimiter + visibleFrom + fieldDelimiter + fieldDelimiter + message;
+  /** Get the file holding the redrive policy of the queue. */
+  private Path getRedrivePolicyFile(String queueName) {
+    return Paths.get(queueDir, queueName, "redrive-policy");
   }
 
   /**
-   * If the record represent a visible message then construct a message from the record.
+   * Read the redrive policy of the queue. The caller must hold the queue's lock.
    *
-   * @return A message; null if the record does not represent a visible message.
+   * @return the policy; null if the queue has none.
    */
-  private Message getVisibleMessage(String record) {
-    if (record == null || record == "") {
+  private RedrivePolicy readRedrivePolicy(String queueName) {
+    Path policyFile = getRedrivePolicyFile(queueName);
+    if (Files.notExists(policyFile)) {
       return null;
     }
 
-    String[] fields = record.split(fieldDelimiter, 4);
-
-    if (Long.parseLong(fields[1]) < now()) {
-      Message msg = new Message(fields[3], UUID.randomUUID().toString());
-
-      return msg;
-    } else {
+    Properties props = new Properties();
+    try (InputStream in = Files.newInputStream(policyFile)) {
+      props.load(in);
+      return new RedrivePolicy(
+          Integer.parseInt(props.getProperty("maxReceiveCount")),
+          props.getProperty("deadLetterQueueUrl"));
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
       return null;
     }
   }
 
   /**
-   * Update the message record after delivery. This will increase attempts by 1, set visibleFrom to
-   * visibility timeout from now, update receipt id specified parameter receiptId.
+   * Get the lock of the queue, which creates the directory for the queue when it is first taken.
    *
-   * @param
+   * @param queueName
    * @return
    */
-  private String getDeliveredRecord(String record, String receiptId) {
-    String[] fields = record.split(fieldDelimiter, 4);
-    if (fields.length < 4) {
-      return record;
-    }
-
-    int attempts = Integer.parseInt(fields[0]) + 1;
-    long visibleFrom = now() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
-
-    return attempts
-        + fieldDelimiter
-        + visibleFrom
-        + fieldDelimiter
-        + receiptId
-        + fieldDelimiter
-        + fields[3];
+  private FileQueueLock getLock(String queueName) {
+    return FileQueueLock.of(Paths.get(queueDir, queueName, ".lock"));
   }
 
   /**
-   * Determine whether the record should be deleted.
-   *
-   * @param record
-   * @param receiptId
-   * @return true if the record's receiptId matches the receiptId specified by parameter receiptId
-   *     and the record is invisible; false otherwise.
+   * The record of a new message. The body is compressed if the queue has compression and that
+   * makes it shorter; a binary body is written as is, without copying it first.
    */
-  private boolean isToDelete(String record, String receiptId) {
-    String[] fields = record.split(fieldDelimiter, 4);
-    if (fields.length < 4) {
-      return true;
+  private static QueueLog.Record createRecord(
+      long visibleFrom, Message message, PayloadCompression compression) {
+    ByteBuffer body =
+        message.isBinaryBody()
+            ? message.getBodyBuffer()
+            : ByteBuffer.wrap(message.getBody().getBytes(StandardCharsets.UTF_8));
+    int flags = message.isBinaryBody() ? QueueLog.BINARY : 0;
+    if (compression != null) {
+      byte[] raw = new byte[body.remaining()];
+      body.duplicate().get(raw);
+      byte[] compressed = compression.compress(raw);
+      if (compressed != null) {
+        return new QueueLog.Record(
+            ByteBuffer.wrap(compressed), flags, compression.getCodec().id(), visibleFrom);
+      }
     }
+    return new QueueLog.Record(body, flags, (char) 0, visibleFrom);
+  }
 
-    if (Long.parseLong(fields[1]) >= now() && fields[2].equals(receiptId)) {
-      return true;
+  /**
+   * Constructs the message a record holds, delivered with receiptId. A binary body is a read-only
+   * view of the mapped record unless it was compressed.
+   */
+  private static Message toMessage(QueueLog.Entry entry, String receiptId) {
+    ByteBuffer body = entry.body();
+    if (entry.codec() != 0) {
+      byte[] bytes = new byte[body.remaining()];
+      body.get(bytes);
+      body = ByteBuffer.wrap(PayloadCompression.decompress(entry.codec(), bytes));
     }
-
-    return false;
+    if (!entry.isBinary()) {
+      return new Message(StandardCharsets.UTF_8.decode(body).toString(), receiptId);
+    }
+    Message msg = new Message(null, receiptId);
+    msg.setBodyBuffer(body);
+    return msg;
   }
 
   long now() {
@@ -0,0 +1,133 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Makes the writes to the mapped segments of one queue durable, forcing the segments of many
+ * writes at once.
+ *
+ * <p>Every write is numbered and marks its segment dirty. A thread waiting for its write to be
+ * durable either becomes the leader, which forces every dirty segment and so every write made so
+ * far, or waits for the force in progress; writes made while a force runs are covered by the next
+ * leader's. Creating or deleting a segment file marks the queue's directory dirty instead, and the
+ * leader forces it after the segments, so that a crash cannot lose a segment its writes went to. However many threads push at once, a queue has at most one force in progress, and
+ * each force commits the whole group of writes waiting for it.
+ *
+ * <p>Thread-safe, unlike QueueLog: writes are numbered under the queue's lock, but threads wait
+ * for them without it, so that other writers can join the group meanwhile.
+ */
+final class GroupCommit {
+  // Windows cannot open a directory as a file, nor needs to: it records file creation with the file.
+  private static final boolean FORCE_DIRECTORY =
+      !System.getProperty("os.name", "").startsWith("Windows");
+
+  private final Path directory;
+  private Set<MappedByteBuffer> dirty = newSegmentSet();
+  private boolean directoryDirty;
+  private long written; // Number of the latest write
+  private long durable; // Number of the latest write forced
+  private boolean forcing;
+  private long forces;
+
+  GroupCommit(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Records a write to a segment, and returns its number. */
+  synchronized long write(MappedByteBuffer segment) {
+    dirty.add(segment);
+    return ++written;
+  }
+
+  /** Records the creation or deletion of a segment file, and returns its number. */
+  synchronized long writeDirectory() {
+    directoryDirty = FORCE_DIRECTORY;
+    return ++written;
+  }
+
+  /** The number of the latest write. */
+  synchronized long written() {
+    return written;
+  }
+
+  /**
+   * Waits until a write is durable, forcing it along with all the other writes waiting if no force
+   * covering it is in progress.
+   *
+   * @throws InterruptedException if the thread is interrupted while waiting for another force.
+   * @throws IOException if the force fails; its segments stay dirty, for the next force to retry.
+   */
+  void await(long write) throws InterruptedException, IOException {
+    Set<MappedByteBuffer> segments;
+    boolean forceDirectory;
+    long group;
+    synchronized (this) {
+      while (forcing && durable < write) {
+        wait();
+      }
+      if (durable >= write) {
+        return;
+      }
+      forcing = true;
+      segments = dirty;
+      dirty = newSegmentSet();
+      forceDirectory = directoryDirty;
+      directoryDirty = false;
+      group = written;
+    }
+
+    boolean forced = false;
+    try {
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+      if (forceDirectory) {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+          dir.force(true);
+        }
+      }
+      forced = true;
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      synchronized (this) {
+        forcing = false;
+        if (forced) {
+          durable = group;
+          forces++;
+        } else {
+          dirty.addAll(segments);
+          directoryDirty |= forceDirectory;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /** Forces every write made so far. */
+  void flush() throws InterruptedException, IOException {
+    await(written());
+  }
+
+  /** The number of writes not forced yet. */
+  synchronized long pending() {
+    return written - durable;
+  }
+
+  /** The number of forces so far, each of which committed a group of writes. */
+  synchronized long forces() {
+    return forces;
+  }
+
+  private static Set<MappedByteBuffer> newSegmentSet() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+}
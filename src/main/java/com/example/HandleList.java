@@ -0,0 +1,87 @@
+package com.example;
+
+import java.util.function.LongConsumer;
+
+/**
+ * A FIFO list of MessageStore handles linked through the store's {@code next} field, so that it
+ * allocates nothing per message, unlike an ArrayDeque or ConcurrentLinkedQueue of Messages. A
+ * handle can only be in one list at a time.
+ *
+ * <p>Not thread-safe: the engines use it under the lock of whatever holds the list, see
+ * LinkedHandleQueue.
+ */
+final class HandleList {
+  private final MessageStore store;
+  private long head = MessageStore.NO_HANDLE;
+  private long tail = MessageStore.NO_HANDLE;
+  private int size;
+
+  HandleList(MessageStore store) {
+    this.store = store;
+  }
+
+  void addLast(long handle) {
+    store.setNext(handle, MessageStore.NO_HANDLE);
+    if (tail == MessageStore.NO_HANDLE) {
+      head = handle;
+    } else {
+      store.setNext(tail, handle);
+    }
+    tail = handle;
+    size++;
+  }
+
+  /** The handle at the head; NO_HANDLE if the list is empty. */
+  long peekFirst() {
+    return head;
+  }
+
+  /** Removes the handle at the head, or returns NO_HANDLE if the list is empty. */
+  long pollFirst() {
+    long handle = head;
+    if (handle != MessageStore.NO_HANDLE) {
+      head = store.next(handle);
+      if (head == MessageStore.NO_HANDLE) {
+        tail = MessageStore.NO_HANDLE;
+      }
+      size--;
+    }
+    return handle;
+  }
+
+  /** Unlinks a handle, in O(n) since the list is singly linked. */
+  boolean remove(long handle) {
+    long previous = MessageStore.NO_HANDLE;
+    for (long h = head; h != MessageStore.NO_HANDLE; previous = h, h = store.next(h)) {
+      if (h == handle) {
+        long next = store.next(h);
+        if (previous == MessageStore.NO_HANDLE) {
+          head = next;
+        } else {
+          store.setNext(previous, next);
+        }
+        if (tail == h) {
+          tail = previous;
+        }
+        size--;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Passes every handle to action from head to tail. */
+  void forEach(LongConsumer action) {
+    for (long h = head; h != MessageStore.NO_HANDLE; h = store.next(h)) {
+      action.accept(h);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return head == MessageStore.NO_HANDLE;
+  }
+}
@@ -0,0 +1,53 @@
+package com.example;
+
+import java.util.function.LongConsumer;
+
+/**
+ * A queue of MessageStore handles, which the engines of the in-memory queues implement so that
+ * they hold a long per message rather than a Message. Like a java.util.Queue, poll takes the head
+ * in the engine's order, but it returns {@link MessageStore#NO_HANDLE} rather than null when the
+ * queue is empty.
+ */
+interface HandleQueue {
+  /**
+   * Adds a handle, or returns false if a bounded queue is full.
+   *
+   * @throws IllegalArgumentException if handle is NO_HANDLE.
+   */
+  boolean offer(long handle);
+
+  /** Removes the handle at the head, or returns NO_HANDLE if the queue is empty. */
+  long poll();
+
+  /**
+   * Removes a handle wherever it is in the queue. Optional: queues that cannot remove from the
+   * middle throw UnsupportedOperationException.
+   *
+   * @return true if the handle was queued.
+   */
+  boolean remove(long handle);
+
+  /** Passes every queued handle to action, without removing it; weakly consistent under concurrency. */
+  void forEach(LongConsumer action);
+
+  /** The number of handles queued; only an estimate while other threads are using the queue. */
+  int size();
+
+  default boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Removes up to maxHandles handles from the head into to, in order.
+   *
+   * @return the number of handles removed.
+   */
+  default int drain(long[] to, int maxHandles) {
+    int drained = 0;
+    long handle;
+    while (drained < maxHandles && (handle = poll()) != MessageStore.NO_HANDLE) {
+      to[drained++] = handle;
+    }
+    return drained;
+  }
+}
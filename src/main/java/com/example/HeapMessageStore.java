@@ -0,0 +1,185 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A MessageStore on the heap, in parallel arrays, so that a queued message costs a few array
+ * elements rather than an object: the reference to its body, its attempts and link, and in a store
+ * for priority queues its priority and arrival. A FIFO queue's message thus takes 12 bytes besides
+ * its body, and a priority queue's 24.
+ *
+ * <p>Slots come in chunks of {@link #CHUNK_SIZE}, one array per field each, and a handle is a slot's
+ * index plus one. Freed slots go on a free list and are reused first, so the store keeps as many
+ * chunks as its largest backlog needed, like an ArrayDeque keeps its capacity. A chunk only gets
+ * its tenant array once one of its messages has a tenant. An {@link OffHeapMessageStore} keeps the
+ * same fields off the heap instead.
+ */
+final class HeapMessageStore extends MessageStore {
+  /** The number of slots in a chunk. */
+  static final int CHUNK_SIZE = 1 << 12;
+
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int CHUNK_BITS = Integer.numberOfTrailingZeros(CHUNK_SIZE);
+
+  /** The fields of CHUNK_SIZE slots. */
+  private static final class Chunk {
+    final Object[] bodies = new Object[CHUNK_SIZE]; // A String or ByteBuffer
+    final int[] attempts = new int[CHUNK_SIZE];
+    final int[] next = new int[CHUNK_SIZE];
+    final int[] priorities;
+    final long[] arrivals;
+    volatile String[] tenants; // Created under the store's lock by the first message with a tenant
+
+    Chunk(boolean prioritized) {
+      this.priorities = prioritized ? new int[CHUNK_SIZE] : null;
+      this.arrivals = prioritized ? new long[CHUNK_SIZE] : null;
+    }
+  }
+
+  private final boolean prioritized;
+  private final boolean internBodies;
+  private volatile Chunk[] chunks = new Chunk[0];
+  private int[] free = new int[16]; // Guarded by this
+  private int freeCount;
+  private int slotCount;
+
+  /**
+   * Creates a store that keeps priorities and arrivals if prioritized. With internBodies, text
+   * bodies are replaced by the canonical String of equal content.
+   */
+  HeapMessageStore(boolean prioritized, boolean internBodies) {
+    this.prioritized = prioritized;
+    this.internBodies = internBodies;
+  }
+
+  @Override
+  long add(String body, int priority, long arrival, String tenant) {
+    return add((Object) (internBodies && body != null ? body.intern() : body), priority, arrival, tenant);
+  }
+
+  /** Keeps the bytes between the buffer's position and limit without copying them. */
+  @Override
+  long add(ByteBuffer body, int priority, long arrival, String tenant) {
+    return add((Object) body.slice(), priority, arrival, tenant);
+  }
+
+  private long add(Object body, int priority, long arrival, String tenant) {
+    int index = allocate(tenant != null);
+    Chunk chunk = chunks[index >>> CHUNK_BITS];
+    int i = index & CHUNK_MASK;
+    chunk.bodies[i] = body;
+    chunk.attempts[i] = 0;
+    if (prioritized) {
+      chunk.priorities[i] = priority;
+      chunk.arrivals[i] = arrival;
+    }
+    if (tenant != null) {
+      chunk.tenants[i] = tenant;
+    }
+    return index + 1L;
+  }
+
+  /** Takes a free slot, or a new one, making sure its chunk can hold a tenant if it needs one. */
+  private synchronized int allocate(boolean withTenant) {
+    int index;
+    if (freeCount > 0) {
+      index = free[--freeCount];
+    } else {
+      index = slotCount++;
+      if (index >>> CHUNK_BITS == chunks.length) {
+        Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = new Chunk(prioritized);
+        chunks = grown;
+      }
+    }
+    Chunk chunk = chunks[index >>> CHUNK_BITS];
+    if (withTenant && chunk.tenants == null) {
+      chunk.tenants = new String[CHUNK_SIZE];
+    }
+    return index;
+  }
+
+  @Override
+  void free(long handle) {
+    int index = (int) handle - 1;
+    Chunk chunk = chunks[index >>> CHUNK_BITS];
+    int i = index & CHUNK_MASK;
+    chunk.bodies[i] = null; // Let the body be collected
+    String[] tenants = chunk.tenants;
+    if (tenants != null) {
+      tenants[i] = null;
+    }
+    synchronized (this) {
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, 2 * freeCount);
+      }
+      free[freeCount++] = index;
+    }
+  }
+
+  @Override
+  int priority(long handle) {
+    return chunk(handle).priorities[slot(handle)];
+  }
+
+  @Override
+  void setPriority(long handle, int priority) {
+    chunk(handle).priorities[slot(handle)] = priority;
+  }
+
+  @Override
+  long arrival(long handle) {
+    return chunk(handle).arrivals[slot(handle)];
+  }
+
+  @Override
+  void setArrival(long handle, long arrival) {
+    chunk(handle).arrivals[slot(handle)] = arrival;
+  }
+
+  @Override
+  int attempts(long handle) {
+    return chunk(handle).attempts[slot(handle)];
+  }
+
+  @Override
+  void setAttempts(long handle, int attempts) {
+    chunk(handle).attempts[slot(handle)] = attempts;
+  }
+
+  @Override
+  String tenant(long handle) {
+    String[] tenants = chunk(handle).tenants;
+    return tenants == null ? null : tenants[slot(handle)];
+  }
+
+  @Override
+  long next(long handle) {
+    return chunk(handle).next[slot(handle)];
+  }
+
+  @Override
+  void setNext(long handle, long next) {
+    chunk(handle).next[slot(handle)] = (int) next;
+  }
+
+  /** Shares a body kept on the heap, text or bytes, without copying it. */
+  @Override
+  void readBody(long handle, Message delivered) {
+    Object body = chunk(handle).bodies[slot(handle)];
+    if (body instanceof ByteBuffer) {
+      delivered.setBodyBuffer((ByteBuffer) body);
+    } else {
+      delivered.setBody((String) body);
+    }
+  }
+
+  private Chunk chunk(long handle) {
+    return chunks[(int) (handle - 1) >>> CHUNK_BITS];
+  }
+
+  private static int slot(long handle) {
+    return (int) (handle - 1) & CHUNK_MASK;
+  }
+}
@@ -0,0 +1,117 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An unbounded priority queue of MessageStore handles: a binary heap in a long array behind the
+ * queue's monitor. Strict order and O(log n) push and pull, like the PriorityBlockingQueue of
+ * Messages it replaces, but a queued message takes 8 bytes of the array instead of a reference to
+ * an object of its own.
+ */
+final class HeapPriorityQueue implements HandleQueue {
+  private final MessageOrder order;
+  private long[] heap = new long[16];
+  private int size;
+
+  HeapPriorityQueue(MessageOrder order) {
+    this.order = order;
+  }
+
+  @Override
+  public synchronized boolean offer(long handle) {
+    if (handle == MessageStore.NO_HANDLE) {
+      throw new IllegalArgumentException("No message to queue");
+    }
+    if (size == heap.length) {
+      heap = Arrays.copyOf(heap, 2 * size);
+    }
+    siftUp(size++, handle);
+    return true;
+  }
+
+  @Override
+  public synchronized long poll() {
+    if (size == 0) {
+      return MessageStore.NO_HANDLE;
+    }
+    long first = heap[0];
+    long last = heap[--size];
+    if (size > 0) {
+      siftDown(0, last);
+    }
+    return first;
+  }
+
+  /** Removes a handle in O(n) to find it and O(log n) to restore the heap. */
+  @Override
+  public synchronized boolean remove(long handle) {
+    for (int i = 0; i < size; i++) {
+      if (heap[i] == handle) {
+        long last = heap[--size];
+        if (i < size) {
+          siftDown(i, last);
+          if (heap[i] == last) {
+            siftUp(i, last);
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Passes every handle to action in heap order, not pull order, holding the monitor meanwhile. */
+  @Override
+  public synchronized void forEach(LongConsumer action) {
+    for (int i = 0; i < size; i++) {
+      action.accept(heap[i]);
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  /** Removes up to maxHandles handles in pull order under a single acquisition of the monitor. */
+  @Override
+  public synchronized int drain(long[] to, int maxHandles) {
+    int drained = 0;
+    while (drained < maxHandles && size > 0) {
+      to[drained++] = poll();
+    }
+    return drained;
+  }
+
+  /** Moves handle up from the hole at index to its place. */
+  private void siftUp(int index, long handle) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (order.compare(handle, heap[parent]) >= 0) {
+        break;
+      }
+      heap[index] = heap[parent];
+      index = parent;
+    }
+    heap[index] = handle;
+  }
+
+  /** Moves handle down from the hole at index to its place. */
+  private void siftDown(int index, long handle) {
+    int half = size >>> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      int right = child + 1;
+      if (right < size && order.compare(heap[right], heap[child]) < 0) {
+        child = right;
+      }
+      if (order.compare(handle, heap[child]) <= 0) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = handle;
+  }
+}
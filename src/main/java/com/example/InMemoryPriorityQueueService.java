@@ -2,19 +2,40 @@ package com.example;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
 
 public class InMemoryPriorityQueueService implements QueueService {
-    private final Map<String, Queue<Message>> queues; // Map to store multiple queues by their URLs
+    private final Map<String, QueueState> queues; // Map to store multiple queues by their URLs
+    private final Map<String, QueueCapacity> capacities; // Per-queue bound on the number of messages held
+    private final Map<String, RedrivePolicy> redrivePolicies; // Per-queue dead-letter settings
+    private final AtomicInteger queueShards = new AtomicInteger(); // Numbers the queues, so a receipt handle names its queue
+    private final Object queueCreated = new Object(); // Notified whenever a queue is created, for long polls on a queue that does not exist
     private long visibilityTimeout; // Timeout for visibility of messages
+    private int queueCapacity; // Default queue capacity, 0 means unbounded
+    private OverflowPolicy overflowPolicy; // Default behaviour of push on a full queue
+    private long overflowTimeout; // How long (ms) push waits for room under OverflowPolicy.BLOCK
+    private long priorityAging; // Default time (ms) a message waits to gain one priority level, 0 means no aging
+    private PriorityEngine priorityEngine; // Default engine holding the waiting messages of new queues
+    private boolean internBodies; // Whether messages with equal bodies share a single String
+    private volatile MessageStore store; // Holds the messages of every queue, which the engines refer to by handle
 
     /* 
      * Constructor initializes the queues map and loads configuration properties.
-     * Sets the visibility timeout from the config file or defaults to 30 seconds.
+     * Sets the visibility timeout from the config file or defaults to 30 seconds,
+     * and the default capacity and overflow policy, which default to unbounded.
      */
     public InMemoryPriorityQueueService() {
         this.queues = new ConcurrentHashMap<>(); // Thread-safe map to store queues
+        this.capacities = new ConcurrentHashMap<>();
+        this.redrivePolicies = new ConcurrentHashMap<>();
         String propFileName = "config.properties"; // Configuration file name
         Properties confInfo = new Properties();
 
@@ -30,12 +51,152 @@ public class InMemoryPriorityQueueService implements QueueService {
             e.printStackTrace();
             this.visibilityTimeout = 30;  // Default timeout in case of error
         }
+
+        // Missing properties fall back to an unbounded queue
+        this.queueCapacity = Integer.parseInt(confInfo.getProperty("queueCapacity", "0"));
+        this.overflowPolicy = OverflowPolicy.fromConfig(confInfo.getProperty("overflowPolicy", "block"));
+        this.overflowTimeout = Long.parseLong(confInfo.getProperty("overflowTimeout", "5000"));
+        this.priorityAging = TimeUnit.SECONDS.toMillis(Long.parseLong(confInfo.getProperty("priorityAgingInterval", "0")));
+        this.priorityEngine = PriorityEngine.fromConfig(confInfo.getProperty("priorityEngine", "heap"));
+        this.internBodies = Boolean.parseBoolean(confInfo.getProperty("internMessageBodies", "false"));
+        long offHeapBudget = Long.parseLong(confInfo.getProperty("offHeapBudget", "0"));
+        this.store = newStore(offHeapBudget << 20); // Configured in MB
+    }
+
+    /* 
+     * Keeps queued messages off the heap, their bodies along with their priority, arrival, attempts and tenant, in at
+     * most budgetBytes of direct memory shared by all queues, so that a large backlog does not lengthen GC pauses; the
+     * engines only hold handles to them. Once the budget is used up, push throws QueueFullException and tryPush
+     * returns FULL until messages are deleted. A budget of 0 keeps messages on the heap.
+     * Must be called before any queue is created.
+     */
+    public synchronized void setOffHeapBudget(long budgetBytes) {
+        if (!queues.isEmpty()) {
+            throw new IllegalStateException("Off-heap storage must be configured before queues are created");
+        }
+        this.store = newStore(budgetBytes);
+    }
+
+    /* 
+     * Returns the bytes of direct memory holding queued messages, 0 if they are kept on the heap.
+     */
+    long getOffHeapBytesUsed() {
+        return store.getOffHeapBytesUsed();
+    }
+
+    /* 
+     * Creates the store of the queued messages, keeping them in at most offHeapBudget bytes of direct memory,
+     * or on the heap if that is 0.
+     */
+    private MessageStore newStore(long offHeapBudget) {
+        return offHeapBudget > 0 ? new OffHeapMessageStore(offHeapBudget, internBodies) : new HeapMessageStore(true, internBodies);
+    }
+
+    /* 
+     * Bounds a queue to capacity messages, overriding the configured default.
+     * A capacity of 0 or less makes the queue unbounded.
+     */
+    public void setQueueCapacity(String queueUrl, int capacity, OverflowPolicy policy) {
+        getCapacity(queueUrl).configure(capacity, policy);
+    }
+
+    /* 
+     * Declares the range of priorities a queue accepts, switching it to a BucketedPriorityQueue with one FIFO lane
+     * per priority, so push and pull are O(1) rather than O(log n). The range may span at most 64 priorities,
+     * and pushing a priority outside it throws IllegalArgumentException. The queue keeps its capacity,
+     * redrive policy and priority aging; it must not hold any messages, waiting or in flight.
+     */
+    public void setPriorityRange(String queueUrl, int minPriority, int maxPriority) {
+        BucketedPriorityQueue.checkRange(minPriority, maxPriority); // Before touching the queue
+        replaceEmptyQueue(queueUrl, queue -> new QueueState(queueShards.incrementAndGet(), store,
+                new BucketedPriorityQueue(store, minPriority, maxPriority, queue == null ? priorityAging : queue.agingMillis), now()));
+    }
+
+    /* 
+     * Lets the waiting messages of a queue gain one priority level for every interval they wait, overriding the
+     * configured default, so a steady stream of high priority messages cannot starve the others.
+     * A zero or null interval disables aging. See PriorityAging for how this avoids re-sorting waiting messages.
+     * The queue keeps its capacity, redrive policy and priority range; it must not hold any messages.
+     */
+    public void setPriorityAging(String queueUrl, Duration interval) {
+        long agingMillis = interval == null ? 0 : Math.max(0, interval.toMillis());
+        replaceEmptyQueue(queueUrl, queue -> queue != null && queue.ready instanceof BucketedPriorityQueue
+                ? new QueueState(queueShards.incrementAndGet(), store, new BucketedPriorityQueue(store, queue.minPriority, queue.maxPriority, agingMillis), now())
+                : new QueueState(queueShards.incrementAndGet(), store, queue == null ? priorityEngine : queue.engine, agingMillis, now()));
+    }
+
+    /* 
+     * Selects the engine holding the waiting messages of a queue, overriding the configured default.
+     * See PriorityEngine for the ordering guarantees of each. A declared priority range is dropped.
+     * The queue keeps its capacity, redrive policy and priority aging; it must not hold any messages.
+     */
+    public void setPriorityEngine(String queueUrl, PriorityEngine engine) {
+        replaceEmptyQueue(queueUrl, queue -> new QueueState(queueShards.incrementAndGet(), store, engine,
+                queue == null ? priorityAging : queue.agingMillis, now()));
+    }
+
+    /* 
+     * Replaces the state of a queue that holds no messages, waiting or in flight, with factory's result.
+     * The factory is passed the current state, or null if the queue does not exist yet.
+     */
+    private void replaceEmptyQueue(String queueUrl, UnaryOperator<QueueState> factory) {
+        queues.compute(queueUrl, (k, queue) -> {
+            if (queue != null && getCapacity(queueUrl).size() > 0) {
+                throw new IllegalStateException("Queue " + queueUrl + " already holds messages");
+            }
+            return factory.apply(queue);
+        });
+        signalQueueCreated();
     }
 
     public long getVisibilityTimeout() {
         return visibilityTimeout; // Return visibility timeout
     }
 
+    /* 
+     * Sets the redrive policy of a queue, or removes it if policy is null.
+     * A message received maxReceiveCount times is moved to the dead-letter queue, keeping its priority,
+     * by the next pull that comes across it.
+     */
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+        if (policy == null) {
+            redrivePolicies.remove(queueUrl);
+            return;
+        }
+        if (policy.getDeadLetterQueueUrl().equals(queueUrl)) {
+            throw new IllegalArgumentException("A queue cannot be its own dead-letter queue: " + queueUrl);
+        }
+        redrivePolicies.put(queueUrl, policy);
+    }
+
+    /* 
+     * Moves the waiting messages of a dead-letter queue back to queueUrl as new messages with their
+     * original priority and a reset receive count. Messages that do not fit stay in the dead-letter queue.
+     * Returns the number of messages moved.
+     */
+    public int redriveDeadLetters(String deadLetterQueueUrl, String queueUrl) {
+        QueueState deadLetters = queues.get(deadLetterQueueUrl);
+        if (deadLetters == null) {
+            return 0; // Nothing to redrive
+        }
+
+        deadLetters.requeueExpired(now()); // Dead letters received but not deleted count as waiting again
+        QueueState queue = getOrCreateQueue(queueUrl);
+        QueueCapacity capacity = getCapacity(queueUrl);
+        int moved = 0;
+        while (capacity.tryAcquire()) { // Messages that do not fit stay where they are
+            long handle = deadLetters.ready.poll(); // Highest priority first
+            if (handle == MessageStore.NO_HANDLE) {
+                capacity.release(1);
+                break;
+            }
+            queue.add(moveMessage(handle, queue));
+            moved++;
+        }
+        getCapacity(deadLetterQueueUrl).release(moved);
+        return moved;
+    }
+
     /* 
      * Pushes a message with default priority (0) if no priority is specified.
      */
@@ -47,86 +208,661 @@ public class InMemoryPriorityQueueService implements QueueService {
     /* 
      * Pushes a message with specified priority into the queue.
      * If the queue doesn't exist, it's created with the appropriate comparator.
+     * If the queue is full, its overflow policy decides whether to wait, throw QueueFullException,
+     * or discard the lowest priority message.
      */
     public void push(String queueUrl, String messageBody, int priority) {
-        Queue<Message> queue = queues.computeIfAbsent(queueUrl, k -> createPriorityQueue());
-        queue.add(new Message(messageBody, priority)); // Add message to the queue
+        QueueState state = getOrCreateQueue(queueUrl).checkPriority(priority);
+        pushMessage(queueUrl, state, newMessage(messageBody, priority, null), 0); // Due at once
     }
 
     /* 
-     * Pulls the next visible message from the queue, considering visibility timeout.
-     * Sets new visibility and increments attempts before removing the message.
+     * Pushes a binary message with default priority (0).
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer messageBody) {
+        push(queueUrl, messageBody, 0); // Default priority 0
+    }
+
+    /* 
+     * Pushes a binary message with specified priority: the bytes between the buffer's position and limit.
+     * The queue keeps a reference to them rather than a copy, so the caller must not change them afterwards;
+     * with off-heap storage they are copied into the store instead.
+     */
+    public void push(String queueUrl, ByteBuffer messageBody, int priority) {
+        QueueState state = getOrCreateQueue(queueUrl).checkPriority(priority);
+        pushMessage(queueUrl, state, newMessage(messageBody, priority), 0);
+    }
+
+    /* 
+     * Pushes a message with specified priority on behalf of a tenant, e.g. a customer or a group of producers.
+     * On a queue using PriorityEngine.FAIR the tenants of each priority take turns in proportion to their weight,
+     * so one tenant's burst cannot hold up the others; other engines ignore the tenant. A null tenant is the default one.
+     */
+    public void push(String queueUrl, String messageBody, int priority, String tenant) {
+        QueueState state = getOrCreateQueue(queueUrl).checkPriority(priority);
+        pushMessage(queueUrl, state, newMessage(messageBody, priority, tenant), 0);
+    }
+
+    /* 
+     * Pushes a message with default priority (0) that becomes visible after delay.
+     */
+    public void push(String queueUrl, String messageBody, Duration delay) {
+        push(queueUrl, messageBody, 0, Instant.ofEpochMilli(now()).plus(delay)); // Default priority 0
+    }
+
+    /* 
+     * Pushes a message with default priority (0) that becomes visible at deliverAt.
+     */
+    public void push(String queueUrl, String messageBody, Instant deliverAt) {
+        push(queueUrl, messageBody, 0, deliverAt); // Default priority 0
+    }
+
+    /* 
+     * Pushes a message with specified priority that becomes visible at deliverAt, like the DelaySeconds of SQS
+     * but with any delay. Until then it waits on the queue's timing wheel and counts towards the queue's capacity.
+     * Its FCFS position, and its age under priority aging, count from deliverAt.
+     */
+    public void push(String queueUrl, String messageBody, int priority, Instant deliverAt) {
+        QueueState state = getOrCreateQueue(queueUrl).checkPriority(priority);
+        long arrival = MessageStore.arrivalAt(deliverAt.toEpochMilli());
+        pushMessage(queueUrl, state, store.add(messageBody, priority, arrival, null), deliverAt.toEpochMilli());
+    }
+
+    /* 
+     * Adds a new message, due at deliverAt, once the queue has room for it, as its overflow policy decides.
+     */
+    private void pushMessage(String queueUrl, QueueState state, long handle, long deliverAt) {
+        boolean admitted;
+        try {
+            admitted = getCapacity(queueUrl).admit(queueUrl);
+        } catch (QueueFullException e) {
+            store.free(handle);
+            throw e;
+        }
+        if (admitted) {
+            state.enqueue(handle, deliverAt, now()); // Add message to the queue, or the timing wheel if delayed
+        } else {
+            displaceLowest(queueUrl, state, handle, deliverAt); // Full under DROP_LOWEST_PRIORITY
+        }
+    }
+
+    /* 
+     * Pushes a message with default priority (0) if the queue has room, without waiting or throwing.
+     */
+    public PushStatus tryPush(String queueUrl, String messageBody) {
+        return tryPush(queueUrl, messageBody, 0); // Default priority 0
+    }
+
+    /* 
+     * Pushes a message if the queue has room, without waiting or throwing.
+     * Under DROP_LOWEST_PRIORITY a full queue discards its lowest priority message instead.
+     */
+    public PushStatus tryPush(String queueUrl, String messageBody, int priority) {
+        QueueState state = getOrCreateQueue(queueUrl).checkPriority(priority);
+        QueueCapacity capacity = getCapacity(queueUrl);
+        long handle;
+        try {
+            handle = newMessage(messageBody, priority, null);
+        } catch (QueueFullException e) {
+            return PushStatus.FULL; // Off-heap budget used up
+        }
+
+        if (capacity.tryAcquire()) {
+            state.add(handle);
+            return PushStatus.ACCEPTED;
+        }
+        if (capacity.getPolicy() == OverflowPolicy.DROP_LOWEST_PRIORITY) {
+            return displaceLowest(queueUrl, state, handle, 0);
+        }
+        store.free(handle);
+        return PushStatus.FULL; // Queue full, message not added
+    }
+
+    /* 
+     * Pushes a batch of messages with default priority (0).
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) {
+        pushBatch(queueUrl, messageBodies, 0); // Default priority 0
+    }
+
+    /* 
+     * Pushes a batch of messages sharing the same priority, taking the queue lock only once.
+     * If the queue overflows with a REJECT or BLOCK policy, none of the batch is queued.
+     */
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        QueueState state = getOrCreateQueue(queueUrl).checkPriority(priority);
+        QueueCapacity capacity = getCapacity(queueUrl);
+        long[] batch = new long[messageBodies.size()];
+        long[] messages = new long[batch.length];
+        long[] overflow = new long[batch.length];
+        int stored = 0;
+        int admitted = 0;
+        int overflowed = 0;
+        try {
+            for (String messageBody : messageBodies) {
+                batch[stored++] = newMessage(messageBody, priority, null);
+            }
+            for (int i = 0; i < stored; i++) {
+                if (capacity.admit(queueUrl)) {
+                    messages[admitted++] = batch[i];
+                } else {
+                    overflow[overflowed++] = batch[i];
+                }
+            }
+        } catch (QueueFullException e) {
+            capacity.release(admitted); // Give back the room taken by the batch so far
+            for (int i = 0; i < stored; i++) {
+                store.free(batch[i]);
+            }
+            throw e;
+        }
+
+        state.addAll(messages, admitted); // Add all messages to the queue
+        for (int i = 0; i < overflowed; i++) {
+            displaceLowest(queueUrl, state, overflow[i], 0); // Full under DROP_LOWEST_PRIORITY
+        }
+    }
+
+    /* 
+     * Makes room for a message on a full queue by discarding the lowest priority waiting message,
+     * or discards the message itself if nothing waiting ranks below it. In-flight messages are never discarded.
+     * Finding the lowest priority message is a linear scan, but it only happens on overflow.
+     * With priority aging, lowest means lowest effective priority.
+     */
+    private PushStatus displaceLowest(String queueUrl, QueueState state, long handle, long deliverAt) {
+        QueueCapacity capacity = getCapacity(queueUrl);
+        for (;;) {
+            if (capacity.tryAcquire()) {
+                state.enqueue(handle, deliverAt, now()); // Room appeared meanwhile
+                return PushStatus.ACCEPTED;
+            }
+
+            long lowest = state.lowest();
+            if (lowest == MessageStore.NO_HANDLE || state.order.compare(handle, lowest) >= 0) {
+                store.free(handle);
+                return PushStatus.DROPPED; // The new message ranks lowest
+            }
+            if (state.ready.remove(lowest)) {
+                store.free(lowest);
+                state.enqueue(handle, deliverAt, now()); // Takes over the room of the discarded message
+                return PushStatus.DISPLACED;
+            }
+        }
+    }
+
+    /* 
+     * Pulls the highest priority message from the queue.
+     * The head of the engine is taken in O(log n) or better and the message stays in flight until it is
+     * deleted or its visibility timeout expires.
      */
     @Override
     public Message pull(String queueUrl) {
-        Queue<Message> queue = queues.get(queueUrl);
-        if (queue == null || queue.isEmpty()) {
-            return null; // Return null if the queue is empty
+        QueueState queue = queues.get(queueUrl);
+        if (queue == null) {
+            return null; // Return null if the queue does not exist
         }
 
-        long nowTime = System.currentTimeMillis();
-        
-        // Find a message that is visible based on the current time
-        Optional<Message> msgOpt = queue.stream().filter(m -> m.isVisibleAt(nowTime)).findFirst();
-        if (msgOpt.isEmpty()) {
-            return null; // Return null if no message is visible
-        } else {
-            Message msg = msgOpt.get();
+        queue.requeueExpired(now()); // Expired messages go back to their place in the queue
 
-            // Set visibility to the current time + timeout
-            msg.setVisibleFrom(nowTime + TimeUnit.SECONDS.toMillis(visibilityTimeout));
+        for (;;) {
+            long handle = queue.ready.poll(); // Highest priority message, or NO_HANDLE if none is waiting
+            if (handle == MessageStore.NO_HANDLE) {
+                return null;
+            }
+            if (!moveToDeadLetters(queueUrl, handle)) {
+                return deliver(queue, handle, now());
+            }
+        }
+    }
 
-            // Update receipt ID and increment message attempts
-            msg.setReceiptId(UUID.randomUUID().toString());
-            msg.incrementAttempts();
+    /* 
+     * Pulls the next message, parking the caller for up to waitTime until one is pushed.
+     * Every message added to the engine signals the queue's waiters, so no polling is involved; the caller only
+     * wakes up early when an in-flight or delayed message is due to become visible. A delayed push signals too,
+     * so that a waiter parked past its due time wakes up in time for it.
+     * Waiting on a queue that does not exist does not create it.
+     */
+    @Override
+    public Message pull(String queueUrl, Duration waitTime) {
+        long deadline = System.nanoTime() + waitTime.toNanos();
+        try {
+            for (;;) {
+                Message msg = pull(queueUrl);
+                if (msg != null) {
+                    return msg;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                if (visibilityTimeout > 0) { // Never past one timeout, messages pulled meanwhile expire after that; a zero cap would spin
+                    remaining = Math.min(remaining, TimeUnit.SECONDS.toNanos(visibilityTimeout));
+                }
+                QueueState queue = queues.get(queueUrl); // Polling must not create the queue
+                if (queue == null) {
+                    awaitQueue(queueUrl, remaining);
+                } else {
+                    queue.awaitMessage(remaining, now());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve interrupt status for the caller
+            return null;
+        }
+    }
 
-            // Remove the message from the queue after it is pulled
-            queue.remove(msg);
+    /* 
+     * Waits up to nanos for a queue to be created, by the first push to it for instance.
+     */
+    private void awaitQueue(String queueUrl, long nanos) throws InterruptedException {
+        synchronized (queueCreated) {
+            if (!queues.containsKey(queueUrl)) {
+                TimeUnit.NANOSECONDS.timedWait(queueCreated, nanos);
+            }
+        }
+    }
 
-            // Return a new Message object without modifying original body or priority
-            return new Message(msg.getBody(), msg.getPriority());
+    /* 
+     * Wakes the pulls waiting for a queue to be created.
+     */
+    private void signalQueueCreated() {
+        synchronized (queueCreated) {
+            queueCreated.notifyAll();
         }
     }
 
     /* 
-     * Deletes a message from the queue using its receiptId.
-     * It only deletes if the message is not visible based on the current time.
+     * Pulls up to maxMessages messages in priority order, draining them under a single lock acquisition.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        QueueState queue = queues.get(queueUrl);
+        if (queue == null) {
+            return messages; // Return an empty batch if the queue does not exist
+        }
+
+        long nowTime = now();
+        queue.requeueExpired(nowTime);
+
+        long[] drained = new long[Math.max(0, Math.min(maxMessages, queue.ready.size()))];
+        int count = queue.ready.drain(drained, drained.length); // Highest priority messages first
+        for (int i = 0; i < count; i++) {
+            if (!moveToDeadLetters(queueUrl, drained[i])) {
+                messages.add(deliver(queue, drained[i], nowTime));
+            }
+        }
+        return messages;
+    }
+
+    /* 
+     * Moves a message taken off the queue to its dead-letter queue if it has been received too often.
+     * If the dead-letter queue is full, the message is delivered as usual rather than lost.
+     * Returns true if the message was moved.
+     */
+    private boolean moveToDeadLetters(String queueUrl, long handle) {
+        RedrivePolicy policy = redrivePolicies.get(queueUrl);
+        if (policy == null || !policy.isExhausted(store.attempts(handle))) {
+            return false;
+        }
+
+        String deadLetterQueueUrl = policy.getDeadLetterQueueUrl();
+        if (!getCapacity(deadLetterQueueUrl).tryAcquire()) {
+            return false; // Dead-letter queue is full
+        }
+        QueueState deadLetters = getOrCreateQueue(deadLetterQueueUrl);
+        deadLetters.add(moveMessage(handle, deadLetters));
+        getCapacity(queueUrl).release(1); // The message has left this queue for good
+        return true;
+    }
+
+    /* 
+     * Increments the attempts of a message taken off the queue, and tracks it as in flight until its visibility
+     * timeout expires. Returns a new Message object with the queued message's body, priority, timestamp and tenant,
+     * carrying the receipt of this delivery.
+     */
+    private Message deliver(QueueState queue, long handle, long nowTime) {
+        int attempts = store.attempts(handle) + 1;
+        store.setAttempts(handle, attempts);
+
+        // Read the message while it is still ours: once its timer is published, a delete may free the slot
+        Message delivered = new Message(null, store.priority(handle));
+        store.readBody(handle, delivered);
+        delivered.setTimestamp(MessageStore.timestamp(store.arrival(handle)));
+        delivered.setTenant(store.tenant(handle));
+
+        // Publish the timer before scheduling it, so its expiry finds the message in flight
+        long sequence = ReceiptHandle.nextSequence(); // A new receipt slot for every delivery
+        long visibleFrom = nowTime + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+        TimingWheel.Timer<PendingMessage> timer = new TimingWheel.Timer<>(visibleFrom + 1, new PendingMessage(handle, sequence));
+        queue.inFlight.put(sequence, timer);
+        queue.timers.schedule(timer); // Not visible to other consumers until it expires
+
+        delivered.setReceipt(queue.shard, sequence, attempts); // Encoded only when asked for
+        return delivered;
+    }
+
+    /* 
+     * Deletes an in-flight message using its receiptId.
+     * It only deletes if the message is not visible again based on the current time.
      */
     @Override
     public void delete(String queueUrl, String receiptId) {
-        Queue<Message> queue = queues.get(queueUrl);
+        QueueState queue = queues.get(queueUrl);
+        long deleted = queue == null ? MessageStore.NO_HANDLE : queue.delete(receiptId, now());
+        if (deleted != MessageStore.NO_HANDLE) {
+            store.free(deleted);
+            getCapacity(queueUrl).release(1);
+        }
+    }
+
+    /* 
+     * Deletes several messages, each found through its receipt handle rather than a search.
+     */
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        QueueState queue = queues.get(queueUrl);
         if (queue != null) {
-            long nowTime = System.currentTimeMillis();
+            long nowTime = now();
+            int deleted = 0;
 
-            for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
-                Message msg = it.next();
-                if (!msg.isVisibleAt(nowTime) && msg.getReceiptId().equals(receiptId)) {
-                    it.remove(); // Remove the message with matching receiptId
-                    break;
+            for (String receiptId : receiptIds) {
+                long handle = queue.delete(receiptId, nowTime);
+                if (handle != MessageStore.NO_HANDLE) {
+                    store.free(handle);
+                    deleted++;
                 }
             }
+            getCapacity(queueUrl).release(deleted);
         }
     }
 
     /* 
-     * Returns the size of the queue.
+     * Returns the number of messages waiting to be pulled, not counting in-flight ones.
      */
     public int getQueueSize(String queueUrl) {
-        Queue<Message> queue = queues.get(queueUrl);
-        return queue == null ? 0 : queue.size(); // Return 0 if the queue does not exist
+        QueueState queue = queues.get(queueUrl);
+        return queue == null ? 0 : queue.ready.size(); // Return 0 if the queue does not exist
+    }
+
+    /* 
+     * Sets how many messages a tenant gets per turn at each priority of a queue using PriorityEngine.FAIR.
+     * The default weight is 1; a tenant of weight 3 gets three pulls for every one of a tenant of weight 1
+     * while both have messages waiting. Throws IllegalStateException if the queue uses another engine.
+     */
+    public void setTenantWeight(String queueUrl, String tenant, int weight) {
+        fairQueue(queueUrl, getOrCreateQueue(queueUrl)).setWeight(tenant, weight);
+    }
+
+    /* 
+     * Returns the number of messages of a tenant waiting to be pulled from a queue using PriorityEngine.FAIR,
+     * not counting in-flight or delayed ones. Throws IllegalStateException if the queue uses another engine.
+     */
+    public int getTenantBacklog(String queueUrl, String tenant) {
+        QueueState queue = queues.get(queueUrl);
+        return queue == null ? 0 : fairQueue(queueUrl, queue).backlog(tenant);
+    }
+
+    /* 
+     * Returns the backlog of every tenant with messages waiting in a queue using PriorityEngine.FAIR.
+     * Messages pushed without a tenant count under FairPriorityQueue.DEFAULT_TENANT.
+     */
+    public Map<String, Integer> getTenantBacklogs(String queueUrl) {
+        QueueState queue = queues.get(queueUrl);
+        return queue == null ? Collections.emptyMap() : fairQueue(queueUrl, queue).backlogs();
+    }
+
+    /* 
+     * Returns the engine of a queue that shares its priorities between tenants.
+     */
+    private static FairPriorityQueue fairQueue(String queueUrl, QueueState queue) {
+        if (!(queue.ready instanceof FairPriorityQueue)) {
+            throw new IllegalStateException("Queue " + queueUrl + " does not use the FAIR priority engine");
+        }
+        return (FairPriorityQueue) queue.ready;
     }
 
     /* 
-     * Helper method to create a priority queue with custom comparator
-     * Higher priority messages are retrieved first, and if priorities match, FCFS is applied.
+     * Stores a new message, which arrives now for FCFS, and returns its handle.
+     * With off-heap storage the message goes into a slab, and the store throws QueueFullException once its budget is
+     * used up. A body kept on the heap is replaced by the canonical String of equal content with internMessageBodies.
      */
-    private Queue<Message> createPriorityQueue() {
-        return new PriorityBlockingQueue<>(11, (msg1, msg2) -> {
-            int priorityComparison = Integer.compare(msg2.getPriority(), msg1.getPriority()); // Higher priority first
-            if (priorityComparison == 0) {
-                return Long.compare(msg1.getTimestamp(), msg2.getTimestamp()); // First-Come, First-Served (FCFS) if priority is equal
+    private long newMessage(String messageBody, int priority, String tenant) {
+        return store.add(messageBody, priority, store.newArrival(System.currentTimeMillis()), tenant);
+    }
+
+    /* 
+     * Stores a new binary message, keeping the buffer's remaining bytes without copying them unless they go off-heap.
+     */
+    private long newMessage(ByteBuffer messageBody, int priority) {
+        return store.add(messageBody, priority, store.newArrival(System.currentTimeMillis()), null);
+    }
+
+    /* 
+     * Turns a message taken off one queue into a new message of another, with the same body and tenant, its priority
+     * moved into the range of the queue, and a new arrival. The slot changes hands without being copied.
+     */
+    private long moveMessage(long handle, QueueState to) {
+        store.setAttempts(handle, 0);
+        store.setPriority(handle, to.clampPriority(store.priority(handle)));
+        store.setArrival(handle, store.newArrival(System.currentTimeMillis()));
+        return handle;
+    }
+
+    /* 
+     * Returns the capacity tracker of a queue, creating it with the configured defaults.
+     */
+    private QueueCapacity getCapacity(String queueUrl) {
+        return capacities.computeIfAbsent(queueUrl, k -> new QueueCapacity(queueCapacity, overflowPolicy, overflowTimeout));
+    }
+
+    /* 
+     * Returns the state of a queue, creating it with the next shard number.
+     */
+    private QueueState getOrCreateQueue(String queueUrl) {
+        QueueState queue = queues.get(queueUrl);
+        if (queue == null) {
+            queue = queues.computeIfAbsent(queueUrl, k -> new QueueState(queueShards.incrementAndGet(), store, priorityEngine, priorityAging, now()));
+            signalQueueCreated();
+        }
+        return queue;
+    }
+
+    /* 
+     * Current time for visibility timeouts and delayed messages, overridable by tests.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /* 
+     * The state of a single queue.
+     * Messages live in the service's MessageStore, and the queue only holds their handles. Waiting messages sit in
+     * the queue's PriorityEngine, a heap unless configured otherwise, in MessageOrder: by priority, or by PriorityAging
+     * with aging, then by arrival. A pulled message gets a timer on the timing wheel for the time it becomes visible
+     * again, and is indexed by a new sequence, which its receipt handle carries, so delete does not have to search.
+     * On expiry the message goes back into the engine unchanged, so it keeps its priority and its FCFS position among
+     * the messages of that priority.
+     * Delayed messages wait on the timing wheel too, and go into the engine when they are due.
+     * A queue with a declared priority range keeps its waiting messages in a BucketedPriorityQueue instead,
+     * which puts redelivered messages back at the head of their priority's lane.
+     * Whoever removes a message from the in-flight map (delete or expiry) owns it, and only a delete frees its slot.
+     */
+    private static class QueueState {
+        final MessageStore store; // Holds the messages the handles below refer to
+        final HandleQueue ready; // Waiting messages, highest priority at the head
+        final Map<Long, TimingWheel.Timer<PendingMessage>> inFlight = new ConcurrentHashMap<>(); // Pulled messages by receipt slot
+        final TimingWheel<PendingMessage> timers; // Visibility timeouts and delayed messages, each expiring in O(1)
+        final int shard; // Identifies the queue in receipt handles
+        final int minPriority; // Range of priorities the queue accepts
+        final int maxPriority;
+        final long agingMillis; // Time a message waits to gain one priority level, 0 means no aging
+        final MessageOrder order; // The order ready hands out messages in
+        final PriorityEngine engine; // Creates ready, null for a BucketedPriorityQueue
+        final ReentrantLock lock = new ReentrantLock(); // Only taken to park or wake long-polling consumers
+        final Condition available = lock.newCondition();
+        final AtomicInteger waiters = new AtomicInteger(); // Consumers parked on available, so pushes lock only if any
+
+        QueueState(int shard, MessageStore store, PriorityEngine engine, long agingMillis, long startTime) {
+            this.shard = shard;
+            this.store = store;
+            this.timers = new TimingWheel<>(startTime);
+            this.engine = engine;
+            this.order = new MessageOrder(store, agingMillis);
+            this.ready = engine.create(store, order);
+            this.minPriority = Integer.MIN_VALUE;
+            this.maxPriority = Integer.MAX_VALUE;
+            this.agingMillis = agingMillis;
+        }
+
+        QueueState(int shard, MessageStore store, BucketedPriorityQueue lanes, long startTime) {
+            this.shard = shard;
+            this.store = store;
+            this.timers = new TimingWheel<>(startTime);
+            this.engine = null;
+            this.ready = lanes;
+            this.minPriority = lanes.getMinPriority();
+            this.maxPriority = lanes.getMaxPriority();
+            this.agingMillis = lanes.getAgingMillis();
+            this.order = new MessageOrder(store, agingMillis);
+        }
+
+        /* 
+         * Throws IllegalArgumentException if the queue does not accept the priority, before any room is taken for it.
+         */
+        QueueState checkPriority(int priority) {
+            if (priority < minPriority || priority > maxPriority) {
+                throw new IllegalArgumentException("Priority " + priority + " is outside the range " + minPriority + ".." + maxPriority);
             }
-            return priorityComparison;
-        });
+            return this;
+        }
+
+        /* 
+         * Moves a priority into the queue's range, for messages moved here from another queue.
+         */
+        int clampPriority(int priority) {
+            return Math.max(minPriority, Math.min(maxPriority, priority));
+        }
+
+        /* 
+         * Adds an admitted message to the engine, or to the timing wheel if it is not due yet at deliverAt.
+         */
+        void enqueue(long handle, long deliverAt, long nowTime) {
+            if (deliverAt <= nowTime) {
+                add(handle);
+            } else {
+                timers.schedule(deliverAt, new PendingMessage(handle, PendingMessage.DELAYED));
+                signalWaiters(1); // A long poll may have to wake up earlier now
+            }
+        }
+
+        /* 
+         * Adds a waiting message to the engine, waking a consumer parked for one.
+         */
+        void add(long handle) {
+            ready.offer(handle);
+            signalWaiters(1);
+        }
+
+        void addAll(long[] handles, int count) {
+            for (int i = 0; i < count; i++) {
+                ready.offer(handles[i]);
+            }
+            signalWaiters(count);
+        }
+
+        /* 
+         * Returns the waiting message that would be pulled last, or NO_HANDLE if none is waiting, in a linear scan.
+         */
+        long lowest() {
+            long[] lowest = {MessageStore.NO_HANDLE};
+            ready.forEach(handle -> {
+                if (lowest[0] == MessageStore.NO_HANDLE || order.compare(handle, lowest[0]) > 0) {
+                    lowest[0] = handle;
+                }
+            });
+            return lowest[0];
+        }
+
+        /* 
+         * Moves every in-flight message whose visibility timeout has expired, and every delayed message that is due,
+         * into the engine.
+         */
+        void requeueExpired(long nowTime) {
+            for (PendingMessage pending : timers.advance(nowTime)) {
+                if (pending.isDelayed()) {
+                    add(pending.handle); // A delayed message, never delivered
+                } else if (inFlight.remove(pending.sequence) != null) {
+                    add(pending.handle); // Not deleted meanwhile
+                }
+            }
+        }
+
+        /* 
+         * Parks the caller for at most nanos, or until the earliest in-flight message becomes visible again or
+         * delayed message is due, whichever is sooner. Returns at once if a message is already waiting.
+         * A waiter registers itself before its final emptiness check, so a concurrent push either is seen by
+         * that check or signals it.
+         */
+        void awaitMessage(long nanos, long nowTime) throws InterruptedException {
+            lock.lock();
+            try {
+                waiters.incrementAndGet();
+                try {
+                    if (!ready.isEmpty()) {
+                        return;
+                    }
+                    long nextExpiry = timers.nextExpiry(); // Expiry does not signal, so wake up for it
+                    if (nextExpiry != Long.MAX_VALUE) {
+                        nanos = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(Math.max(1, nextExpiry - nowTime)));
+                    }
+                    available.awaitNanos(nanos);
+                } finally {
+                    waiters.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* 
+         * Wakes up to count parked consumers, one for each newly available message.
+         */
+        void signalWaiters(int count) {
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    for (int i = 0; i < count && lock.hasWaiters(available); i++) {
+                        available.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /* 
+         * Deletes the in-flight message received with receiptId, unless it is visible again.
+         * Returns the handle of the deleted message for the caller to free, or NO_HANDLE if none was deleted.
+         */
+        long delete(String receiptId, long nowTime) {
+            ReceiptHandle receipt = ReceiptHandle.parse(receiptId);
+            if (receipt == null || receipt.shard != shard) {
+                return MessageStore.NO_HANDLE; // Not a receipt issued by this queue
+            }
+
+            TimingWheel.Timer<PendingMessage> timer = inFlight.get(receipt.slot);
+            if (timer != null
+                    && timer.getDeadline() > nowTime // Visible again from deadline - 1 on
+                    && store.attempts(timer.getPayload().handle) == receipt.generation // A receipt from an earlier delivery no longer matches
+                    && inFlight.remove(receipt.slot, timer)) {
+                timers.cancel(timer);
+                return timer.getPayload().handle;
+            }
+            return MessageStore.NO_HANDLE;
+        }
     }
 }
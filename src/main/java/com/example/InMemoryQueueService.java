@@ -2,16 +2,46 @@ package com.example;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class InMemoryQueueService implements QueueService {
-  private final Map<String, Queue<Message>> queues;
+  private final Map<String, QueueState> queues;
+
+  // Numbers the queues, so that a receipt handle names the queue that issued it.
+  private final AtomicInteger queueShards = new AtomicInteger();
+
+  // Notified whenever a queue is created, for the long polls waiting on a queue that does not exist.
+  private final Object queueCreated = new Object();
 
   private long visibilityTimeout;
 
+  // Default bound on the number of messages a queue holds, ready or in flight. 0 means unbounded.
+  private int queueCapacity;
+
+  private OverflowPolicy overflowPolicy;
+
+  // How long (in milliseconds) push waits for room under OverflowPolicy.BLOCK.
+  private long overflowTimeout;
+
+  // Default engine for new queues, and the ring size for unbounded RING_BUFFER queues.
+  private QueueEngine queueEngine;
+
+  private int ringBufferSize;
+
+  // Whether messages with equal bodies share a single String.
+  private boolean internBodies;
+
+  // Holds the messages of every queue, which the queues refer to by handle.
+  private volatile MessageStore store;
+
   InMemoryQueueService() {
     this.queues = new ConcurrentHashMap<>();
     String propFileName = "config.properties";
@@ -24,56 +54,616 @@ public class InMemoryQueueService implements QueueService {
     }
 
     this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    this.queueCapacity = Integer.parseInt(confInfo.getProperty("queueCapacity", "0"));
+    this.overflowPolicy = OverflowPolicy.fromConfig(confInfo.getProperty("overflowPolicy", "block"));
+    this.overflowTimeout = Long.parseLong(confInfo.getProperty("overflowTimeout", "5000"));
+    this.queueEngine = QueueEngine.fromConfig(confInfo.getProperty("queueEngine", "linked"));
+    this.ringBufferSize = Integer.parseInt(confInfo.getProperty("ringBufferSize", "65536"));
+    this.internBodies = Boolean.parseBoolean(confInfo.getProperty("internMessageBodies", "false"));
+    long offHeapBudget = Long.parseLong(confInfo.getProperty("offHeapBudget", "0")); // in MB
+    this.store = newStore(offHeapBudget << 20);
   }
 
+  /**
+   * Keeps queued messages off the heap, their bodies and delivery state alike, in at most budgetBytes
+   * of direct memory shared by all queues, so that a large backlog does not lengthen GC pauses; the
+   * engines only hold handles to them. Once the budget is used up, push throws QueueFullException and
+   * tryPush returns FULL until messages are deleted. A budget of 0 keeps messages on the heap.
+   *
+   * @throws IllegalStateException if a queue has already been created.
+   */
+  public synchronized void setOffHeapBudget(long budgetBytes) {
+    if (!queues.isEmpty()) {
+      throw new IllegalStateException("Off-heap storage must be configured before queues are created");
+    }
+    this.store = newStore(budgetBytes);
+  }
+
+  /** The bytes of direct memory holding queued messages; 0 if they are kept on the heap. */
+  long getOffHeapBytesUsed() {
+    return store.getOffHeapBytesUsed();
+  }
+
+  /** A store keeping messages in at most offHeapBudget bytes of direct memory, or on the heap if 0. */
+  private MessageStore newStore(long offHeapBudget) {
+    return offHeapBudget > 0
+        ? new OffHeapMessageStore(offHeapBudget, internBodies)
+        : new HeapMessageStore(false, internBodies);
+  }
+
+  /**
+   * Selects the engine of a queue, overriding the configured default. The queue keeps its capacity,
+   * overflow policy and redrive policy; a RING_BUFFER queue without a capacity is bounded by ringBufferSize.
+   *
+   * @throws IllegalStateException if the queue already holds messages.
+   */
+  public void setQueueEngine(String queueUrl, QueueEngine engine) {
+    queues.compute(
+        queueUrl,
+        (k, queue) -> {
+          if (queue == null) {
+            return newQueueState(engine, queueCapacity, overflowPolicy);
+          }
+          if (queue.capacity.size() > 0) {
+            throw new IllegalStateException("Queue " + queueUrl + " already holds messages");
+          }
+          QueueState replacement =
+              newQueueState(engine, queue.capacity.getCapacity(), queue.capacity.getPolicy());
+          replacement.redrivePolicy = queue.redrivePolicy;
+          return replacement;
+        });
+    signalQueueCreated();
+  }
+
+  /**
+   * Bounds a queue to capacity messages, ready or in flight, overriding the configured default.
+   * A capacity of 0 or less makes the queue unbounded.
+   */
+  public void setQueueCapacity(String queueUrl, int capacity, OverflowPolicy policy) {
+    QueueState queue = getOrCreateQueue(queueUrl);
+    if (queue.maxCapacity > 0 && (capacity <= 0 || capacity > queue.maxCapacity)) {
+      capacity = queue.maxCapacity; // a ring buffer cannot hold more than its size
+    }
+    queue.capacity.configure(capacity, policy);
+  }
+
+  /**
+   * Sets the redrive policy of a queue, or removes it if policy is null. A message received
+   * maxReceiveCount times is moved to the dead-letter queue by the next pull that comes across it.
+   */
+  public void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+    if (policy != null && policy.getDeadLetterQueueUrl().equals(queueUrl)) {
+      throw new IllegalArgumentException("A queue cannot be its own dead-letter queue: " + queueUrl);
+    }
+    getOrCreateQueue(queueUrl).redrivePolicy = policy;
+  }
+
+  /**
+   * Moves the visible messages of a dead-letter queue back to queueUrl as new messages, with their
+   * receive count reset. Stops early if queueUrl runs out of room.
+   *
+   * @return the number of messages moved.
+   */
+  public int redriveDeadLetters(String deadLetterQueueUrl, String queueUrl) {
+    QueueState deadLetters = queues.get(deadLetterQueueUrl);
+    if (deadLetters == null) {
+      return 0;
+    }
+
+    QueueState queue = getOrCreateQueue(queueUrl);
+    deadLetters.requeueExpired(queueUrl, now());
+    int moved = 0;
+
+    while (queue.capacity.tryAcquire()) {
+      long handle = deadLetters.redelivered.poll();
+      if (handle == MessageStore.NO_HANDLE) {
+        handle = deadLetters.ready.poll();
+      }
+      if (handle == MessageStore.NO_HANDLE) {
+        queue.capacity.release(1);
+        break;
+      }
+
+      deadLetters.capacity.release(1);
+      store.setAttempts(handle, 0); // a new message to queueUrl
+      queue.enqueue(queueUrl, handle);
+      moved++;
+    }
+
+    queue.signalWaiters(moved);
+    return moved;
+  }
+
+  /**
+   * Pushes a message, applying the queue's overflow policy if it is full.
+   *
+   * @throws QueueFullException if the queue is full and the policy is REJECT, or BLOCK and no room
+   *     appeared within the overflow timeout.
+   */
   @Override
   public void push(String queueUrl, String msgBody) {
-    Queue<Message> queue = queues.get(queueUrl);
-    if (queue == null) {
-      queue = new ConcurrentLinkedQueue<>();
-      queues.put(queueUrl, queue);
+    QueueState queue = getOrCreateQueue(queueUrl);
+    if (queue.capacity.admit(queueUrl)) {
+      queue.enqueue(queueUrl, newMessage(queue, msgBody));
+      queue.signalWaiters(1);
     }
-    queue.add(new Message(msgBody));
+  }
+
+  /**
+   * Pushes a binary message: the bytes between the buffer's position and limit. The queue keeps a
+   * reference to them rather than a copy, so the caller must not change them afterwards; with
+   * off-heap storage they are copied into the store instead.
+   */
+  @Override
+  public void push(String queueUrl, ByteBuffer msgBody) {
+    QueueState queue = getOrCreateQueue(queueUrl);
+    if (queue.capacity.admit(queueUrl)) {
+      queue.enqueue(queueUrl, newMessage(queue, msgBody));
+      queue.signalWaiters(1);
+    }
+  }
+
+  /**
+   * Pushes a message that becomes visible after delay, like the DelaySeconds of SQS but with any
+   * delay. It counts towards the queue's capacity while it waits.
+   */
+  public void push(String queueUrl, String msgBody, Duration delay) {
+    push(queueUrl, msgBody, Instant.ofEpochMilli(now()).plus(delay));
+  }
+
+  /** Pushes a message that becomes visible at deliverAt. */
+  public void push(String queueUrl, String msgBody, Instant deliverAt) {
+    QueueState queue = getOrCreateQueue(queueUrl);
+    if (queue.capacity.admit(queueUrl)) {
+      long nowTime = now();
+      if (deliverAt.toEpochMilli() <= nowTime) {
+        queue.enqueue(queueUrl, newMessage(queue, msgBody));
+        queue.signalWaiters(1);
+      } else {
+        queue.schedule(newMessage(queue, msgBody), deliverAt.toEpochMilli());
+        queue.signalWaiters(1); // a long poll may have to wake up earlier now
+      }
+    }
+  }
+
+  /** Pushes a message if the queue has room, without waiting or throwing. */
+  public PushStatus tryPush(String queueUrl, String msgBody) {
+    QueueState queue = getOrCreateQueue(queueUrl);
+    if (!queue.capacity.tryAcquire()) {
+      return queue.capacity.getPolicy() == OverflowPolicy.DROP_LOWEST_PRIORITY
+          ? PushStatus.DROPPED
+          : PushStatus.FULL;
+    }
+
+    try {
+      queue.enqueue(queueUrl, newMessage(queue, msgBody));
+    } catch (QueueFullException e) {
+      return PushStatus.FULL; // off-heap budget used up
+    }
+    queue.signalWaiters(1);
+    return PushStatus.ACCEPTED;
+  }
+
+  /**
+   * Pushes a batch of messages. If the queue overflows with a REJECT or BLOCK policy, none of the
+   * batch is queued.
+   */
+  @Override
+  public void pushBatch(String queueUrl, List<String> msgBodies) {
+    QueueState queue = getOrCreateQueue(queueUrl);
+    long[] handles = new long[msgBodies.size()];
+    int count = 0;
+    try {
+      for (String msgBody : msgBodies) {
+        if (queue.capacity.admit(queueUrl)) {
+          handles[count++] = newMessage(queue, msgBody);
+        }
+      }
+    } catch (QueueFullException e) {
+      queue.capacity.release(count);
+      for (int i = 0; i < count; i++) {
+        store.free(handles[i]);
+      }
+      throw e;
+    }
+
+    for (int i = 0; i < count; i++) {
+      queue.enqueue(queueUrl, handles[i]);
+    }
+    queue.signalWaiters(count);
   }
 
   @Override
   public Message pull(String queueUrl) {
-    Queue<Message> queue = queues.get(queueUrl);
+    QueueState queue = queues.get(queueUrl);
     if (queue == null) {
       return null;
     }
 
-    long nowTime = now();
-    Optional<Message> msgOpt = queue.stream().filter(m -> m.isVisibleAt(nowTime)).findFirst();
-    if (msgOpt.isEmpty()) {
-      return null;
-    } else {
-      Message msg = msgOpt.get();
-      msg.setReceiptId(UUID.randomUUID().toString());
-      msg.incrementAttempts();
-      msg.setVisibleFrom(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    queue.requeueExpired(queueUrl, now());
+    return deliverNext(queue);
+  }
+
+  @Override
+  public List<Message> pullBatch(String queueUrl, int maxMessages) {
+    List<Message> messages = new ArrayList<>();
+    QueueState queue = queues.get(queueUrl);
+    if (queue == null) {
+      return messages;
+    }
+
+    queue.requeueExpired(queueUrl, now());
+    Message msg;
+    while (messages.size() < maxMessages && (msg = deliverNext(queue)) != null) {
+      messages.add(msg);
+    }
+    return messages;
+  }
+
+  /**
+   * Waits until a message is pushed or an in-flight message becomes visible again, or until
+   * waitTime has passed. Waiting on a queue that does not exist does not create it.
+   */
+  @Override
+  public Message pull(String queueUrl, Duration waitTime) {
+    long deadline = System.nanoTime() + waitTime.toNanos();
+
+    Message msg = pull(queueUrl);
+    while (msg == null) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return null;
+      }
 
-      return new Message(msg.getBody(), msg.getReceiptId());
+      // A message pulled from now on becomes visible again no sooner than one visibility timeout
+      // from now, so never sleep longer than that. Without a timeout it is visible at once, and
+      // capping the wait at zero would spin.
+      if (visibilityTimeout > 0) {
+        remaining = Math.min(remaining, TimeUnit.SECONDS.toNanos(visibilityTimeout));
+      }
+      try {
+        QueueState queue = queues.get(queueUrl);
+        if (queue == null) {
+          awaitQueue(queueUrl, remaining);
+        } else {
+          queue.awaitMessage(remaining, now());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      msg = pull(queueUrl);
+    }
+    return msg;
+  }
+
+  /** Waits up to nanos for a queue to be created, by the first push to it for instance. */
+  private void awaitQueue(String queueUrl, long nanos) throws InterruptedException {
+    synchronized (queueCreated) {
+      if (!queues.containsKey(queueUrl)) {
+        TimeUnit.NANOSECONDS.timedWait(queueCreated, nanos);
+      }
+    }
+  }
+
+  /** Wakes the pulls waiting for a queue to be created. */
+  private void signalQueueCreated() {
+    synchronized (queueCreated) {
+      queueCreated.notifyAll();
     }
   }
 
   @Override
   public void delete(String queueUrl, String receiptId) {
-    Queue<Message> queue = queues.get(queueUrl);
+    QueueState queue = queues.get(queueUrl);
+    long deleted = queue == null ? MessageStore.NO_HANDLE : queue.delete(receiptId, now());
+    if (deleted != MessageStore.NO_HANDLE) {
+      store.free(deleted);
+      queue.capacity.release(1);
+    }
+  }
+
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    QueueState queue = queues.get(queueUrl);
     if (queue != null) {
       long nowTime = now();
+      int deleted = 0;
 
-      for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
-        Message msg = it.next();
-        if (!msg.isVisibleAt(nowTime) && msg.getReceiptId().equals(receiptId)) {
-          it.remove();
-          break;
+      for (String receiptId : receiptIds) {
+        long handle = queue.delete(receiptId, nowTime);
+        if (handle != MessageStore.NO_HANDLE) {
+          store.free(handle);
+          deleted++;
         }
       }
+      queue.capacity.release(deleted);
     }
   }
 
+  private QueueState getOrCreateQueue(String queueUrl) {
+    QueueState queue = queues.get(queueUrl);
+    if (queue == null) {
+      queue =
+          queues.computeIfAbsent(
+              queueUrl, k -> newQueueState(queueEngine, queueCapacity, overflowPolicy));
+      signalQueueCreated();
+    }
+    return queue;
+  }
+
+  private QueueState newQueueState(QueueEngine engine, int capacity, OverflowPolicy policy) {
+    MessageStore messages = store;
+    if (engine == QueueEngine.RING_BUFFER) {
+      RingBufferQueue ring = new RingBufferQueue(capacity > 0 ? capacity : ringBufferSize);
+      if (capacity <= 0 || capacity > ring.capacity()) {
+        capacity = ring.capacity();
+      }
+      return new QueueState(
+          queueShards.incrementAndGet(),
+          messages,
+          ring,
+          ring.capacity(),
+          new QueueCapacity(capacity, policy, overflowTimeout),
+          now());
+    }
+    return new QueueState(
+        queueShards.incrementAndGet(),
+        messages,
+        new LinkedHandleQueue(messages),
+        0,
+        new QueueCapacity(capacity, policy, overflowTimeout),
+        now());
+  }
+
+  /**
+   * Stores a message for a queue that has already admitted it, off the heap if there is an off-heap
+   * budget. A body kept on the heap is interned if internMessageBodies is set.
+   *
+   * @return the handle of the message.
+   * @throws QueueFullException if the off-heap budget is used up; the admitted room is given back.
+   */
+  private long newMessage(QueueState queue, String msgBody) {
+    try {
+      return store.add(msgBody, 0, 0, null);
+    } catch (QueueFullException e) {
+      queue.capacity.release(1);
+      throw e;
+    }
+  }
+
+  /**
+   * Stores a binary message for a queue that has already admitted it, keeping the buffer's
+   * remaining bytes without copying them unless they go off-heap.
+   *
+   * @throws QueueFullException if the off-heap budget is used up; the admitted room is given back.
+   */
+  private long newMessage(QueueState queue, ByteBuffer msgBody) {
+    try {
+      return store.add(msgBody, 0, 0, null);
+    } catch (QueueFullException e) {
+      queue.capacity.release(1);
+      throw e;
+    }
+  }
+
+  /**
+   * Moves a message taken off the queue to the dead-letter queue if it has been received too often.
+   * The message has already left the queue, so no other consumer can receive it meanwhile. If the
+   * dead-letter queue is full, the message is delivered as usual rather than lost.
+   *
+   * @return true if the message was moved.
+   */
+  private boolean moveToDeadLetters(QueueState queue, long handle) {
+    RedrivePolicy policy = queue.redrivePolicy;
+    if (policy == null || !policy.isExhausted(store.attempts(handle))) {
+      return false;
+    }
+
+    String deadLetterQueueUrl = policy.getDeadLetterQueueUrl();
+    QueueState deadLetters = getOrCreateQueue(deadLetterQueueUrl);
+    if (!deadLetters.capacity.tryAcquire()) {
+      return false;
+    }
+
+    store.setAttempts(handle, 0); // a new message to the dead-letter queue
+    deadLetters.enqueue(deadLetterQueueUrl, handle);
+    deadLetters.signalWaiters(1);
+    queue.capacity.release(1);
+    return true;
+  }
+
+  /**
+   * Takes the next visible message off the queue and marks it as in flight.
+   *
+   * @return A new Message with the body of the queued one and its new receipt id; null if no
+   *     message is visible.
+   */
+  private Message deliverNext(QueueState queue) {
+    long handle;
+    do {
+      handle = queue.redelivered.poll();
+      if (handle == MessageStore.NO_HANDLE) {
+        handle = queue.ready.poll();
+      }
+      if (handle == MessageStore.NO_HANDLE) {
+        return null;
+      }
+    } while (moveToDeadLetters(queue, handle));
+
+    int attempts = store.attempts(handle) + 1;
+    store.setAttempts(handle, attempts);
+
+    // Read the body while the message is still ours: once its timer is published, a delete may
+    // free the slot.
+    Message delivered = new Message((String) null);
+    store.readBody(handle, delivered);
+
+    // Publish the timer before scheduling it, so that its expiry finds the message in flight.
+    long sequence = ReceiptHandle.nextSequence();
+    long visibleFrom = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+    TimingWheel.Timer<PendingMessage> timer =
+        new TimingWheel.Timer<>(visibleFrom + 1, new PendingMessage(handle, sequence));
+    queue.inFlight.put(sequence, timer);
+    queue.timers.schedule(timer);
+
+    delivered.setReceipt(queue.shard, sequence, attempts); // encoded only when asked for
+    return delivered;
+  }
+
   long now() {
     return System.currentTimeMillis();
   }
+
+  /**
+   * The state of a single queue.
+   *
+   * <p>Messages live in the service's MessageStore, and the queue only holds their handles: those
+   * waiting for delivery sit in {@code ready} in FIFO order. A delivered message gets a timer in
+   * {@code timers} for the time it becomes visible again, and goes into {@code inFlight} under a
+   * new sequence, which its ReceiptHandle carries, so that delete does not have to search. The
+   * receipt's generation is the delivery count, so a receipt from an earlier delivery no longer
+   * matches. When its visibility timeout expires it is moved to {@code redelivered}, which is
+   * drained before {@code ready} so the message shows up at the head of the queue again. Delayed
+   * messages wait in {@code timers} too, and go to {@code ready} when they are due.
+   *
+   * <p>The timing wheel makes every expiry O(1); it is advanced by pulls, like the expiry scan it
+   * replaced. Whoever removes a message from {@code inFlight} (delete or expiry) owns it, so a
+   * message is never both deleted and redelivered, and its slot is never freed while it is queued.
+   *
+   * <p>Consumers long-polling an empty queue park on {@code available}. Pushes only take the lock
+   * to signal when {@code waiters} says someone is parked; a waiter registers itself before its
+   * final emptiness check, so a concurrent push either is seen by that check or signals it.
+   *
+   * <p>{@code capacity} counts every message the queue holds, so room is only given back on delete.
+   * With a RingBufferQueue as {@code ready}, the capacity never exceeds {@code maxCapacity}, the
+   * ring size, so every admitted message fits in the ring.
+   */
+  private static class QueueState {
+    final MessageStore store;
+    final HandleQueue ready;
+    final HandleQueue redelivered;
+    final Map<Long, TimingWheel.Timer<PendingMessage>> inFlight = new ConcurrentHashMap<>();
+    final TimingWheel<PendingMessage> timers;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition available = lock.newCondition();
+    final AtomicInteger waiters = new AtomicInteger();
+
+    final int maxCapacity;
+    final QueueCapacity capacity;
+
+    final int shard;
+
+    volatile RedrivePolicy redrivePolicy;
+
+    QueueState(
+        int shard,
+        MessageStore store,
+        HandleQueue ready,
+        int maxCapacity,
+        QueueCapacity capacity,
+        long startTime) {
+      this.shard = shard;
+      this.store = store;
+      this.ready = ready;
+      this.redelivered = new LinkedHandleQueue(store);
+      this.maxCapacity = maxCapacity;
+      this.capacity = capacity;
+      this.timers = new TimingWheel<>(startTime);
+    }
+
+    /** Adds an admitted message to the ready queue, or drops it if the ring is full. */
+    void enqueue(String queueUrl, long handle) {
+      if (!ready.offer(handle)) {
+        capacity.release(1);
+        store.free(handle);
+        throw new QueueFullException("Ring buffer of queue " + queueUrl + " is full");
+      }
+    }
+
+    /** Adds an admitted message to the ready queue once it is due at deliverAt. */
+    void schedule(long handle, long deliverAt) {
+      timers.schedule(deliverAt, new PendingMessage(handle, PendingMessage.DELAYED));
+    }
+
+    /**
+     * Moves every in-flight message whose visibility timeout has expired to redelivered, and every
+     * delayed message that is due to ready.
+     */
+    void requeueExpired(String queueUrl, long nowTime) {
+      for (PendingMessage pending : timers.advance(nowTime)) {
+        if (pending.isDelayed()) {
+          enqueue(queueUrl, pending.handle);
+        } else if (inFlight.remove(pending.sequence) != null) {
+          redelivered.offer(pending.handle);
+        }
+      }
+    }
+
+    /**
+     * Deletes the in-flight message received with receiptId, unless it is visible again.
+     *
+     * @return the handle of the deleted message, for the caller to free; NO_HANDLE if none was
+     *     deleted.
+     */
+    long delete(String receiptId, long nowTime) {
+      ReceiptHandle receipt = ReceiptHandle.parse(receiptId);
+      if (receipt == null || receipt.shard != shard) {
+        return MessageStore.NO_HANDLE;
+      }
+
+      TimingWheel.Timer<PendingMessage> timer = inFlight.get(receipt.slot);
+      if (timer != null
+          && timer.getDeadline() > nowTime // visible again from deadline - 1 on
+          && store.attempts(timer.getPayload().handle) == receipt.generation
+          && inFlight.remove(receipt.slot, timer)) {
+        timers.cancel(timer);
+        return timer.getPayload().handle;
+      }
+      return MessageStore.NO_HANDLE;
+    }
+
+    /**
+     * Parks the caller for at most nanos, or until the earliest in-flight message becomes visible
+     * again or delayed message is due, whichever is sooner. Returns at once if a message is already
+     * waiting.
+     */
+    void awaitMessage(long nanos, long nowTime) throws InterruptedException {
+      lock.lock();
+      try {
+        waiters.incrementAndGet();
+        try {
+          if (!ready.isEmpty() || !redelivered.isEmpty()) {
+            return;
+          }
+
+          long nextExpiry = timers.nextExpiry();
+          if (nextExpiry != Long.MAX_VALUE) {
+            long untilVisible = Math.max(1, nextExpiry - nowTime);
+            nanos = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(untilVisible));
+          }
+          available.awaitNanos(nanos);
+        } finally {
+          waiters.decrementAndGet();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Wakes up to count parked consumers, one for each newly available message. */
+    void signalWaiters(int count) {
+      if (waiters.get() > 0) {
+        lock.lock();
+        try {
+          for (int i = 0; i < count && lock.hasWaiters(available); i++) {
+            available.signal();
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,66 @@
+package com.example;
+
+import java.util.function.LongConsumer;
+
+/**
+ * An unbounded FIFO HandleQueue: a HandleList behind the queue's monitor. Every operation but
+ * remove is O(1) and allocates nothing, so where a ConcurrentLinkedQueue of Messages took a node
+ * and a Message per message, this takes the 4 bytes of the link in the store.
+ */
+final class LinkedHandleQueue implements HandleQueue {
+  private final HandleList handles;
+
+  LinkedHandleQueue(MessageStore store) {
+    this.handles = new HandleList(store);
+  }
+
+  @Override
+  public synchronized boolean offer(long handle) {
+    if (handle == MessageStore.NO_HANDLE) {
+      throw new IllegalArgumentException("No message to queue");
+    }
+    handles.addLast(handle);
+    return true;
+  }
+
+  @Override
+  public synchronized long poll() {
+    return handles.pollFirst();
+  }
+
+  /** The handle at the head, or NO_HANDLE if the queue is empty. */
+  synchronized long peek() {
+    return handles.peekFirst();
+  }
+
+  @Override
+  public synchronized boolean remove(long handle) {
+    return handles.remove(handle);
+  }
+
+  /** Passes every handle to action from head to tail, holding the queue's monitor meanwhile. */
+  @Override
+  public synchronized void forEach(LongConsumer action) {
+    handles.forEach(action);
+  }
+
+  @Override
+  public synchronized int size() {
+    return handles.size();
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return handles.isEmpty();
+  }
+
+  @Override
+  public synchronized int drain(long[] to, int maxHandles) {
+    int drained = 0;
+    long handle;
+    while (drained < maxHandles && (handle = handles.pollFirst()) != MessageStore.NO_HANDLE) {
+      to[drained++] = handle;
+    }
+    return drained;
+  }
+}
@@ -1,52 +1,99 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message and its delivery state.
+ *
+ * <p>The in-memory queues keep waiting messages in a {@link MessageStore} and build one of these
+ * per delivery, so the fields are primitives where they can be:
+ * an optional priority or timestamp is a sentinel rather than a boxed null, and a receipt handle
+ * issued by an in-memory queue is kept as its shard next to the sequence and attempts it is made of,
+ * and only turned into a string by {@link #getReceiptId()}. The boxed getters are a view over them.
+ *
+ * <p>A body is either text or bytes, as it was pushed, and can be read either way: bytes as UTF-8
+ * by {@link #getBody()}, text as its UTF-8 encoding by {@link #getBodyBuffer()}. Reading a body the
+ * way it was pushed costs no copy.
+ */
 public class Message {
+  /** Marks a message without a timestamp. */
+  private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
   /** How many times this message has been delivered. */
   private int attempts;
 
   /** Visible from time */
   private long visibleFrom;
 
-  /** An identifier associated with the act of receiving the message. */
+  /** An identifier associated with the act of receiving the message, when given as a string. */
   private String receiptId;
 
-  private String msgBody;
+  /** The shard of the in-memory queue that delivered this copy, 0 if none; see setReceipt. */
+  private int receiptShard;
+
+  /** Unique id of the message within its queue service, used as the slot of its receipt handles. */
+  private long sequence;
+
+  /** The body as it was pushed: a String, or a ByteBuffer for bytes; null if none. */
+  private Object body;
   
   // Priority of the message (used only for the priority queue)
-  private Integer priority;  // Using Integer instead of int to allow null (optional)
+  private int priority;
+  private boolean hasPriority;  // False means no priority, which getPriority reports as null
   
   // Timestamp for FCFS (used only for the priority queue)
-  private Long timestamp;  // Using Long instead of long to allow null (optional)
+  private long timestamp = NO_TIMESTAMP;  // NO_TIMESTAMP means none, which getTimestamp reports as null
+
+  // Tenant or group the message was pushed for (used only for fair priority queues), null if none
+  private String tenant;
 
   // Constructor for normal use cases
   public Message(String msgBody) {
-    this.msgBody = msgBody;
-    this.priority = null;  // Default null, meaning no priority
-    this.timestamp = null; // Default null, meaning no timestamp
+    this.body = msgBody;
   }
 
   // Constructor for cases where receiptId is needed
   public Message(String msgBody, String receiptId) {
-    this.msgBody = msgBody;
+    this.body = msgBody;
     this.receiptId = receiptId;
-    this.priority = null;  // Default null, meaning no priority
-    this.timestamp = null; // Default null, meaning no timestamp
   }
 
   // Constructor for cases where priority and timestamp are required (e.g., InMemoryPriorityQueue)
   public Message(String msgBody, int priority) {
-    this.msgBody = msgBody;
+    this.body = msgBody;
     this.priority = priority;
+    this.hasPriority = true;
     this.timestamp = System.currentTimeMillis(); // Record timestamp for FCFS
   }
 
   // Getters and setters for receiptId
   public String getReceiptId() {
+    if (receiptId == null && receiptShard != 0) {
+      return ReceiptHandle.encode(receiptShard, sequence, attempts);
+    }
     return this.receiptId;
   }
 
   protected void setReceiptId(String receiptId) {
     this.receiptId = receiptId;
+    this.receiptShard = 0;
+  }
+
+  /** Gives this copy the receipt handle of the given delivery, without building its string. */
+  void setReceipt(int shard, long sequence, int attempts) {
+    this.receiptId = null;
+    this.receiptShard = shard;
+    this.sequence = sequence;
+    this.attempts = attempts;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+
+  void setSequence(long sequence) {
+    this.sequence = sequence;
   }
 
   public void setVisibleFrom(long visibleFrom) {
@@ -62,9 +109,37 @@ public class Message {
     return visibleFrom < instant;
   }
 
-  // Getter for message body
+  // Getter for message body, decoding a binary body as UTF-8
   public String getBody() {
-    return msgBody;
+    if (body instanceof ByteBuffer) {
+      return StandardCharsets.UTF_8.decode(((ByteBuffer) body).duplicate()).toString();
+    }
+    return (String) body;
+  }
+
+  /**
+   * Returns the body as a read-only buffer from position 0 to its length. For a message pushed as
+   * bytes this is a view of the pushed bytes; a text body is encoded as UTF-8.
+   */
+  public ByteBuffer getBodyBuffer() {
+    if (body instanceof ByteBuffer) {
+      return ((ByteBuffer) body).asReadOnlyBuffer();
+    }
+    return body == null ? null : ByteBuffer.wrap(((String) body).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+  }
+
+  boolean isBinaryBody() {
+    return body instanceof ByteBuffer;
+  }
+
+  // Sets a text body
+  void setBody(String msgBody) {
+    this.body = msgBody;
+  }
+
+  // Sets a binary body, which is kept without copying, from position 0 to its limit
+  void setBodyBuffer(ByteBuffer bodyBuffer) {
+    this.body = bodyBuffer;
   }
 
   // Getter for attempts count
@@ -79,19 +154,43 @@ public class Message {
 
   // Getters and setters for priority (used in priority queue implementation)
   public Integer getPriority() {
-    return priority;
+    return hasPriority ? priority : null;
   }
 
   public void setPriority(int priority) {
     this.priority = priority;
+    this.hasPriority = true;
+  }
+
+  // Unboxed priority for the priority queues, which only hold messages that have one
+  int priority() {
+    return priority;
+  }
+
+  boolean hasPriority() {
+    return hasPriority;
   }
 
   // Getters and setters for timestamp (used in priority queue implementation)
   public Long getTimestamp() {
+    return timestamp == NO_TIMESTAMP ? null : timestamp;
+  }
+
+  // Unboxed timestamp for the priority queues, which only hold messages that have one
+  long timestamp() {
     return timestamp;
   }
 
   public void setTimestamp(long timestamp) {
     this.timestamp = timestamp;
   }
+
+  // Getters and setters for tenant (used in fair priority queue implementation)
+  public String getTenant() {
+    return tenant;
+  }
+
+  void setTenant(String tenant) {
+    this.tenant = tenant;
+  }
 }
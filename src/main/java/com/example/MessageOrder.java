@@ -0,0 +1,40 @@
+package com.example;
+
+/**
+ * The order in which an InMemoryPriorityQueueService queue hands out its waiting messages, by
+ * their handles in the queue's MessageStore: highest priority first, or highest effective priority
+ * with {@link PriorityAging}, then first come first served by arrival. Messages arriving together,
+ * which only delayed messages due at the same millisecond do, fall back to their handles, so the
+ * order tells every two queued messages apart.
+ */
+final class MessageOrder {
+  private final MessageStore store;
+  private final long agingMillis;
+
+  /** Creates the order of a queue whose messages gain a priority level every agingMillis; 0 disables aging. */
+  MessageOrder(MessageStore store, long agingMillis) {
+    this.store = store;
+    this.agingMillis = agingMillis;
+  }
+
+  long getAgingMillis() {
+    return agingMillis;
+  }
+
+  /** Negative if the message of handle1 comes out first, positive if that of handle2 does. */
+  int compare(long handle1, long handle2) {
+    int rankComparison = agingMillis > 0
+        ? Long.compare(rank(handle2), rank(handle1))
+        : Integer.compare(store.priority(handle2), store.priority(handle1)); // Higher priority first
+    if (rankComparison != 0) {
+      return rankComparison;
+    }
+    int arrivalComparison = Long.compare(store.arrival(handle1), store.arrival(handle2));
+    return arrivalComparison != 0 ? arrivalComparison : Long.compare(handle1, handle2);
+  }
+
+  private long rank(long handle) {
+    return PriorityAging.rank(
+        store.priority(handle), MessageStore.timestamp(store.arrival(handle)), agingMillis);
+  }
+}
@@ -0,0 +1,111 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the messages queued in an in-memory queue service, each in a slot named by a long handle.
+ *
+ * <p>The engines of the in-memory queues hold these handles rather than Message objects, and a
+ * Message is only built when one is delivered. A queued message is thus a handful of primitive
+ * fields: its body, the priority and arrival the priority queues order by, the number of times it
+ * has been delivered, its tenant, and a link through which the FIFO engines chain slots into lanes
+ * without allocating a node per message.
+ *
+ * <p>A slot belongs to whoever holds its handle: the pusher until it hands the handle to an engine,
+ * then the engine, then the consumer that takes it out. The hand-over orders their reads and writes,
+ * so the store does not synchronize them; the link is only used under the lock of the lane holding
+ * the message.
+ */
+abstract class MessageStore {
+  /** The handle of no message, which no slot has. */
+  static final long NO_HANDLE = 0;
+
+  /**
+   * The low bits of an arrival, which order the messages arriving in the same millisecond; the
+   * timestamp takes the rest, so arrivals order by timestamp first.
+   */
+  private static final int ARRIVAL_ORDER_BITS = 20;
+
+  private static final long MAX_ARRIVAL_TIMESTAMP = Long.MAX_VALUE >> ARRIVAL_ORDER_BITS;
+  private static final long MIN_ARRIVAL_TIMESTAMP = Long.MIN_VALUE >> ARRIVAL_ORDER_BITS;
+
+  private final AtomicLong lastArrival = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * Stores a new text message, never delivered.
+   *
+   * @param arrival from {@link #newArrival}, or 0 for a store that keeps no priorities.
+   * @throws QueueFullException if the store has no room left.
+   */
+  abstract long add(String body, int priority, long arrival, String tenant);
+
+  /**
+   * Stores a new binary message: the bytes between the buffer's position and limit.
+   *
+   * @throws QueueFullException if the store has no room left.
+   */
+  abstract long add(ByteBuffer body, int priority, long arrival, String tenant);
+
+  /** Gives a slot back. The caller must own the handle, and not use it afterwards. */
+  abstract void free(long handle);
+
+  abstract int priority(long handle);
+
+  abstract void setPriority(long handle, int priority);
+
+  /** The arrival of a message, which orders messages of equal priority first come first served. */
+  abstract long arrival(long handle);
+
+  abstract void setArrival(long handle, long arrival);
+
+  /** The number of times the message has been delivered. */
+  abstract int attempts(long handle);
+
+  abstract void setAttempts(long handle, int attempts);
+
+  /** The tenant the message was pushed for, null if none. */
+  abstract String tenant(long handle);
+
+  /** The message after this one in the lane holding it; NO_HANDLE at the tail. */
+  abstract long next(long handle);
+
+  abstract void setNext(long handle, long next);
+
+  /** Gives a delivered message the body of a slot, as text or bytes as it was pushed. */
+  abstract void readBody(long handle, Message delivered);
+
+  /** The bytes of direct memory the store holds bodies in; 0 if it keeps them on the heap. */
+  long getOffHeapBytesUsed() {
+    return 0;
+  }
+
+  /**
+   * An arrival for a message pushed at timestamp, the current time: later than every arrival this
+   * method handed out before, so a single producer's messages keep their order within a millisecond,
+   * and even if the clock steps back.
+   */
+  long newArrival(long timestamp) {
+    long arrival = arrivalAt(timestamp);
+    for (;;) {
+      long last = lastArrival.get();
+      long next = Math.max(arrival, last + 1);
+      if (lastArrival.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  /**
+   * The first arrival at timestamp, for a message that arrives at a time other than now, such as a
+   * delayed one. Timestamps beyond the year 2248 are clamped.
+   */
+  static long arrivalAt(long timestamp) {
+    return Math.max(MIN_ARRIVAL_TIMESTAMP, Math.min(MAX_ARRIVAL_TIMESTAMP, timestamp)) << ARRIVAL_ORDER_BITS;
+  }
+
+  /** The timestamp of an arrival. */
+  static long timestamp(long arrival) {
+    return arrival >> ARRIVAL_ORDER_BITS;
+  }
+}
@@ -0,0 +1,363 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A MessageStore outside the Java heap, in direct ByteBuffer slabs, so that a large backlog costs
+ * the garbage collector nothing per message: the engines hold handles, and everything a handle
+ * names is in a slab.
+ *
+ * <p>A message is stored as a header of {@link #HEADER_BYTES} and its body's bytes, UTF-8 for text,
+ * in a slot of the smallest power-of-two size class, from 32 bytes up to a whole slab, that fits
+ * them. The header holds the body's length and whether it is text or bytes, the attempts, the
+ * priority, the tenant as an id into a table of the tenants with messages in the store, the arrival
+ * and the link to the next message in its lane. A body too large for a slab stays on the heap, and
+ * its slot only holds the header.
+ *
+ * <p>Each slab of {@link #SLAB_SIZE} bytes is carved into slots of a single class; freed slots go
+ * on their class's free list and are reused by the next message of that class, so a steady workload
+ * stops allocating slabs. A slab whose slots are all free again leaves its class for a shared pool,
+ * from which any class takes its next slab, so a burst of bodies of one size does not keep the
+ * budget from bodies of other sizes. Slabs are never given back to the operating system: the store
+ * only ever grows up to its budget, after which add throws QueueFullException until slots are freed.
+ *
+ * <p>A handle names the slab (counting from 1) in its upper 32 bits and the slot's offset in the
+ * lower ones, so NO_HANDLE never names a slot.
+ */
+final class OffHeapMessageStore extends MessageStore {
+  /** The size of a slab; bodies that do not fit one slot of this size stay on the heap. */
+  static final int SLAB_SIZE = 1 << 20;
+
+  /** The bytes of a slot taken by the fields of its message. */
+  static final int HEADER_BYTES = 32;
+
+  private static final int LENGTH = 0; // Length of the body, with the flags below
+  private static final int ATTEMPTS = 4;
+  private static final int PRIORITY = 8;
+  private static final int TENANT = 12;
+  private static final int ARRIVAL = 16;
+  private static final int NEXT = 24;
+  private static final int MAX_BODY_BYTES = SLAB_SIZE - HEADER_BYTES;
+
+  private static final int BINARY = 1 << 31; // Set in the length of a body pushed as bytes
+  private static final int ON_HEAP = 1 << 30; // Set in the length of a body too large for a slab
+  private static final int LENGTH_MASK = ON_HEAP - 1;
+
+  private static final int MIN_SLOT_BITS = 5;
+  private static final int MAX_SLOT_BITS = 20;
+
+  /** The slots of one size, each taken from the free list or carved from the class's newest slab. */
+  private static final class SizeClass {
+    final int slotSize;
+    long[] free = new long[16];
+    int freeCount;
+    int slab; // Newest slab of this class, 0 for none
+    int next = SLAB_SIZE; // Offset of the next uncarved slot in that slab
+
+    SizeClass(int slotSize) {
+      this.slotSize = slotSize;
+    }
+  }
+
+  /**
+   * The tenants with messages in the store, each under an id from 1 for as long as a message has
+   * it, so a header holds an int rather than a reference.
+   */
+  private static final class TenantTable {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    private String[] names = new String[16]; // By id
+    private int[] refs = new int[16]; // Messages with the tenant, by id
+    private int nextId = 1;
+
+    synchronized int acquire(String tenant) {
+      Integer id = ids.get(tenant);
+      if (id == null) {
+        id = freeIds.isEmpty() ? nextId++ : freeIds.pop();
+        if (id == names.length) {
+          names = Arrays.copyOf(names, 2 * id);
+          refs = Arrays.copyOf(refs, 2 * id);
+        }
+        names[id] = tenant;
+        ids.put(tenant, id);
+      }
+      refs[id]++;
+      return id;
+    }
+
+    synchronized void release(int id) {
+      if (--refs[id] == 0) {
+        ids.remove(names[id]);
+        names[id] = null;
+        freeIds.push(id);
+      }
+    }
+
+    synchronized String name(int id) {
+      return names[id];
+    }
+  }
+
+  private final long budget;
+  private final boolean internBodies;
+  private final AtomicReferenceArray<ByteBuffer> slabs;
+  private final int[] slabLive; // Slots in use, by slab; guarded by the class the slab belongs to
+  private final int[] freeSlabs; // Slabs of no class; guarded by this
+  private int freeSlabCount;
+  private final SizeClass[] classes = new SizeClass[MAX_SLOT_BITS - MIN_SLOT_BITS + 1];
+  private final AtomicLong usedBytes = new AtomicLong();
+  private int slabCount; // Guarded by this
+  private final Map<Long, Object> heapBodies = new ConcurrentHashMap<>(); // Bodies too large for a slab, by handle
+  private final TenantTable tenants = new TenantTable();
+
+  /**
+   * Creates a store that allocates at most budget bytes of slabs, rounded down to whole slabs but
+   * at least one. With internBodies, text bodies too large for a slab are replaced by the canonical
+   * String of equal content.
+   */
+  OffHeapMessageStore(long budget, boolean internBodies) {
+    int maxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1, budget / SLAB_SIZE));
+    this.budget = (long) maxSlabs * SLAB_SIZE;
+    this.internBodies = internBodies;
+    this.slabs = new AtomicReferenceArray<>(maxSlabs);
+    this.slabLive = new int[maxSlabs];
+    this.freeSlabs = new int[maxSlabs];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new SizeClass(1 << (MIN_SLOT_BITS + i));
+    }
+  }
+
+  @Override
+  long add(String body, int priority, long arrival, String tenant) {
+    byte[] bytes = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+    if (bytes == null || bytes.length > MAX_BODY_BYTES) {
+      return addOnHeap(internBodies && body != null ? body.intern() : body, 0, priority, arrival, tenant);
+    }
+    long handle = newSlot(bytes.length, 0, priority, arrival, tenant);
+    body(handle).put(bytes);
+    return handle;
+  }
+
+  /** Copies the bytes between the buffer's position and limit, without moving its position. */
+  @Override
+  long add(ByteBuffer body, int priority, long arrival, String tenant) {
+    if (body.remaining() > MAX_BODY_BYTES) {
+      return addOnHeap(body.slice(), BINARY, priority, arrival, tenant);
+    }
+    long handle = newSlot(body.remaining(), BINARY, priority, arrival, tenant);
+    body(handle).put(body.duplicate());
+    return handle;
+  }
+
+  /** Stores a message whose body stays on the heap. */
+  private long addOnHeap(Object body, int flags, int priority, long arrival, String tenant) {
+    long handle = newSlot(0, flags | ON_HEAP, priority, arrival, tenant);
+    if (body != null) {
+      heapBodies.put(handle, body);
+    }
+    return handle;
+  }
+
+  /** Takes a slot for a body of length bytes and fills in its header. */
+  private long newSlot(int length, int flags, int priority, long arrival, String tenant) {
+    long handle = allocate(classes[classIndex(HEADER_BYTES + length)]);
+    ByteBuffer slab = slab(handle);
+    int offset = (int) handle;
+    slab.putInt(offset + LENGTH, length | flags);
+    slab.putInt(offset + ATTEMPTS, 0);
+    slab.putInt(offset + PRIORITY, priority);
+    slab.putInt(offset + TENANT, tenant == null ? 0 : tenants.acquire(tenant));
+    slab.putLong(offset + ARRIVAL, arrival);
+    slab.putLong(offset + NEXT, NO_HANDLE);
+    return handle;
+  }
+
+  /**
+   * Gives a slot back, and its slab to the shared pool if that was its last slot in use. The caller
+   * must own the handle, and not use it afterwards.
+   */
+  @Override
+  void free(long handle) {
+    ByteBuffer slab = slab(handle);
+    int offset = (int) handle;
+    int lengthAndFlags = slab.getInt(offset + LENGTH);
+    if ((lengthAndFlags & ON_HEAP) != 0) {
+      heapBodies.remove(handle);
+    }
+    int tenant = slab.getInt(offset + TENANT);
+    if (tenant != 0) {
+      tenants.release(tenant);
+    }
+
+    SizeClass sizeClass = classes[classIndex(HEADER_BYTES + (lengthAndFlags & LENGTH_MASK))];
+    int slabNumber = (int) (handle >>> 32);
+    boolean emptied;
+    synchronized (sizeClass) {
+      emptied = --slabLive[slabNumber - 1] == 0;
+      if (emptied) {
+        removeSlab(sizeClass, slabNumber);
+      } else {
+        if (sizeClass.freeCount == sizeClass.free.length) {
+          sizeClass.free = Arrays.copyOf(sizeClass.free, 2 * sizeClass.freeCount);
+        }
+        sizeClass.free[sizeClass.freeCount++] = handle;
+      }
+    }
+    usedBytes.addAndGet(-sizeClass.slotSize);
+    if (emptied) {
+      releaseSlab(slabNumber);
+    }
+  }
+
+  @Override
+  int priority(long handle) {
+    return slab(handle).getInt((int) handle + PRIORITY);
+  }
+
+  @Override
+  void setPriority(long handle, int priority) {
+    slab(handle).putInt((int) handle + PRIORITY, priority);
+  }
+
+  @Override
+  long arrival(long handle) {
+    return slab(handle).getLong((int) handle + ARRIVAL);
+  }
+
+  @Override
+  void setArrival(long handle, long arrival) {
+    slab(handle).putLong((int) handle + ARRIVAL, arrival);
+  }
+
+  @Override
+  int attempts(long handle) {
+    return slab(handle).getInt((int) handle + ATTEMPTS);
+  }
+
+  @Override
+  void setAttempts(long handle, int attempts) {
+    slab(handle).putInt((int) handle + ATTEMPTS, attempts);
+  }
+
+  @Override
+  String tenant(long handle) {
+    int tenant = slab(handle).getInt((int) handle + TENANT);
+    return tenant == 0 ? null : tenants.name(tenant);
+  }
+
+  @Override
+  long next(long handle) {
+    return slab(handle).getLong((int) handle + NEXT);
+  }
+
+  @Override
+  void setNext(long handle, long next) {
+    slab(handle).putLong((int) handle + NEXT, next);
+  }
+
+  /** Copies a body kept in a slab onto the heap, or shares one too large for a slab. */
+  @Override
+  void readBody(long handle, Message delivered) {
+    int lengthAndFlags = slab(handle).getInt((int) handle + LENGTH);
+    Object body;
+    if ((lengthAndFlags & ON_HEAP) != 0) {
+      body = heapBodies.get(handle);
+    } else {
+      byte[] bytes = new byte[lengthAndFlags & LENGTH_MASK];
+      body(handle).get(bytes);
+      body = (lengthAndFlags & BINARY) != 0 ? ByteBuffer.wrap(bytes) : new String(bytes, StandardCharsets.UTF_8);
+    }
+    if ((lengthAndFlags & BINARY) != 0) {
+      delivered.setBodyBuffer((ByteBuffer) body);
+    } else {
+      delivered.setBody((String) body);
+    }
+  }
+
+  /** The bytes of the slots holding messages, including the unused end of each slot. */
+  @Override
+  long getOffHeapBytesUsed() {
+    return usedBytes.get();
+  }
+
+  long getBudget() {
+    return budget;
+  }
+
+  /** Takes the slots of an unused slab off its class. The caller holds the class's lock. */
+  private static void removeSlab(SizeClass sizeClass, int slab) {
+    int kept = 0;
+    for (int i = 0; i < sizeClass.freeCount; i++) {
+      if ((int) (sizeClass.free[i] >>> 32) != slab) {
+        sizeClass.free[kept++] = sizeClass.free[i];
+      }
+    }
+    sizeClass.freeCount = kept;
+    if (sizeClass.slab == slab) {
+      sizeClass.slab = 0;
+      sizeClass.next = SLAB_SIZE; // Carve the next slot from a new slab
+    }
+  }
+
+  /** Puts a slab no class uses back in the pool. */
+  private synchronized void releaseSlab(int slab) {
+    freeSlabs[freeSlabCount++] = slab;
+  }
+
+  private long allocate(SizeClass sizeClass) {
+    long handle;
+    synchronized (sizeClass) {
+      if (sizeClass.freeCount > 0) {
+        handle = sizeClass.free[--sizeClass.freeCount];
+      } else {
+        if (sizeClass.next + sizeClass.slotSize > SLAB_SIZE) {
+          sizeClass.slab = newSlab();
+          sizeClass.next = 0;
+        }
+        handle = ((long) sizeClass.slab << 32) | sizeClass.next;
+        sizeClass.next += sizeClass.slotSize;
+      }
+      slabLive[(int) (handle >>> 32) - 1]++;
+    }
+    usedBytes.addAndGet(sizeClass.slotSize);
+    return handle;
+  }
+
+  /** Takes a slab from the pool, or allocates one, and returns its number. */
+  private synchronized int newSlab() {
+    if (freeSlabCount > 0) {
+      return freeSlabs[--freeSlabCount];
+    }
+    if (slabCount == slabs.length()) {
+      throw new QueueFullException("Off-heap budget of " + budget + " bytes is used up");
+    }
+    slabs.set(slabCount, ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder()));
+    return ++slabCount;
+  }
+
+  /** The slab of a slot, shared by all threads, so only its absolute accessors may be used. */
+  private ByteBuffer slab(long handle) {
+    return slabs.get((int) (handle >>> 32) - 1);
+  }
+
+  /** A view of a slot positioned at its body, so that concurrent readers do not share a position. */
+  private ByteBuffer body(long handle) {
+    ByteBuffer body = slab(handle).duplicate();
+    body.position((int) handle + HEADER_BYTES);
+    return body;
+  }
+
+  private static int classIndex(int size) {
+    int bits = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1); // Smallest power of two >= size
+    return Math.max(0, bits - MIN_SLOT_BITS);
+  }
+}
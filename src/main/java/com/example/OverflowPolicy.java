@@ -0,0 +1,27 @@
+package com.example;
+
+/** What a bounded in-memory queue does with a push when it is full. */
+public enum OverflowPolicy {
+  /** Wait for room up to the configured overflow timeout, then fail with QueueFullException. */
+  BLOCK,
+
+  /** Fail at once with QueueFullException. */
+  REJECT,
+
+  /**
+   * Discard the lowest priority message, which may be the one being pushed. Among messages of equal
+   * priority the latest arrival ranks lowest, so a FIFO queue discards the new message.
+   */
+  DROP_LOWEST_PRIORITY;
+
+  /** Parses a config value such as "block" or "dropLowestPriority", ignoring case and underscores. */
+  static OverflowPolicy fromConfig(String value) {
+    String normalized = value.trim().replace("_", "");
+    for (OverflowPolicy policy : values()) {
+      if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+        return policy;
+      }
+    }
+    throw new IllegalArgumentException("Unknown overflow policy: " + value);
+  }
+}
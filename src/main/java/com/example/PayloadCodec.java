@@ -0,0 +1,25 @@
+package com.example;
+
+/**
+ * Compresses message bodies for storage, see PayloadCompression.
+ *
+ * <p>Stored records name the codec that compressed them by its {@link #id()}, so a codec must keep
+ * its id, and its output format, for as long as records written with it may be read. Codecs other
+ * than the built-in ones are made known to readers with {@link PayloadCompression#register}.
+ */
+public interface PayloadCodec {
+  /** zlib-wrapped DEFLATE from java.util.zip, id 'd'. */
+  PayloadCodec DEFLATE = new DeflateCodec();
+
+  /** The lowercase letter, other than 'b', that marks records compressed by this codec. */
+  char id();
+
+  byte[] compress(byte[] body);
+
+  /**
+   * Restores a body compressed by {@link #compress}.
+   *
+   * @throws IllegalArgumentException if the data is corrupt.
+   */
+  byte[] decompress(byte[] compressed);
+}
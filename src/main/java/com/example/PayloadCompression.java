@@ -0,0 +1,88 @@
+package com.example;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-queue compression setting of a storage backend: bodies of at least threshold bytes are
+ * compressed with the codec before they are stored, when that makes them smaller.
+ *
+ * <p>Each stored record carries the id of the codec that compressed it, or nothing if it is
+ * stored as is, so turning compression on or off, or switching codecs, leaves existing records
+ * readable; every process reading a queue only needs to know the codecs used on it.
+ */
+public final class PayloadCompression {
+  private static final Map<Character, PayloadCodec> CODECS = new ConcurrentHashMap<>();
+
+  static {
+    register(PayloadCodec.DEFLATE);
+  }
+
+  private final PayloadCodec codec;
+  private final int threshold;
+
+  public PayloadCompression(PayloadCodec codec, int threshold) {
+    this.codec = Objects.requireNonNull(codec);
+    this.threshold = Math.max(0, threshold);
+    register(codec);
+  }
+
+  /** Compresses bodies of at least threshold bytes with PayloadCodec.DEFLATE. */
+  public static PayloadCompression deflate(int threshold) {
+    return new PayloadCompression(PayloadCodec.DEFLATE, threshold);
+  }
+
+  /**
+   * Makes a codec known to readers, so that records it compressed can be read by a backend that
+   * was not configured with it.
+   *
+   * @throws IllegalArgumentException if the id is not a lowercase letter other than 'b', or is
+   *     taken by another codec.
+   */
+  public static void register(PayloadCodec codec) {
+    char id = codec.id();
+    if (id < 'a' || id > 'z' || id == 'b') {
+      throw new IllegalArgumentException("Codec id must be a lowercase letter other than 'b': " + id);
+    }
+    PayloadCodec existing = CODECS.putIfAbsent(id, codec);
+    if (existing != null && existing != codec && existing.getClass() != codec.getClass()) {
+      throw new IllegalArgumentException("Codec id " + id + " is already taken by " + existing);
+    }
+  }
+
+  public PayloadCodec getCodec() {
+    return codec;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Compresses a body if it reaches the threshold and compressing makes it smaller.
+   *
+   * @return the compressed body; null to store the body as is.
+   */
+  byte[] compress(byte[] body) {
+    if (body.length < threshold) {
+      return null;
+    }
+    byte[] compressed = codec.compress(body);
+    return compressed.length < body.length ? compressed : null;
+  }
+
+  /**
+   * Restores a body compressed by the codec with the given id.
+   *
+   * @throws IllegalArgumentException if no such codec is registered, or the data is corrupt.
+   */
+  static byte[] decompress(char codecId, byte[] compressed) {
+    PayloadCodec codec = CODECS.get(codecId);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown payload codec: " + codecId);
+    }
+    return codec.decompress(compressed);
+  }
+
+}
@@ -0,0 +1,23 @@
+package com.example;
+
+/**
+ * What the timing wheel of an in-memory queue holds for a message that is not waiting in the
+ * queue's engine: either an in-flight message, under the sequence its receipt handle names, or a
+ * delayed message, which has no sequence until it is delivered.
+ */
+final class PendingMessage {
+  /** The sequence of a delayed message. ReceiptHandle.nextSequence never returns it. */
+  static final long DELAYED = 0;
+
+  final long handle;
+  final long sequence;
+
+  PendingMessage(long handle, long sequence) {
+    this.handle = handle;
+    this.sequence = sequence;
+  }
+
+  boolean isDelayed() {
+    return sequence == DELAYED;
+  }
+}
@@ -0,0 +1,20 @@
+package com.example;
+
+/**
+ * Orders messages by an effective priority that grows by one level for every interval a message
+ * has waited, so a steady stream of high priority messages cannot starve lower priority ones.
+ *
+ * <p>At time t a message's effective priority is {@code priority + (t - timestamp) / interval}.
+ * Every waiting message gains priority at the same rate, so comparing two messages does not depend
+ * on t, and {@link #rank} can drop it: a heap keeps a valid order as time passes without ever being
+ * re-sorted. Ranks are continuous rather than whole levels, so a message that has waited half an
+ * interval already beats a message of the same priority pushed later, which is plain FCFS.
+ */
+final class PriorityAging {
+  private PriorityAging() {}
+
+  /** A rank that orders messages like their effective priority at any fixed time; higher first. */
+  static long rank(int priority, long timestamp, long intervalMillis) {
+    return priority * intervalMillis - timestamp;
+  }
+}
@@ -0,0 +1,61 @@
+package com.example;
+
+/**
+ * The data structure holding the waiting messages of an InMemoryPriorityQueueService queue.
+ *
+ * <p>An engine is a HandleQueue of the messages in the service's MessageStore, whose poll returns
+ * the first message in the queue's MessageOrder: highest priority first, or highest effective
+ * priority with aging, then first come first served (FAIR shares each priority between tenants
+ * instead). Messages put back after their visibility timeout keep their place in that order.
+ * Queues with a declared priority range use BucketedPriorityQueue instead, see
+ * InMemoryPriorityQueueService.setPriorityRange.
+ */
+public enum PriorityEngine {
+  /**
+   * A HeapPriorityQueue: a binary heap of handles behind a single lock. Strict order and O(log n)
+   * push and pull, but every push and pull of a queue is serialized.
+   */
+  HEAP {
+    @Override
+    HandleQueue create(MessageStore store, MessageOrder order) {
+      return new HeapPriorityQueue(order);
+    }
+  },
+
+  /**
+   * A lock-free SkipListPriorityQueue. Strict order and O(log n) push and pull, which scale with
+   * the number of producer and consumer threads, at the cost of a node per message.
+   */
+  SKIP_LIST {
+    @Override
+    HandleQueue create(MessageStore store, MessageOrder order) {
+      return new SkipListPriorityQueue(order);
+    }
+  },
+
+  /**
+   * A FairPriorityQueue: strict priority, but within each priority the tenants given on push take
+   * turns by weighted deficit round robin instead of FCFS, at O(1) per pull. Priority aging does not
+   * apply. See InMemoryPriorityQueueService.setTenantWeight.
+   */
+  FAIR {
+    @Override
+    HandleQueue create(MessageStore store, MessageOrder order) {
+      return new FairPriorityQueue(store);
+    }
+  };
+
+  /** Creates an empty engine handing out the messages of store in order. */
+  abstract HandleQueue create(MessageStore store, MessageOrder order);
+
+  /** Parses a config value such as "heap" or "skipList", ignoring case and underscores. */
+  static PriorityEngine fromConfig(String value) {
+    String normalized = value.trim().replace("_", "");
+    for (PriorityEngine engine : values()) {
+      if (engine.name().replace("_", "").equalsIgnoreCase(normalized)) {
+        return engine;
+      }
+    }
+    throw new IllegalArgumentException("Unknown priority engine: " + value);
+  }
+}
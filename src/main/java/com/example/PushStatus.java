@@ -0,0 +1,16 @@
+package com.example;
+
+/** The outcome of a non-blocking tryPush onto a bounded queue. */
+public enum PushStatus {
+  /** The message was queued. */
+  ACCEPTED,
+
+  /** The message was queued after a lower priority message was discarded to make room. */
+  DISPLACED,
+
+  /** The queue was full and the message itself had the lowest priority, so it was discarded. */
+  DROPPED,
+
+  /** The queue was full and the message was not queued. */
+  FULL
+}
@@ -0,0 +1,146 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for a bounded in-memory queue.
+ *
+ * <p>Counts the messages a queue holds, whether ready or in flight, and makes producers wait or fail
+ * once the count reaches the capacity. A capacity of 0 or less means the queue is unbounded. The
+ * count is a single atomic, so the uncontended path takes no lock. Producers that have to wait park
+ * on {@code notFull}, and release only takes the lock when one of them is parked.
+ */
+class QueueCapacity {
+  private volatile int capacity;
+  private volatile OverflowPolicy policy;
+  private final long overflowTimeoutMillis;
+
+  private final AtomicInteger size = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  QueueCapacity(int capacity, OverflowPolicy policy, long overflowTimeoutMillis) {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.overflowTimeoutMillis = overflowTimeoutMillis;
+  }
+
+  /** Changes the limit. Messages already queued above a lowered capacity stay queued. */
+  void configure(int capacity, OverflowPolicy policy) {
+    this.capacity = capacity;
+    this.policy = policy;
+    signalProducers(Integer.MAX_VALUE);
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  OverflowPolicy getPolicy() {
+    return policy;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  /** Takes room for one message if there is any, without waiting. */
+  boolean tryAcquire() {
+    int limit = capacity;
+    if (limit <= 0) {
+      size.incrementAndGet();
+      return true;
+    }
+
+    for (;;) {
+      int current = size.get();
+      if (current >= limit) {
+        return false;
+      }
+      if (size.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Takes room for one message according to the overflow policy.
+   *
+   * @return true if the message may be queued; false if the queue is full and the policy is
+   *     DROP_LOWEST_PRIORITY, in which case the caller decides what to discard.
+   * @throws QueueFullException if the policy is REJECT, or BLOCK and no room appeared in time.
+   */
+  boolean admit(String queueUrl) {
+    if (tryAcquire()) {
+      return true;
+    }
+
+    switch (policy) {
+      case DROP_LOWEST_PRIORITY:
+        return false;
+      case BLOCK:
+        try {
+          if (acquire(TimeUnit.MILLISECONDS.toNanos(overflowTimeoutMillis))) {
+            return true;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new QueueFullException("Interrupted while waiting for room in queue " + queueUrl);
+        }
+        throw new QueueFullException(
+            "Queue " + queueUrl + " is still full after " + overflowTimeoutMillis + " ms");
+      default:
+        throw new QueueFullException("Queue " + queueUrl + " is full (capacity " + capacity + ")");
+    }
+  }
+
+  /** Waits up to nanos for room for one message. */
+  boolean acquire(long nanos) throws InterruptedException {
+    long deadline = System.nanoTime() + nanos;
+
+    lock.lock();
+    try {
+      waiters.incrementAndGet();
+      try {
+        while (!tryAcquire()) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          notFull.awaitNanos(remaining);
+        }
+        return true;
+      } finally {
+        waiters.decrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Gives back the room of count messages that have left the queue. */
+  void release(int count) {
+    if (count <= 0) {
+      return;
+    }
+    size.addAndGet(-count);
+    signalProducers(count);
+  }
+
+  private void signalProducers(int count) {
+    if (waiters.get() > 0) {
+      lock.lock();
+      try {
+        for (int i = 0; i < count && lock.hasWaiters(notFull); i++) {
+          notFull.signal();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.example;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the pull/handle/delete loop for a queue.
+ *
+ * <p>A fetcher thread keeps up to prefetchCount received messages in a local buffer, pulling them in
+ * batches and long-polling when the queue is empty. A dispatcher thread hands each buffered message
+ * to the handler on its own virtual thread (or a pooled thread on JVMs without them), with at most
+ * concurrency handlers running at once. A message is deleted when its handler returns normally; if
+ * the handler throws, the message is left alone and is redelivered after its visibility timeout.
+ *
+ * <p>Buffered messages are already in flight, so prefetchCount should be small enough for the
+ * buffer to drain well within the visibility timeout.
+ *
+ * <p>{@link #shutdown()} stops fetching, but the messages already buffered are still handled, and
+ * {@link #awaitTermination(Duration)} waits until every handler has finished.
+ */
+public class QueueConsumer implements AutoCloseable {
+  /** Processes one message. Throwing leaves the message to be redelivered. */
+  @FunctionalInterface
+  public interface MessageHandler {
+    void handle(Message message) throws Exception;
+  }
+
+  private static final int DEFAULT_PREFETCH_COUNT = 10;
+  private static final int DEFAULT_CONCURRENCY = 16;
+
+  // How long one long poll waits, which bounds how quickly the fetcher notices shutdown.
+  private static final Duration POLL_WAIT = Duration.ofSeconds(1);
+
+  private final QueueService queueService;
+  private final String queueUrl;
+  private final MessageHandler handler;
+  private final int concurrency;
+
+  private final BlockingQueue<Message> buffer = new LinkedBlockingQueue<>();
+  private final Semaphore bufferSpace;
+  private final Semaphore handlerPermits;
+  private final ExecutorService handlers;
+  private final CountDownLatch terminated = new CountDownLatch(1);
+
+  private final Thread fetcher;
+  private final Thread dispatcher;
+  private volatile boolean running;
+
+  public QueueConsumer(QueueService queueService, String queueUrl, MessageHandler handler) {
+    this(queueService, queueUrl, handler, DEFAULT_PREFETCH_COUNT, DEFAULT_CONCURRENCY);
+  }
+
+  public QueueConsumer(
+      QueueService queueService,
+      String queueUrl,
+      MessageHandler handler,
+      int prefetchCount,
+      int concurrency) {
+    if (prefetchCount < 1 || concurrency < 1) {
+      throw new IllegalArgumentException("prefetchCount and concurrency must be at least 1");
+    }
+
+    this.queueService = queueService;
+    this.queueUrl = queueUrl;
+    this.handler = handler;
+    this.concurrency = concurrency;
+    this.bufferSpace = new Semaphore(prefetchCount);
+    this.handlerPermits = new Semaphore(concurrency);
+    this.handlers = VirtualThreads.newPerTaskExecutor("queue-consumer-handler");
+
+    this.fetcher = new Thread(this::fetch, "queue-consumer-fetcher");
+    this.dispatcher = new Thread(this::dispatch, "queue-consumer-dispatcher");
+    fetcher.setDaemon(true);
+    dispatcher.setDaemon(true);
+  }
+
+  public synchronized void start() {
+    if (running || terminated.getCount() == 0 || fetcher.isAlive()) {
+      throw new IllegalStateException("QueueConsumer can only be started once");
+    }
+    running = true;
+    fetcher.start();
+    dispatcher.start();
+  }
+
+  /** Stops receiving new messages. Buffered and running messages are still handled. */
+  public synchronized void shutdown() {
+    if (running) {
+      running = false;
+      fetcher.interrupt();
+    } else if (!dispatcher.isAlive()) {
+      handlers.shutdown();
+      terminated.countDown();
+    }
+  }
+
+  /**
+   * Waits until every buffered message has been handled after shutdown.
+   *
+   * @return true if the consumer terminated; false if the timeout passed first.
+   */
+  public boolean awaitTermination(Duration timeout) throws InterruptedException {
+    return terminated.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Shuts down and waits for the buffered messages to be handled. If the thread is interrupted, it
+   * stops waiting and keeps its interrupt status set.
+   */
+  @Override
+  public void close() {
+    shutdown();
+    try {
+      terminated.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void fetch() {
+    while (running) {
+      int held = 0; // Buffer slots taken but not filled, given back whatever happens
+      try {
+        bufferSpace.acquire();
+        held = 1 + bufferSpace.drainPermits();
+
+        List<Message> messages = queueService.pullBatch(queueUrl, held);
+        if (messages.isEmpty()) {
+          // Nothing visible: hold on to one slot and long-poll for a single message.
+          bufferSpace.release(held - 1);
+          held = 1;
+          Message msg = queueService.pull(queueUrl, POLL_WAIT);
+          messages = msg == null ? Collections.emptyList() : Collections.singletonList(msg);
+        }
+
+        buffer.addAll(messages);
+        held -= messages.size();
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        // e.g. a network failure of a remote queue; back off and keep consuming.
+        e.printStackTrace();
+        bufferSpace.release(held);
+        held = 0;
+        try {
+          Thread.sleep(POLL_WAIT.toMillis());
+        } catch (InterruptedException e1) {
+          return;
+        }
+      } finally {
+        bufferSpace.release(held);
+      }
+    }
+  }
+
+  private void dispatch() {
+    try {
+      // The fetcher adds to the buffer before it exits, so once it is gone an empty buffer stays
+      // empty.
+      while (running || fetcher.isAlive() || !buffer.isEmpty()) {
+        Message msg = buffer.poll(100, TimeUnit.MILLISECONDS);
+        if (msg == null) {
+          continue;
+        }
+
+        bufferSpace.release();
+        handlerPermits.acquire();
+        handlers.execute(() -> process(msg));
+      }
+
+      // Drain: every permit is back once the last handler has finished.
+      handlerPermits.acquire(concurrency);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      handlers.shutdown();
+      terminated.countDown();
+    }
+  }
+
+  private void process(Message msg) {
+    try {
+      handler.handle(msg);
+      queueService.delete(queueUrl, msg.getReceiptId());
+    } catch (Exception e) {
+      // Left in flight; the queue redelivers it after its visibility timeout.
+      e.printStackTrace();
+    } finally {
+      handlerPermits.release();
+    }
+  }
+}
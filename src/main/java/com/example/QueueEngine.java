@@ -0,0 +1,29 @@
+package com.example;
+
+/**
+ * The data structure holding the handles of the ready messages of an InMemoryQueueService queue.
+ */
+public enum QueueEngine {
+  /**
+   * An unbounded LinkedHandleQueue, chained through the message store behind a lock. Allocates
+   * nothing per message.
+   */
+  LINKED,
+
+  /**
+   * A preallocated lock-free RingBufferQueue. The queue is bounded by the ring size, and producers
+   * and consumers do not block each other.
+   */
+  RING_BUFFER;
+
+  /** Parses a config value such as "linked" or "ringBuffer", ignoring case and underscores. */
+  static QueueEngine fromConfig(String value) {
+    String normalized = value.trim().replace("_", "");
+    for (QueueEngine engine : values()) {
+      if (engine.name().replace("_", "").equalsIgnoreCase(normalized)) {
+        return engine;
+      }
+    }
+    throw new IllegalArgumentException("Unknown queue engine: " + value);
+  }
+}
@@ -0,0 +1,10 @@
+package com.example;
+
+/** Thrown by push when a bounded queue is full and its overflow policy does not allow waiting. */
+public class QueueFullException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public QueueFullException(String message) {
+    super(message);
+  }
+}
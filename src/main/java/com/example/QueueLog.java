@@ -0,0 +1,898 @@
+package com.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+
+/**
+ * The storage of one FileQueueService queue: an append-only log of message records, split into
+ * preallocated segment files that every process on the host memory-maps.
+ *
+ * <p>A message is named by its offset, the position of its record in the concatenation of all
+ * segments, and a segment file by the offset of its first record. A record is a fixed-layout
+ * header followed by the raw body:
+ *
+ * <pre>
+ *   0  int   body length
+ *   4  int   attempts, or ACKED once the message is deleted or dead-lettered
+ *   8  long  visible from (epoch millis); the message is visible once this is in the past
+ *  16  long  shard of the latest receipt handle, i.e. the node id of the process that issued it
+ *  24  byte  flags: BINARY
+ *  25  byte  id of the codec that compressed the body, or 0
+ *  26  byte  version of the record format, RECORD_VERSION
+ *  28  int   CRC32C of the body length, bytes 24 to 27 and the body
+ *  32        body, then padding up to a multiple of 8
+ * </pre>
+ *
+ * The checksum covers what never changes once the record is written; a record that does not match
+ * it, e.g. because a crash of the host wrote back only some of its pages, is dropped with a warning
+ * when it would be delivered. The length lets a reader skip a record without reading its body.
+ * The segment header holds the version of its records too, so that a record that was never written
+ * at all, still zero, does not pass for one of version 0, written before there were checksums,
+ * which are not checked.
+ *
+ * A delivery updates attempts, visibility and receipt of the record in place, and a delete marks
+ * it acked; since the mapping is shared, the other processes see the change at once, and the
+ * header is all there is to a message's state. A segment starts with a header of its own, holding
+ * the number and total size of its live (not acked) records, the end of the last one and whether
+ * the segment is sealed, i.e. complete, or deleted. A push appends to the active segment, the last
+ * one, and seals it to start the next segment, at the offset where it ends, once a record does not
+ * fit. A sealed segment without live records is deleted; one with few is compacted by moving its
+ * live records that are not in flight to the active segment, see {@link #compactable}.
+ *
+ * <p>Each process walks the log with its own read cursor, delivering the visible records it comes
+ * across, and remembers only the records behind the cursor that were not visible, e.g. in flight,
+ * with a timer each; a timer checks the record again when it is due, so deliveries and deletes of
+ * other processes are picked up without any index of them. A checkpoint file holds the cursor and
+ * the records behind it that are still live, as of when some process last wrote it; a process
+ * starting up resumes from there and only walks the records after it, rather than the whole log.
+ *
+ * <p>Writes reach the mapping only, and segment files are created and deleted without forcing the
+ * directory; {@link #commit} forces both to disk when the caller wants them durable.
+ *
+ * <p>Not thread-safe: the caller holds the queue's lock, and calls {@link #refresh} before anything
+ * else. After an I/O error the caller calls {@link #invalidate}, and the next refresh starts over.
+ */
+final class QueueLog {
+  /** The file of a queue written in the original text format. */
+  static final String LEGACY_FILE = "messages";
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String TEXT_SEGMENT_SUFFIX = ".log";
+  private static final String TEXT_STATE_SUFFIX = ".state";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+
+  private static final int MAGIC = 0x46515331; // "FQS1"
+  private static final int CHECKPOINT_MAGIC = 0x46514331; // "FQC1"
+
+  // Segment header
+  private static final int SEGMENT_FLAGS = 4;
+  private static final int SEGMENT_LIVE = 8;
+  private static final int SEGMENT_END = 12;
+  private static final int SEGMENT_LIVE_BYTES = 16;
+  private static final int SEGMENT_VERSION = 20; // Of the format of its records
+  private static final int SEGMENT_HEADER = 32;
+  private static final int SEALED = 1;
+  private static final int DELETED = 2;
+
+  // Record header
+  private static final int BODY_LENGTH = 0;
+  private static final int ATTEMPTS = 4;
+  private static final int VISIBLE_FROM = 8;
+  private static final int RECEIPT_SHARD = 16;
+  private static final int FLAGS = 24;
+  private static final int CODEC = 25;
+  private static final int VERSION = 26;
+  private static final int CHECKSUM = 28;
+  private static final int RECORD_HEADER = 32;
+  private static final int RECORD_VERSION = 1;
+  private static final int ACKED = -1;
+
+  /** Flag of a record whose body is binary rather than UTF-8 text. */
+  static final int BINARY = 1;
+
+  /** A new record. */
+  static final class Record {
+    final ByteBuffer body;
+    final int flags;
+    final char codec; // 0 for none
+    final long visibleFrom;
+    final int attempts;
+
+    Record(ByteBuffer body, int flags, char codec, long visibleFrom) {
+      this(body, flags, codec, visibleFrom, 0);
+    }
+
+    private Record(ByteBuffer body, int flags, char codec, long visibleFrom, int attempts) {
+      this.body = body;
+      this.flags = flags;
+      this.codec = codec;
+      this.visibleFrom = visibleFrom;
+      this.attempts = attempts;
+    }
+  }
+
+  /** A record this process came across, either at its cursor or behind it. */
+  static final class Entry {
+    final long offset;
+    private final Segment seg;
+    private final int pos;
+    private long timerDue; // Of its current timer, 0 for none
+    private boolean queued; // In due
+
+    private Entry(Segment seg, int pos) {
+      this.offset = seg.base + pos;
+      this.seg = seg;
+      this.pos = pos;
+    }
+
+    /** The number of times the message was delivered. */
+    int attempts() {
+      return seg.buf.getInt(pos + ATTEMPTS);
+    }
+
+    boolean isBinary() {
+      return (seg.buf.get(pos + FLAGS) & BINARY) != 0;
+    }
+
+    /** The id of the codec that compressed the body, or 0. */
+    char codec() {
+      return (char) seg.buf.get(pos + CODEC);
+    }
+
+    /** A read-only view of the body in the mapping, which copies nothing. */
+    ByteBuffer body() {
+      ByteBuffer body = seg.buf.duplicate();
+      body.position(pos + RECORD_HEADER).limit(pos + RECORD_HEADER + seg.buf.getInt(pos + BODY_LENGTH));
+      return body.slice().asReadOnlyBuffer();
+    }
+
+    /** Whether the record is whole: within its segment, and matching its checksum if it has one. */
+    private boolean isIntact() {
+      int length = seg.buf.getInt(pos + BODY_LENGTH);
+      if (length < 0 || length > seg.end() - pos - RECORD_HEADER) {
+        return false;
+      }
+      if (seg.buf.getInt(SEGMENT_VERSION) == 0) {
+        return true; // Written before there were checksums
+      }
+      return seg.buf.get(pos + VERSION) == RECORD_VERSION && seg.buf.getInt(pos + CHECKSUM) == checksum(seg.buf, pos);
+    }
+
+    private boolean isAcked() {
+      return seg.isDeleted() || attempts() == ACKED;
+    }
+
+    private long visibleFrom() {
+      return seg.buf.getLong(pos + VISIBLE_FROM);
+    }
+  }
+
+  private static final class Segment {
+    final long base;
+    final MappedByteBuffer buf;
+
+    Segment(long base, MappedByteBuffer buf) {
+      this.base = base;
+      this.buf = buf;
+    }
+
+    int capacity() {
+      return buf.capacity();
+    }
+
+    int end() {
+      return buf.getInt(SEGMENT_END);
+    }
+
+    int live() {
+      return buf.getInt(SEGMENT_LIVE);
+    }
+
+    int liveBytes() {
+      return buf.getInt(SEGMENT_LIVE_BYTES);
+    }
+
+    boolean isSealed() {
+      return (buf.getInt(SEGMENT_FLAGS) & SEALED) != 0;
+    }
+
+    boolean isDeleted() {
+      return (buf.getInt(SEGMENT_FLAGS) & DELETED) != 0;
+    }
+
+    void setFlag(int flag) {
+      buf.putInt(SEGMENT_FLAGS, buf.getInt(SEGMENT_FLAGS) | flag);
+    }
+  }
+
+  /** An entry becoming visible after due, unless its visibility changed meanwhile. */
+  private static final class Timer {
+    final long due;
+    final Entry entry;
+
+    Timer(long due, Entry entry) {
+      this.due = due;
+      this.entry = entry;
+    }
+  }
+
+  private final Path dir;
+  private final String delimiter; // Of the text format, to convert queues written in it
+  private final long segmentSize;
+
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private final GroupCommit commit;
+  private Segment cursorSegment; // The read cursor: the next record this process has not come across
+  private int cursorPos;
+  // Records behind the cursor that became visible again, e.g. after their visibility timeout
+  private final PriorityQueue<Entry> due = new PriorityQueue<>(Comparator.comparingLong(e -> e.offset));
+  private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.due));
+  private boolean loaded;
+
+  QueueLog(Path dir, String delimiter, long segmentSize) {
+    this.dir = dir;
+    this.commit = new GroupCommit(dir);
+    this.delimiter = delimiter;
+    this.segmentSize = Math.max(SEGMENT_HEADER + RECORD_HEADER, Math.min(Integer.MAX_VALUE, segmentSize));
+  }
+
+  /** Starts over if needed, and forgets segments that other processes deleted. */
+  void refresh() throws IOException {
+    if (!loaded) {
+      load();
+    }
+    while (!segments.isEmpty() && segments.firstEntry().getValue().isDeleted()) {
+      segments.pollFirstEntry();
+    }
+  }
+
+  /** Forgets everything, for the next refresh to start over from the first segment. */
+  void invalidate() {
+    loaded = false;
+    segments.clear();
+    cursorSegment = null;
+    due.clear();
+    timers.clear();
+  }
+
+  /**
+   * Takes the visible message with the lowest offset. Unless the caller then delivers or acks it,
+   * it must invalidate the log.
+   *
+   * @return the message; null if no message is visible.
+   */
+  Entry next(long now) throws IOException {
+    for (Timer t; (t = timers.peek()) != null && t.due < now; ) {
+      timers.poll();
+      Entry e = t.entry;
+      if (e.timerDue != t.due || e.isAcked()) {
+        continue; // Superseded by a later timer, or gone
+      }
+      e.timerDue = 0;
+      long visibleFrom = e.visibleFrom();
+      if (visibleFrom >= now) {
+        schedule(e, visibleFrom); // Delivered again by another process
+      } else if (!e.queued) {
+        e.queued = true;
+        due.add(e);
+      }
+    }
+
+    for (;;) {
+      boolean atRecord = advanceCursor();
+      Entry d = due.peek();
+      if (!atRecord && d == null) {
+        return null;
+      }
+
+      Entry e;
+      if (atRecord && (d == null || cursorSegment.base + cursorPos < d.offset)) {
+        e = new Entry(cursorSegment, cursorPos);
+        int length = cursorSegment.buf.getInt(cursorPos + BODY_LENGTH);
+        if (length < 0 || length > cursorSegment.end() - cursorPos - RECORD_HEADER) {
+          // A torn length: the records after it cannot be found, so the rest of the segment is lost
+          System.err.println("Skipping the corrupt end of " + segmentPath(cursorSegment.base) + " from offset " + e.offset);
+          cursorPos = cursorSegment.end();
+          continue;
+        }
+        cursorPos += recordSize(length);
+      } else {
+        e = due.poll();
+        e.queued = false;
+      }
+
+      if (e.isAcked()) {
+        continue;
+      }
+      long visibleFrom = e.visibleFrom();
+      if (visibleFrom < now) {
+        if (!e.isIntact()) {
+          System.err.println("Dropping the corrupt record at offset " + e.offset + " of " + segmentPath(e.seg.base));
+          ack(e);
+          continue;
+        }
+        return e;
+      }
+      schedule(e, visibleFrom); // In flight or delayed
+    }
+  }
+
+  /** Records a delivery in place: one more attempt, and invisible until visibleFrom. */
+  void deliver(Entry e, long visibleFrom, long receiptShard) {
+    ByteBuffer buf = e.seg.buf;
+    buf.putInt(e.pos + ATTEMPTS, e.attempts() + 1);
+    buf.putLong(e.pos + VISIBLE_FROM, visibleFrom);
+    buf.putLong(e.pos + RECEIPT_SHARD, receiptShard);
+    commit.write(e.seg.buf);
+    schedule(e, visibleFrom);
+  }
+
+  /** Marks a message taken by {@link #next} acked, i.e. deleted or dead-lettered. */
+  void ack(Entry e) throws IOException {
+    ack(e.seg, e.pos);
+  }
+
+  /**
+   * Marks the message a receipt handle is from acked, if the handle is from its latest delivery
+   * and its visibility timeout has not expired.
+   *
+   * @return true if the message was acked.
+   */
+  boolean ack(ReceiptHandle handle, long now) throws IOException {
+    Segment seg = segmentOf(handle.slot);
+    if (seg == null) {
+      return false;
+    }
+    long pos = handle.slot - seg.base;
+    if (pos < SEGMENT_HEADER || pos >= seg.end() || pos % 8 != 0) {
+      return false;
+    }
+
+    ByteBuffer buf = seg.buf;
+    int p = (int) pos;
+    if (seg.isDeleted()
+        || buf.getInt(p + ATTEMPTS) != handle.generation
+        || buf.getLong(p + RECEIPT_SHARD) != handle.shard
+        || buf.getLong(p + VISIBLE_FROM) < now) {
+      return false;
+    }
+    ack(seg, p);
+    return true;
+  }
+
+  /** Appends records to the active segment, starting new segments as needed. */
+  void append(List<Record> records) throws IOException {
+    for (Record record : records) {
+      int size = recordSize(record.body.remaining());
+      Segment active = activeSegment(size);
+      int pos = active.end();
+      ByteBuffer buf = active.buf;
+      buf.putInt(pos + BODY_LENGTH, record.body.remaining());
+      buf.putInt(pos + ATTEMPTS, record.attempts);
+      buf.putLong(pos + VISIBLE_FROM, record.visibleFrom);
+      buf.putLong(pos + RECEIPT_SHARD, 0);
+      buf.put(pos + FLAGS, (byte) record.flags);
+      buf.put(pos + CODEC, (byte) record.codec);
+      buf.put(pos + VERSION, (byte) RECORD_VERSION);
+      ByteBuffer body = buf.duplicate();
+      body.position(pos + RECORD_HEADER);
+      body.put(record.body.duplicate());
+      buf.putInt(pos + CHECKSUM, checksum(buf, pos));
+
+      buf.putInt(SEGMENT_LIVE, active.live() + 1);
+      buf.putInt(SEGMENT_LIVE_BYTES, active.liveBytes() + size);
+      buf.putInt(SEGMENT_END, pos + size); // Publishes the record
+      commit.write(active.buf);
+    }
+  }
+
+  /** Drops every message, keeping offsets growing so that no receipt handle is reused. */
+  void purge() throws IOException {
+    Segment active = activeSegment(0);
+    Segment next = createSegment(active.base + active.end(), segmentSize);
+    for (Segment seg : new ArrayList<>(segments.values())) {
+      if (seg != next) {
+        seg.setFlag(SEALED);
+        delete(seg);
+      }
+    }
+    cursorSegment = next;
+    cursorPos = SEGMENT_HEADER;
+    due.clear();
+    timers.clear();
+  }
+
+  /**
+   * Takes up to max live messages that are not in flight from the oldest sealed segment behind the
+   * cursor whose live records fill at most threshold of it. Appending their copies with {@link
+   * #copyOf} and then acking them leaves the segment with in-flight records only, so it is deleted
+   * once they are acked too; a record whose visibility timeout expires meanwhile is moved by a
+   * later compaction. Only segments behind the cursor are compacted, so that moving a message to
+   * the end of the log delays only messages that were skipped or redelivered already.
+   *
+   * @return the messages; empty if no segment needs compacting.
+   */
+  List<Entry> compactable(long now, int max, double threshold) {
+    List<Entry> entries = new ArrayList<>();
+    if (cursorSegment == null) {
+      return entries;
+    }
+    for (Segment seg : segments.headMap(cursorSegment.base).values()) {
+      if (seg.isDeleted() || !seg.isSealed() || seg.liveBytes() > threshold * (seg.end() - SEGMENT_HEADER)) {
+        continue;
+      }
+      for (int pos = SEGMENT_HEADER; pos < seg.end() && entries.size() < max; ) {
+        int length = seg.buf.getInt(pos + BODY_LENGTH);
+        if (length < 0 || length > seg.end() - pos - RECORD_HEADER) {
+          break; // A torn length, as in next(): the records after it cannot be found
+        }
+        Entry e = new Entry(seg, pos);
+        if (!e.isAcked() && (e.attempts() == 0 || e.visibleFrom() < now) && e.isIntact()) {
+          entries.add(e); // Not in flight, so no receipt handle names it; a corrupt one is left to next
+        }
+        pos += recordSize(length);
+      }
+      if (!entries.isEmpty()) {
+        break;
+      }
+    }
+    return entries;
+  }
+
+  /** A new record with the body, attempts and visibility of a message, to move it. */
+  Record copyOf(Entry e) {
+    return new Record(e.body(), e.seg.buf.get(e.pos + FLAGS), e.codec(), e.visibleFrom(), e.attempts());
+  }
+
+  /**
+   * Writes the checkpoint: the cursor, and the records behind it that this process tracks because
+   * they are live. Writes nothing if this process has not walked the log.
+   */
+  void checkpoint() throws IOException {
+    if (cursorSegment == null) {
+      return;
+    }
+    TreeSet<Long> live = new TreeSet<>();
+    for (Entry e : due) {
+      live.add(e.offset);
+    }
+    for (Timer t : timers) {
+      if (t.entry.timerDue == t.due && !t.entry.isAcked()) {
+        live.add(t.entry.offset);
+      }
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(16 + 8 * live.size() + 4);
+    buf.putInt(CHECKPOINT_MAGIC).putLong(cursorSegment.base + cursorPos).putInt(live.size());
+    for (long offset : live) {
+      buf.putLong(offset);
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(buf.array(), 0, buf.position());
+    buf.putInt((int) crc.getValue());
+
+    Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+    Files.write(tmp, buf.array());
+    Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** The writes of this process to the segments, to make them durable. */
+  GroupCommit commit() {
+    return commit;
+  }
+
+  /** The number of segment files, as far as this process knows, for tests. */
+  int segmentCount() {
+    return segments.size();
+  }
+
+  private void load() throws IOException {
+    invalidate();
+    Files.createDirectories(dir);
+    convertTextFormat();
+    discoverSegments();
+    restoreCheckpoint();
+    loaded = true;
+  }
+
+  /**
+   * Resumes from the checkpoint, if there is a valid one. Records behind its cursor that it does
+   * not list were acked when it was written, and records never become live again, so only the ones
+   * it lists need tracking; records are only appended after the cursor, and the walk finds them.
+   */
+  private void restoreCheckpoint() throws IOException {
+    ByteBuffer buf;
+    try {
+      buf = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(CHECKPOINT_FILE)));
+    } catch (NoSuchFileException e) {
+      return;
+    }
+    if (buf.remaining() < 20 || buf.getInt(0) != CHECKPOINT_MAGIC) {
+      return;
+    }
+    int count = buf.getInt(12);
+    if (count < 0 || buf.remaining() != 16 + 8L * count + 4) {
+      return;
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(buf.array(), 0, buf.remaining() - 4);
+    if (buf.getInt(buf.remaining() - 4) != (int) crc.getValue()) {
+      return; // Torn or corrupt: walk the whole log instead
+    }
+
+    long cursor = buf.getLong(4);
+    Map.Entry<Long, Segment> floor = segments.floorEntry(cursor);
+    if (floor != null && cursor - floor.getKey() <= floor.getValue().end()) {
+      cursorSegment = floor.getValue();
+      cursorPos = (int) Math.max(SEGMENT_HEADER, cursor - floor.getKey());
+    } else {
+      Map.Entry<Long, Segment> ceiling = segments.ceilingEntry(cursor);
+      if (ceiling == null) {
+        return; // Does not match the segments, e.g. of a queue deleted and created again
+      }
+      cursorSegment = ceiling.getValue(); // The cursor's segment was deleted
+      cursorPos = SEGMENT_HEADER;
+    }
+
+    buf.position(16);
+    for (int i = 0; i < count; i++) {
+      long offset = buf.getLong();
+      Map.Entry<Long, Segment> seg = segments.floorEntry(offset);
+      long pos = seg == null ? -1 : offset - seg.getKey();
+      if (pos >= SEGMENT_HEADER && pos < seg.getValue().end()) {
+        Entry e = new Entry(seg.getValue(), (int) pos);
+        if (!e.isAcked()) {
+          schedule(e, e.visibleFrom()); // Queued as due by the next pull once visible
+        }
+      }
+    }
+  }
+
+  /** Maps the segment files this process does not know yet. */
+  private void discoverSegments() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        long base;
+        try {
+          base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          continue; // Not a segment
+        }
+        if (!segments.containsKey(base)) {
+          Segment seg = openSegment(base);
+          if (seg != null && seg.isSealed() && seg.live() == 0 && !seg.isDeleted()) {
+            delete(seg); // Emptied by a process that died before deleting it
+          } else if (seg != null && !seg.isDeleted()) {
+            segments.put(base, seg);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the cursor past segments without live records, and on to the next segment at the end of
+   * a sealed one.
+   *
+   * @return true if the cursor is at a record.
+   */
+  private boolean advanceCursor() throws IOException {
+    for (;;) {
+      if (cursorSegment == null) {
+        if (segments.isEmpty()) {
+          return false;
+        }
+        cursorSegment = segments.firstEntry().getValue();
+        cursorPos = SEGMENT_HEADER;
+      }
+
+      Segment seg = cursorSegment;
+      if (!seg.isDeleted()) {
+        if (seg.live() == 0) {
+          cursorPos = Math.max(cursorPos, seg.end()); // Nothing to deliver up to its end
+        }
+        if (cursorPos < seg.end()) {
+          return true;
+        }
+        if (!seg.isSealed()) {
+          return false;
+        }
+      }
+      Segment next = nextSegment(seg);
+      if (next == null) {
+        return false;
+      }
+      cursorSegment = next;
+      cursorPos = SEGMENT_HEADER;
+    }
+  }
+
+  /** The segment after a sealed one, or null if there is none yet. */
+  private Segment nextSegment(Segment seg) throws IOException {
+    Map.Entry<Long, Segment> higher = segments.higherEntry(seg.base);
+    if (higher != null) {
+      return higher.getValue();
+    }
+    if (!seg.isDeleted()) {
+      Segment next = openSegment(seg.base + seg.end());
+      if (next != null) {
+        segments.put(next.base, next);
+        return next;
+      }
+    }
+    discoverSegments(); // The next one was deleted too, e.g. by a purge
+    higher = segments.higherEntry(seg.base);
+    return higher == null ? null : higher.getValue();
+  }
+
+  /** The segment holding an offset, or null. */
+  private Segment segmentOf(long offset) throws IOException {
+    Map.Entry<Long, Segment> floor = segments.floorEntry(offset);
+    if (floor == null || offset >= floor.getValue().base + floor.getValue().end()) {
+      discoverSegments(); // Started by another process since
+      floor = segments.floorEntry(offset);
+    }
+    return floor == null ? null : floor.getValue();
+  }
+
+  /** The unsealed last segment, with room for size bytes; seals it and starts another if full. */
+  private Segment activeSegment(int size) throws IOException {
+    if (segments.isEmpty()) {
+      discoverSegments();
+    }
+    if (segments.isEmpty()) {
+      createSegment(0, segmentSize);
+    }
+
+    Segment active = segments.lastEntry().getValue();
+    while (active.isSealed()) { // Another process started one since
+      Segment next = nextSegment(active);
+      if (next == null) {
+        next = createSegment(active.base + active.end(), Math.max(segmentSize, SEGMENT_HEADER + size));
+      }
+      active = next;
+    }
+
+    if (active.end() + size > active.capacity()) {
+      Segment next = createSegment(active.base + active.end(), Math.max(segmentSize, SEGMENT_HEADER + size));
+      active.setFlag(SEALED); // Only once the next one exists, so that readers always find it
+      commit.write(active.buf);
+      if (active.live() == 0) {
+        delete(active);
+      }
+      active = next;
+    }
+    return active;
+  }
+
+  /** Creates and maps a preallocated segment, replacing a file left by a process that died. */
+  private Segment createSegment(long base, long capacity) throws IOException {
+    MappedByteBuffer buf;
+    try (RandomAccessFile file = new RandomAccessFile(segmentPath(base).toFile(), "rw")) {
+      file.setLength(0);
+      file.setLength(capacity);
+      buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+    buf.putInt(SEGMENT_END, SEGMENT_HEADER);
+    buf.putInt(SEGMENT_VERSION, RECORD_VERSION);
+    buf.putInt(0, MAGIC);
+    commit.writeDirectory();
+    commit.write(buf);
+    Segment seg = new Segment(base, buf);
+    segments.put(base, seg);
+    return seg;
+  }
+
+  /** Maps an existing segment, or returns null if there is no such file or it is not a segment. */
+  private Segment openSegment(long base) throws IOException {
+    MappedByteBuffer buf;
+    try (RandomAccessFile file = new RandomAccessFile(segmentPath(base).toFile(), "rw")) {
+      long length = file.length();
+      if (length < SEGMENT_HEADER || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    return buf.getInt(0) == MAGIC ? new Segment(base, buf) : null;
+  }
+
+  private void ack(Segment seg, int pos) throws IOException {
+    seg.buf.putInt(pos + ATTEMPTS, ACKED);
+    int live = seg.live() - 1;
+    seg.buf.putInt(SEGMENT_LIVE, live);
+    seg.buf.putInt(SEGMENT_LIVE_BYTES, seg.liveBytes() - recordSize(seg.buf.getInt(pos + BODY_LENGTH)));
+    if (live == 0 && seg.isSealed()) {
+      delete(seg);
+    } else {
+      commit.write(seg.buf);
+    }
+  }
+
+  /** Deletes a segment; the flag tells the processes that have it mapped. */
+  private void delete(Segment seg) throws IOException {
+    seg.setFlag(DELETED);
+    segments.remove(seg.base);
+    Files.deleteIfExists(segmentPath(seg.base));
+    commit.writeDirectory();
+  }
+
+  private void schedule(Entry e, long visibleFrom) {
+    e.timerDue = visibleFrom;
+    timers.add(new Timer(visibleFrom, e));
+  }
+
+  private Path segmentPath(long base) {
+    return dir.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+  }
+
+  /** The checksum of the record at pos, whose length must be within the buffer. */
+  private static int checksum(ByteBuffer buf, int pos) {
+    CRC32C crc = new CRC32C();
+    ByteBuffer field = buf.duplicate();
+    field.limit(pos + BODY_LENGTH + 4).position(pos + BODY_LENGTH);
+    crc.update(field);
+    field.limit(pos + CHECKSUM).position(pos + FLAGS);
+    crc.update(field);
+    field.limit(pos + RECORD_HEADER + buf.getInt(pos + BODY_LENGTH)).position(pos + RECORD_HEADER);
+    crc.update(field);
+    return (int) crc.getValue();
+  }
+
+  private static int recordSize(int bodyLength) {
+    return (RECORD_HEADER + bodyLength + 7) & ~7;
+  }
+
+  //
+  // Conversion of queues written in the text format: the original single messages file, or text
+  // segments with a state log. Each record is a line
+  //		<attempts>[b][codec id]<delimiter><visible from><delimiter><receipt><delimiter><body>
+  // with a Base64-encoded body if it is binary or compressed, named by its offset; the newest state
+  // log has lines "d:offset:attempts:visibleFrom:receipt", "a:offset" and "c:offset" (every record
+  // below offset is gone) for what happened to them since. The live records are appended as binary
+  // records keeping their attempts and visibility; the receipts issued before cannot be matched, so
+  // a message in flight is delivered again after its visibility timeout.
+  //
+
+  /**
+   * Converts the queue from the text format now, rather than when it is first used.
+   *
+   * @return the number of messages converted; -1 if the queue was not in the text format.
+   */
+  int migrate() throws IOException {
+    invalidate();
+    Files.createDirectories(dir);
+    return convertTextFormat();
+  }
+
+  private int convertTextFormat() throws IOException {
+    TreeMap<Long, Path> textSegments = new TreeMap<>();
+    List<Path> stateLogs = new ArrayList<>();
+    Path legacy = dir.resolve(LEGACY_FILE);
+    if (Files.exists(legacy)) {
+      textSegments.put(0L, legacy);
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TEXT_SEGMENT_SUFFIX) && textGeneration(name, TEXT_SEGMENT_SUFFIX) >= 0) {
+          textSegments.put(textGeneration(name, TEXT_SEGMENT_SUFFIX), file);
+        } else if (name.endsWith(TEXT_STATE_SUFFIX) && textGeneration(name, TEXT_STATE_SUFFIX) >= 0) {
+          stateLogs.add(file);
+        }
+      }
+    }
+    if (textSegments.isEmpty() && stateLogs.isEmpty()) {
+      return -1;
+    }
+
+    // The fields of every record, by offset: attempts with flags, visible from, body
+    TreeMap<Long, String[]> lines = new TreeMap<>();
+    for (Map.Entry<Long, Path> textSegment : textSegments.entrySet()) {
+      byte[] bytes = Files.readAllBytes(textSegment.getValue());
+      int start = 0;
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] == '\n') {
+          String[] fields = new String(bytes, start, i - start, UTF_8).split(delimiter, 4);
+          if (fields.length == 4) {
+            lines.put(textSegment.getKey() + start, new String[] {fields[0], fields[1], fields[3]});
+          }
+          start = i + 1;
+        }
+      }
+    }
+
+    stateLogs.sort(Comparator.comparingLong(file -> textGeneration(file.getFileName().toString(), TEXT_STATE_SUFFIX)));
+    if (!stateLogs.isEmpty()) {
+      for (String event : Files.readAllLines(stateLogs.get(stateLogs.size() - 1), UTF_8)) {
+        String[] fields = event.split(delimiter);
+        try {
+          long offset = Long.parseLong(fields[1]);
+          if (event.startsWith("d") && lines.containsKey(offset)) {
+            String[] line = lines.get(offset);
+            line[0] = fields[2] + flagsOf(line[0]);
+            line[1] = fields[3];
+          } else if (event.startsWith("a")) {
+            lines.remove(offset);
+          } else if (event.startsWith("c")) {
+            lines.headMap(offset).clear();
+          }
+        } catch (RuntimeException e) {
+          // Torn line
+        }
+      }
+    }
+
+    List<Record> records = new ArrayList<>();
+    for (String[] line : lines.values()) {
+      String flags = flagsOf(line[0]);
+      int recordFlags = 0;
+      char codec = 0;
+      for (char flag : flags.toCharArray()) {
+        if (flag == 'b') {
+          recordFlags |= BINARY;
+        } else {
+          codec = flag;
+        }
+      }
+      try {
+        byte[] body = flags.isEmpty() ? line[2].getBytes(UTF_8) : Base64.getDecoder().decode(line[2]);
+        int attempts = Integer.parseInt(line[0].substring(0, line[0].length() - flags.length()));
+        records.add(new Record(ByteBuffer.wrap(body), recordFlags, codec, Long.parseLong(line[1]), attempts));
+      } catch (IllegalArgumentException e) {
+        // Torn record
+      }
+    }
+
+    discoverSegments();
+    append(records);
+    for (Path file : textSegments.values()) {
+      Files.deleteIfExists(file);
+    }
+    for (Path file : stateLogs) {
+      Files.deleteIfExists(file);
+    }
+    segments.clear();
+    return records.size();
+  }
+
+  /** The flags after the attempts in an attempts field of the text format. */
+  private static String flagsOf(String field) {
+    int start = field.length();
+    while (start > 0 && !Character.isDigit(field.charAt(start - 1))) {
+      start--;
+    }
+    return field.substring(start);
+  }
+
+  /** The number a text-format file is named by, or -1 if it is not named by one. */
+  private static long textGeneration(String name, String suffix) {
+    try {
+      return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
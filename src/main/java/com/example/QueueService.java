@@ -1,12 +1,76 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public interface QueueService {
   /** push a message onto a queue. */
   public void push(String queueUrl, String messageBody);
 
+  /**
+   * push a message with a binary body: the bytes between the buffer's position and limit, which is
+   * read back by Message.getBodyBuffer(). Backends that can only store text encode the bytes.
+   */
+  public void push(String queueUrl, ByteBuffer messageBody);
+
+  /**
+   * push several messages onto a queue. Implementations send the whole batch in as few storage or
+   * network operations as they can.
+   */
+  public default void pushBatch(String queueUrl, List<String> messageBodies) {
+    for (String messageBody : messageBodies) {
+      push(queueUrl, messageBody);
+    }
+  }
+
   /** retrieves a single message from a queue. */
   public Message pull(String queueUrl);
 
+  /**
+   * retrieves a single message from a queue, waiting up to waitTime for one to become available.
+   * Returns null if no message arrives in time. Implementations that are not notified of new
+   * messages fall back to polling pull(queueUrl).
+   */
+  public default Message pull(String queueUrl, Duration waitTime) {
+    long deadline = System.nanoTime() + waitTime.toNanos();
+    Message msg = pull(queueUrl);
+
+    while (msg == null && deadline - System.nanoTime() > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(
+            Math.min(deadline - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(50)));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      msg = pull(queueUrl);
+    }
+    return msg;
+  }
+
+  /**
+   * retrieves up to maxMessages messages from a queue. Returns an empty list if no message is
+   * visible.
+   */
+  public default List<Message> pullBatch(String queueUrl, int maxMessages) {
+    List<Message> messages = new ArrayList<>();
+    Message msg;
+    while (messages.size() < maxMessages && (msg = pull(queueUrl)) != null) {
+      messages.add(msg);
+    }
+    return messages;
+  }
+
   /** deletes a message from the queue that was received by pull(). */
   public void delete(String queueUrl, String receiptId);
+
+  /** deletes several messages received by pull() or pullBatch(). */
+  public default void deleteBatch(String queueUrl, List<String> receiptIds) {
+    for (String receiptId : receiptIds) {
+      delete(queueUrl, receiptId);
+    }
+  }
 }
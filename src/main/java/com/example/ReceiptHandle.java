@@ -0,0 +1,79 @@
+package com.example;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A compact, self-describing receipt handle: {@code <shard>.<slot>.<generation>}, each field in
+ * base 36.
+ *
+ * <p>The shard says which queue (or, for the file queue, which process) issued the handle, the slot
+ * which message it refers to, and the generation which delivery of that message. A queue can
+ * therefore look the message up directly and reject a handle from an earlier delivery by comparing
+ * generations.
+ *
+ * <p>Slots come from {@link #nextSequence()}, which hands out numbers from blocks reserved per
+ * thread, so issuing a handle touches no shared state in the common case.
+ */
+final class ReceiptHandle {
+  /** A random id for this JVM, for handles that must stay unique across processes. */
+  static final long NODE_ID = new SecureRandom().nextLong();
+
+  private static final int BLOCK_SIZE = 1024;
+  private static final AtomicLong nextBlock = new AtomicLong(1);
+  private static final ThreadLocal<long[]> threadBlock = ThreadLocal.withInitial(() -> new long[2]);
+
+  final long shard;
+  final long slot;
+  final int generation;
+
+  private ReceiptHandle(long shard, long slot, int generation) {
+    this.shard = shard;
+    this.slot = slot;
+    this.generation = generation;
+  }
+
+  /** Returns a number that no other call in this JVM returns. Never returns 0. */
+  static long nextSequence() {
+    long[] block = threadBlock.get(); // {next, end}
+    if (block[0] == block[1]) {
+      block[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+      block[1] = block[0] + BLOCK_SIZE;
+    }
+    return block[0]++;
+  }
+
+  static String encode(long shard, long slot, int generation) {
+    return Long.toUnsignedString(shard, 36)
+        + '.'
+        + Long.toUnsignedString(slot, 36)
+        + '.'
+        + Integer.toUnsignedString(generation, 36);
+  }
+
+  /**
+   * Decodes a handle produced by {@link #encode}.
+   *
+   * @return the handle; null if receiptId is not a well-formed handle.
+   */
+  static ReceiptHandle parse(String receiptId) {
+    if (receiptId == null) {
+      return null;
+    }
+
+    int first = receiptId.indexOf('.');
+    int second = receiptId.indexOf('.', first + 1);
+    if (first < 0 || second < 0 || receiptId.indexOf('.', second + 1) >= 0) {
+      return null;
+    }
+
+    try {
+      return new ReceiptHandle(
+          Long.parseUnsignedLong(receiptId.substring(0, first), 36),
+          Long.parseUnsignedLong(receiptId.substring(first + 1, second), 36),
+          Integer.parseUnsignedInt(receiptId.substring(second + 1), 36));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
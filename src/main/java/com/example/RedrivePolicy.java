@@ -0,0 +1,34 @@
+package com.example;
+
+/**
+ * Says when a queue gives up on a message: once a message has been received maxReceiveCount times
+ * without being deleted, the next pull moves it to the dead-letter queue instead of delivering it.
+ */
+public final class RedrivePolicy {
+  private final int maxReceiveCount;
+  private final String deadLetterQueueUrl;
+
+  public RedrivePolicy(int maxReceiveCount, String deadLetterQueueUrl) {
+    if (maxReceiveCount < 1) {
+      throw new IllegalArgumentException("maxReceiveCount must be at least 1: " + maxReceiveCount);
+    }
+    if (deadLetterQueueUrl == null) {
+      throw new IllegalArgumentException("deadLetterQueueUrl must be set");
+    }
+    this.maxReceiveCount = maxReceiveCount;
+    this.deadLetterQueueUrl = deadLetterQueueUrl;
+  }
+
+  public int getMaxReceiveCount() {
+    return maxReceiveCount;
+  }
+
+  public String getDeadLetterQueueUrl() {
+    return deadLetterQueueUrl;
+  }
+
+  /** Whether a message received attempts times has to go to the dead-letter queue. */
+  boolean isExhausted(int attempts) {
+    return attempts >= maxReceiveCount;
+  }
+}
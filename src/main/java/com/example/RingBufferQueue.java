@@ -0,0 +1,154 @@
+package com.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer FIFO queue of MessageStore handles on a
+ * preallocated ring buffer.
+ *
+ * <p>Each slot carries a sequence number that says whose turn it is: a producer may fill slot
+ * {@code pos & mask} when its sequence equals {@code pos}, and a consumer may empty it when its
+ * sequence equals {@code pos + 1}. Producers and consumers therefore only contend on their own
+ * position counter, which is padded onto its own cache line, and no node is allocated per element.
+ * The elements are longs, so a queued message costs the ring 16 bytes, its handle and sequence,
+ * whether or not the slot is in use.
+ *
+ * <p>The capacity is rounded up to a power of two. forEach is weakly consistent, and size is only
+ * an estimate while other threads are using the queue. Handles cannot be removed from the middle.
+ */
+class RingBufferQueue implements HandleQueue {
+  private final int mask;
+  private final AtomicLongArray elements;
+  private final AtomicLongArray sequences;
+
+  private final PaddedAtomicLong enqueuePosition = new PaddedAtomicLong();
+  private final PaddedAtomicLong dequeuePosition = new PaddedAtomicLong();
+
+  RingBufferQueue(int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Ring buffer capacity out of range: " + capacity);
+    }
+    int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+    this.mask = size - 1;
+    this.elements = new AtomicLongArray(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /** The number of elements the ring can hold. */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /** Adds a handle at the tail, or returns false if the ring is full. */
+  @Override
+  public boolean offer(long e) {
+    if (e == MessageStore.NO_HANDLE) {
+      throw new IllegalArgumentException("No message to queue");
+    }
+    long pos = enqueuePosition.get();
+
+    for (;;) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+
+      if (diff == 0) {
+        if (enqueuePosition.compareAndSet(pos, pos + 1)) {
+          elements.lazySet(index, e);
+          sequences.lazySet(index, pos + 1); // publishes the element to consumers
+          return true;
+        }
+        pos = enqueuePosition.get();
+      } else if (diff < 0) {
+        return false; // the slot still holds an element from the previous lap
+      } else {
+        pos = enqueuePosition.get(); // another producer took this slot
+      }
+    }
+  }
+
+  /** Removes the handle at the head, or returns NO_HANDLE if the ring is empty. */
+  @Override
+  public long poll() {
+    long pos = dequeuePosition.get();
+
+    for (;;) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - (pos + 1);
+
+      if (diff == 0) {
+        if (dequeuePosition.compareAndSet(pos, pos + 1)) {
+          long e = elements.get(index);
+          elements.lazySet(index, MessageStore.NO_HANDLE);
+          sequences.lazySet(index, pos + mask + 1); // hands the slot to the next lap's producer
+          return e;
+        }
+        pos = dequeuePosition.get();
+      } else if (diff < 0) {
+        return MessageStore.NO_HANDLE; // the slot has not been filled yet
+      } else {
+        pos = dequeuePosition.get(); // another consumer took this slot
+      }
+    }
+  }
+
+  /** The handle at the head, or NO_HANDLE if the ring is empty. */
+  long peek() {
+    long pos = dequeuePosition.get();
+    int index = (int) pos & mask;
+    return sequences.get(index) == pos + 1 ? elements.get(index) : MessageStore.NO_HANDLE;
+  }
+
+  /** Unsupported: a ring only gives up its head. */
+  @Override
+  public boolean remove(long handle) {
+    throw new UnsupportedOperationException("A ring buffer cannot remove from the middle");
+  }
+
+  @Override
+  public int size() {
+    long size = enqueuePosition.get() - dequeuePosition.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Passes the handles from the head to the tail to action without blocking producers or
+   * consumers. Handles pulled meanwhile are skipped, except the one already read when it was
+   * pulled, and handles pushed meanwhile may or may not be seen; no handle is passed twice.
+   */
+  @Override
+  public void forEach(LongConsumer action) {
+    long pos = dequeuePosition.get();
+    for (;;) {
+      pos = Math.max(pos, dequeuePosition.get());
+      int index = (int) pos & mask;
+      if (sequences.get(index) != pos + 1) {
+        return; // the tail: the slot has not been filled yet
+      }
+      long e = elements.get(index);
+      if (e != MessageStore.NO_HANDLE && sequences.get(index) == pos + 1) {
+        pos++;
+        action.accept(e);
+      }
+      // Otherwise a consumer emptied the slot while we read it; move on to the new head
+    }
+  }
+
+  /** An AtomicLong padded out so that the two position counters never share a cache line. */
+  @SuppressWarnings("unused")
+  private static final class PaddedAtomicLong extends AtomicLong {
+    private static final long serialVersionUID = 1L;
+
+    private long p1, p2, p3, p4, p5, p6, p7, p8;
+  }
+}
@@ -0,0 +1,76 @@
+package com.example;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * An unbounded, lock-free priority queue of MessageStore handles on a ConcurrentSkipListSet.
+ *
+ * <p>Handles are kept in the given order, which tells every two queued messages apart. Push and
+ * pull are O(log n) CAS operations on the skip list, so producers and consumers on different parts
+ * of the list do not block each other, unlike the single lock of a HeapPriorityQueue. The price is
+ * a skip list node and a boxed handle per message, which the other engines do without.
+ *
+ * <p>Pulls are linearizable: every pull removes the first message in order among those present at
+ * that moment. A message put back after its visibility timeout keeps its priority and arrival, so
+ * it returns to its original position.
+ */
+class SkipListPriorityQueue implements HandleQueue {
+  private final ConcurrentSkipListSet<Long> handles;
+
+  // ConcurrentSkipListSet.size() walks the whole list, so keep count separately.
+  private final LongAdder count = new LongAdder();
+
+  SkipListPriorityQueue(MessageOrder order) {
+    this.handles = new ConcurrentSkipListSet<>(order::compare);
+  }
+
+  @Override
+  public boolean offer(long handle) {
+    if (handle == MessageStore.NO_HANDLE) {
+      throw new IllegalArgumentException("No message to queue");
+    }
+    if (handles.add(handle)) {
+      count.increment();
+    }
+    return true;
+  }
+
+  @Override
+  public long poll() {
+    Long handle = handles.pollFirst();
+    if (handle == null) {
+      return MessageStore.NO_HANDLE;
+    }
+    count.decrement();
+    return handle;
+  }
+
+  @Override
+  public boolean remove(long handle) {
+    if (handles.remove(handle)) {
+      count.decrement();
+      return true;
+    }
+    return false;
+  }
+
+  /** Passes every handle to action in pull order. */
+  @Override
+  public void forEach(LongConsumer action) {
+    for (Long handle : handles) {
+      action.accept(handle);
+    }
+  }
+
+  @Override
+  public int size() {
+    return Math.max(0, count.intValue());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return handles.isEmpty();
+  }
+}
@@ -0,0 +1,113 @@
+package com.example;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class SqsAsyncQueueService implements AsyncQueueService {
+  //
+  // The AsyncQueueService implementation intended for a production environment. Requests go
+  // through the SDK's asynchronous client, and the futures are completed from its callbacks, so no
+  // caller thread waits on the network.
+  //
+  private AmazonSQSAsync sqs;
+
+  // The longest WaitTimeSeconds SQS accepts on a single ReceiveMessage call.
+  private static final int MAX_WAIT_SECONDS = 20;
+
+  public SqsAsyncQueueService(AmazonSQSAsync sqsClient) {
+    this.sqs = sqsClient;
+  }
+
+  @Override
+  public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    sqs.sendMessageAsync(
+        new SendMessageRequest(queueUrl, messageBody), completing(future, result -> null));
+    return future;
+  }
+
+  @Override
+  public CompletableFuture<com.example.Message> pullAsync(String queueUrl) {
+    return receive(SqsQueueService.receiveRequest(queueUrl).withMaxNumberOfMessages(1));
+  }
+
+  /**
+   * Long-polls SQS. Waits longer than SQS allows on one call are split into several receive calls,
+   * each waiting at most MAX_WAIT_SECONDS and sent from the callback of the one before.
+   */
+  @Override
+  public CompletableFuture<com.example.Message> pullAsync(String queueUrl, Duration waitTime) {
+    return receiveUntil(queueUrl, System.nanoTime() + waitTime.toNanos());
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    sqs.deleteMessageAsync(
+        new DeleteMessageRequest(queueUrl, receiptId), completing(future, result -> null));
+    return future;
+  }
+
+  private CompletableFuture<com.example.Message> receiveUntil(String queueUrl, long deadline) {
+    long remaining = deadline - System.nanoTime();
+    // Round up so that a sub-second remainder still long-polls instead of spinning.
+    long waitSeconds = (remaining + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+
+    ReceiveMessageRequest request =
+        SqsQueueService.receiveRequest(queueUrl)
+            .withMaxNumberOfMessages(1)
+            .withWaitTimeSeconds((int) Math.max(0, Math.min(MAX_WAIT_SECONDS, waitSeconds)));
+    return receive(request)
+        .thenCompose(
+            msg ->
+                msg != null || deadline - System.nanoTime() <= 0
+                    ? CompletableFuture.completedFuture(msg)
+                    : receiveUntil(queueUrl, deadline));
+  }
+
+  private CompletableFuture<com.example.Message> receive(ReceiveMessageRequest request) {
+    CompletableFuture<com.example.Message> future = new CompletableFuture<>();
+    sqs.receiveMessageAsync(request, completing(future, SqsAsyncQueueService::firstMessage));
+    return future;
+  }
+
+  private static com.example.Message firstMessage(ReceiveMessageResult result) {
+    List<com.amazonaws.services.sqs.model.Message> messages = result.getMessages();
+    if (messages == null || messages.isEmpty()) {
+      return null;
+    }
+
+    return SqsQueueService.toMessage(messages.get(0)); // Decodes binary bodies
+  }
+
+  /** An SDK callback that completes future with the converted result, or with the error. */
+  private static <REQ extends AmazonWebServiceRequest, RES, T> AsyncHandler<REQ, RES> completing(
+      CompletableFuture<T> future, Function<RES, T> converter) {
+    return new AsyncHandler<REQ, RES>() {
+      @Override
+      public void onError(Exception exception) {
+        future.completeExceptionally(exception);
+      }
+
+      @Override
+      public void onSuccess(REQ request, RES result) {
+        try {
+          future.complete(converter.apply(result));
+        } catch (RuntimeException e) {
+          future.completeExceptionally(e);
+        }
+      }
+    };
+  }
+}
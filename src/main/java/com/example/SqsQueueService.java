@@ -1,9 +1,22 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 public class SqsQueueService implements QueueService {
   //
@@ -11,6 +24,16 @@ public class SqsQueueService implements QueueService {
   //
   private AmazonSQS sqs;
 
+  // The longest WaitTimeSeconds SQS accepts on a single ReceiveMessage call.
+  private static final int MAX_WAIT_SECONDS = 20;
+
+  // The most entries SQS accepts in one batch request, and messages in one ReceiveMessage call.
+  private static final int MAX_BATCH_SIZE = 10;
+
+  // SQS bodies are text, so a binary body is sent as Base64, marked by this message attribute.
+  static final String BODY_ENCODING = "BodyEncoding";
+  private static final String BASE64 = "base64";
+
   public SqsQueueService(AmazonSQSClient sqsClient) {
     this.sqs = sqsClient;
   }
@@ -20,22 +43,149 @@ public class SqsQueueService implements QueueService {
     sqs.sendMessage(queueUrl, messageBody);
   }
 
+  /** Sends the bytes as a Base64 body, which pulls decode back into a binary body. */
+  @Override
+  public void push(String queueUrl, ByteBuffer messageBody) {
+    sqs.sendMessage(
+        new SendMessageRequest(queueUrl, Base64.getEncoder().encodeToString(bytes(messageBody)))
+            .addMessageAttributesEntry(
+                BODY_ENCODING,
+                new MessageAttributeValue().withDataType("String").withStringValue(BASE64)));
+  }
+
+  /** Sends the messages with SendMessageBatch, up to MAX_BATCH_SIZE messages per request. */
+  @Override
+  public void pushBatch(String queueUrl, List<String> messageBodies) {
+    for (int from = 0; from < messageBodies.size(); from += MAX_BATCH_SIZE) {
+      List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+      int to = Math.min(from + MAX_BATCH_SIZE, messageBodies.size());
+      for (int i = from; i < to; i++) {
+        entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), messageBodies.get(i)));
+      }
+
+      checkBatchFailures("send", sqs.sendMessageBatch(queueUrl, entries).getFailed());
+    }
+  }
+
   @Override
   public com.example.Message pull(String queueUrl) {
     List<com.amazonaws.services.sqs.model.Message> messages =
-        sqs.receiveMessage(queueUrl).getMessages();
+        sqs.receiveMessage(receiveRequest(queueUrl)).getMessages();
 
     if (messages == null || messages.isEmpty()) {
       return null;
     }
 
-    com.amazonaws.services.sqs.model.Message sqsMsg = messages.get(0);
+    return toMessage(messages.get(0));
+  }
+
+  /**
+   * Long-polls SQS. Waits longer than SQS allows on one call are split into several receive calls,
+   * each waiting at most MAX_WAIT_SECONDS.
+   */
+  @Override
+  public com.example.Message pull(String queueUrl, Duration waitTime) {
+    long deadline = System.nanoTime() + waitTime.toNanos();
+
+    do {
+      long remaining = deadline - System.nanoTime();
+      // Round up so that a sub-second remainder still long-polls instead of spinning.
+      long waitSeconds = (remaining + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
 
-    return new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
+      ReceiveMessageRequest request =
+          receiveRequest(queueUrl)
+              .withMaxNumberOfMessages(1)
+              .withWaitTimeSeconds((int) Math.max(0, Math.min(MAX_WAIT_SECONDS, waitSeconds)));
+      List<com.amazonaws.services.sqs.model.Message> messages =
+          sqs.receiveMessage(request).getMessages();
+
+      if (messages != null && !messages.isEmpty()) {
+        return toMessage(messages.get(0));
+      }
+    } while (deadline - System.nanoTime() > 0);
+
+    return null;
+  }
+
+  /**
+   * Receives up to maxMessages messages, asking SQS for up to MAX_BATCH_SIZE per call until enough
+   * have arrived or the queue comes back empty.
+   */
+  @Override
+  public List<com.example.Message> pullBatch(String queueUrl, int maxMessages) {
+    List<com.example.Message> result = new ArrayList<>();
+
+    while (result.size() < maxMessages) {
+      ReceiveMessageRequest request =
+          receiveRequest(queueUrl)
+              .withMaxNumberOfMessages(Math.min(MAX_BATCH_SIZE, maxMessages - result.size()));
+      List<com.amazonaws.services.sqs.model.Message> messages =
+          sqs.receiveMessage(request).getMessages();
+
+      if (messages == null || messages.isEmpty()) {
+        break;
+      }
+      for (com.amazonaws.services.sqs.model.Message sqsMsg : messages) {
+        result.add(toMessage(sqsMsg));
+      }
+    }
+    return result;
   }
 
   @Override
   public void delete(String queueUrl, String receiptId) {
     sqs.deleteMessage(queueUrl, receiptId);
   }
+
+  /** Deletes the messages with DeleteMessageBatch, up to MAX_BATCH_SIZE messages per request. */
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    for (int from = 0; from < receiptIds.size(); from += MAX_BATCH_SIZE) {
+      List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+      int to = Math.min(from + MAX_BATCH_SIZE, receiptIds.size());
+      for (int i = from; i < to; i++) {
+        entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), receiptIds.get(i)));
+      }
+
+      checkBatchFailures("delete", sqs.deleteMessageBatch(queueUrl, entries).getFailed());
+    }
+  }
+
+  /** A receive request that also asks for the attribute marking binary bodies. */
+  static ReceiveMessageRequest receiveRequest(String queueUrl) {
+    return new ReceiveMessageRequest(queueUrl).withMessageAttributeNames(BODY_ENCODING);
+  }
+
+  /** Converts a received message, decoding a body sent by push(String, ByteBuffer). */
+  static com.example.Message toMessage(com.amazonaws.services.sqs.model.Message sqsMsg) {
+    Map<String, MessageAttributeValue> attributes = sqsMsg.getMessageAttributes();
+    MessageAttributeValue encoding = attributes == null ? null : attributes.get(BODY_ENCODING);
+    if (encoding == null || !BASE64.equals(encoding.getStringValue())) {
+      return new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
+    }
+
+    com.example.Message msg = new com.example.Message(null, sqsMsg.getReceiptHandle());
+    msg.setBodyBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(sqsMsg.getBody())));
+    return msg;
+  }
+
+  /** The bytes between the buffer's position and limit, leaving the buffer as it is. */
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /**
+   * SQS reports failed batch entries in the result rather than throwing, so surface them the same
+   * way a failed single-message call would.
+   */
+  private void checkBatchFailures(String action, List<BatchResultErrorEntry> failed) {
+    if (failed != null && !failed.isEmpty()) {
+      BatchResultErrorEntry first = failed.get(0);
+      throw new AmazonClientException(
+          "Failed to " + action + " " + failed.size() + " message(s) in batch, first error: "
+              + first.getCode() + " " + first.getMessage());
+    }
+  }
 }
@@ -0,0 +1,245 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hierarchical timing wheel with millisecond ticks, holding any number of timers in O(1) memory
+ * per timer.
+ *
+ * <p>Level k has 64 slots of 64^k ms each. A timer goes to the level of the highest base-64 digit
+ * in which its deadline differs from the wheel's current time, into the slot named by that digit
+ * of the deadline, so scheduling and cancelling are O(1). A slot fires when the current time
+ * reaches the start of its span; its timers are then either due or move down to a lower level, at
+ * most once per level. Eleven levels cover every long, so no timer is ever out of range.
+ *
+ * <p>The wheel has no thread of its own: {@link #advance} is called with the current time by
+ * whoever needs expired timers, and jumps straight to the next occupied slot using a bitmap of the
+ * occupied slots of each level, so a long idle period costs nothing. While nothing is due,
+ * advance only reads a volatile and takes no lock.
+ */
+class TimingWheel<T> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = (Long.SIZE + SLOT_BITS - 1) / SLOT_BITS;
+
+  // Timers scheduled at or before the current time wait in this extra level until the next advance.
+  private static final int DUE = LEVELS;
+  private static final int UNSCHEDULED = -1;
+
+  /** A payload to be returned once its deadline has passed. Keep it to cancel the timer. */
+  static final class Timer<T> {
+    private final long deadline;
+    private final T payload;
+
+    private Timer<T> prev;
+    private Timer<T> next;
+    private int level = UNSCHEDULED;
+    private int slot;
+
+    Timer(long deadline, T payload) {
+      this.deadline = deadline;
+      this.payload = payload;
+    }
+
+    long getDeadline() {
+      return deadline;
+    }
+
+    T getPayload() {
+      return payload;
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Timer<T>[][] slots;
+  private final long[] occupied = new long[LEVELS];
+  private long currentTime;
+  private int size;
+
+  // A lower bound of the earliest deadline, so that advance can return at once before it.
+  private volatile long nextExpiry = Long.MAX_VALUE;
+
+  @SuppressWarnings("unchecked")
+  TimingWheel(long startTime) {
+    this.currentTime = startTime;
+    this.slots = (Timer<T>[][]) new Timer<?>[LEVELS + 1][SLOTS];
+  }
+
+  /**
+   * Schedules payload to be returned by the first advance to deadline or later.
+   *
+   * @return the timer, for cancel.
+   */
+  Timer<T> schedule(long deadline, T payload) {
+    Timer<T> timer = new Timer<>(deadline, payload);
+    schedule(timer);
+    return timer;
+  }
+
+  /** Schedules a new timer, which lets the caller publish it before it can expire. */
+  void schedule(Timer<T> timer) {
+    lock.lock();
+    try {
+      insert(timer);
+      size++;
+      nextExpiry = Math.min(nextExpiry, fireTime(timer.level, timer.deadline));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a timer from the wheel.
+   *
+   * @return true if the timer was still scheduled.
+   */
+  boolean cancel(Timer<T> timer) {
+    lock.lock();
+    try {
+      if (timer.level == UNSCHEDULED) {
+        return false;
+      }
+      unlink(timer);
+      size--;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the wheel forward to now and removes every timer whose deadline is not after now.
+   *
+   * @return the payloads of the removed timers, earliest slot first.
+   */
+  List<T> advance(long now) {
+    if (now < nextExpiry) {
+      return Collections.emptyList();
+    }
+
+    List<T> expired = new ArrayList<>();
+    lock.lock();
+    try {
+      for (;;) {
+        while (slots[DUE][0] != null) {
+          Timer<T> timer = slots[DUE][0];
+          unlink(timer);
+          size--;
+          expired.add(timer.payload);
+        }
+
+        long fire = nextFireTime();
+        if (fire > now) {
+          currentTime = Math.max(currentTime, now);
+          break;
+        }
+
+        // Fire the slot: at its start its timers are due or belong to a lower level.
+        int level = levelOf(fire);
+        int slot = digit(fire, level);
+        currentTime = fire;
+        Timer<T> timer = slots[level][slot];
+        while (timer != null) {
+          Timer<T> next = timer.next;
+          unlink(timer);
+          insert(timer);
+          timer = next;
+        }
+      }
+      nextExpiry = slots[DUE][0] != null ? currentTime : nextFireTime();
+    } finally {
+      lock.unlock();
+    }
+    return expired;
+  }
+
+  /** A lower bound of the earliest deadline; Long.MAX_VALUE if no timer is scheduled. */
+  long nextExpiry() {
+    return nextExpiry;
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The time the next occupied slot fires, or Long.MAX_VALUE. The caller holds the lock. */
+  private long nextFireTime() {
+    for (int level = 0; level < LEVELS; level++) {
+      int shift = SLOT_BITS * level;
+      long later = occupied[level] & (-2L << digit(currentTime, level)); // slots after the current one
+      if (later != 0) {
+        int slot = Long.numberOfTrailingZeros(later);
+        long base = level + 1 < LEVELS ? currentTime & (-1L << (shift + SLOT_BITS)) : 0;
+        return base | ((long) slot << shift);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /** Links a timer into the slot of its deadline. The caller holds the lock. */
+  private void insert(Timer<T> timer) {
+    if (timer.deadline <= currentTime) {
+      link(timer, DUE, 0);
+    } else {
+      int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(timer.deadline ^ currentTime)) / SLOT_BITS;
+      link(timer, level, digit(timer.deadline, level));
+    }
+  }
+
+  private void link(Timer<T> timer, int level, int slot) {
+    Timer<T> head = slots[level][slot];
+    timer.level = level;
+    timer.slot = slot;
+    timer.prev = null;
+    timer.next = head;
+    if (head != null) {
+      head.prev = timer;
+    }
+    slots[level][slot] = timer;
+    if (level < LEVELS) {
+      occupied[level] |= 1L << slot;
+    }
+  }
+
+  private void unlink(Timer<T> timer) {
+    int level = timer.level;
+    int slot = timer.slot;
+    if (timer.prev != null) {
+      timer.prev.next = timer.next;
+    } else {
+      slots[level][slot] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.prev = timer.prev;
+    }
+    if (level < LEVELS && slots[level][slot] == null) {
+      occupied[level] &= ~(1L << slot);
+    }
+    timer.prev = null;
+    timer.next = null;
+    timer.level = UNSCHEDULED;
+  }
+
+  /** The time a timer at level fires: its deadline with the digits below the level cleared. */
+  private long fireTime(int level, long deadline) {
+    return level == DUE ? currentTime : deadline & (-1L << (SLOT_BITS * level));
+  }
+
+  /** The level of the slot firing at fire: the highest digit in which fire differs from now. */
+  private int levelOf(long fire) {
+    long diff = fire ^ currentTime;
+    return diff == 0 ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+  }
+
+  private static int digit(long time, int level) {
+    return (int) (time >>> (SLOT_BITS * level)) & (SLOTS - 1);
+  }
+}
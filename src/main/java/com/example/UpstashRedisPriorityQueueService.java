@@ -1,17 +1,46 @@
 package com.example;
 
-import redis.clients.jedis.Jedis;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.resps.Tuple;
 
 public class UpstashRedisPriorityQueueService implements QueueService {
-    private final Jedis jedis; // Redis client instance
+    private static final AtomicLong SEQUENCE = new AtomicLong(); // Orders and tells apart the members this process pushes
+    private final JedisPooled jedis; // Pooled Redis client, safe to share between threads
+    private final Map<String, PayloadCompression> compressions = new ConcurrentHashMap<>(); // Compression of the bodies this service pushes, by queue URL
 
     /* 
      * Constructor to initialize the Jedis client with Upstash connection details.
-     * Establishes a secure (SSL) connection and authenticates with provided credentials.
+     * Connections are secure (SSL) and authenticated with the provided credentials.
+     * The client keeps a pool of connections, so the service can be used from many threads at once,
+     * e.g. through an AsyncQueueServiceAdapter.
      */
     public UpstashRedisPriorityQueueService(String redisHost, int redisPort, String redisAuth) {
-        this.jedis = new Jedis(redisHost, redisPort, true); // SSL connection enabled
-        this.jedis.auth(redisAuth); // Authenticate using Upstash credentials
+        this.jedis = new JedisPooled(new HostAndPort(redisHost, redisPort),
+                DefaultJedisClientConfig.builder().ssl(true).password(redisAuth).build()); // SSL connection enabled, authenticated using Upstash credentials
+    }
+
+    /* 
+     * Compresses the bodies of at least the threshold that this service pushes to a queue from now on, or stops
+     * compressing if compression is null. A compressed member is flagged with its codec's id, so compressed and
+     * plain members can be mixed in a queue and any client can pull them; only the pushing clients need the setting.
+     */
+    public void setCompression(String queueUrl, PayloadCompression compression) {
+        if (compression == null) {
+            compressions.remove(queueUrl);
+        } else {
+            compressions.put(queueUrl, compression);
+        }
     }
 
     /* 
@@ -24,6 +53,17 @@ public class UpstashRedisPriorityQueueService implements QueueService {
         push(queueUrl, message); // Call to the actual push method with a Message object
     }
 
+    /* 
+     * Pushes a binary message with default priority (0). The bytes are stored as they are, with binary-safe
+     * commands, so no Base64 or charset conversion is involved.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer messageBody) {
+        Message message = new Message(null, 0);
+        message.setBodyBuffer(messageBody.slice());
+        push(queueUrl, message);
+    }
+
     /* 
      * Main push method where we handle the message prioritization and serialization.
      * If the priority or timestamp is missing, we set defaults and compute the score.
@@ -39,7 +79,29 @@ public class UpstashRedisPriorityQueueService implements QueueService {
         }
 
         double score = computeScore(message.getPriority(), message.getTimestamp()); // Calculate score based on priority and timestamp
-        jedis.zadd(queueUrl, score, serializeMessage(message)); // Add message to Redis sorted set with score
+        jedis.zadd(key(queueUrl), score, serializeMessage(message, compressions.get(queueUrl))); // Add message to Redis sorted set with score
+    }
+
+    /* 
+     * Pushes a batch of messages with a single ZADD, so the whole batch costs one round trip.
+     * Messages without a priority get the default priority 0, as with InMemoryPriorityQueueService.
+     * The members share a score, so they are pulled in the order of their sequence numbers, and equal bodies
+     * stay separate messages; see serializeMessage.
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) {
+        long timestamp = System.currentTimeMillis();
+        PayloadCompression compression = compressions.get(queueUrl);
+        Map<byte[], Double> scoreMembers = new LinkedHashMap<>();
+        for (String messageBody : messageBodies) {
+            Message message = new Message(messageBody, 0);
+            message.setTimestamp(timestamp);
+            scoreMembers.put(serializeMessage(message, compression), computeScore(0, timestamp)); // Member -> score
+        }
+
+        if (!scoreMembers.isEmpty()) {
+            jedis.zadd(key(queueUrl), scoreMembers); // Add all messages in one command
+        }
     }
 
     /* 
@@ -49,16 +111,34 @@ public class UpstashRedisPriorityQueueService implements QueueService {
      */
     @Override
     public Message pull(String queueUrl) {
-        String serializedMessage = jedis.zrange(queueUrl, 0, 0).stream().findFirst().orElse(null); // Retrieve the highest-priority message
+        byte[] key = key(queueUrl);
+        byte[] serializedMessage = jedis.zrange(key, 0, 0).stream().findFirst().orElse(null); // Retrieve the highest-priority message
 
         if (serializedMessage != null) {
-            jedis.zrem(queueUrl, serializedMessage); // Remove the message from the queue after fetching
+            jedis.zrem(key, serializedMessage); // Remove the message from the queue after fetching
             return deserializeMessage(serializedMessage); // Deserialize the message before returning
         }
 
         return null; // If no message found, return null indicating an empty queue
     }
 
+    /* 
+     * Pulls up to maxMessages of the highest priority messages with a single atomic ZPOPMIN,
+     * instead of a ZRANGE/ZREM round trip pair per message.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        if (maxMessages <= 0) {
+            return messages;
+        }
+
+        for (Tuple tuple : jedis.zpopmin(key(queueUrl), maxMessages)) { // Lowest scores are the highest priorities
+            messages.add(deserializeMessage(tuple.getBinaryElement()));
+        }
+        return messages;
+    }
+
     /* 
      * Method to delete a message from the queue.
      * Currently, deletion is handled automatically by the pull operation.
@@ -69,6 +149,14 @@ public class UpstashRedisPriorityQueueService implements QueueService {
         // No-op for now as messages are automatically removed during the pull operation
     }
 
+    /* 
+     * Batch deletion is a no-op for the same reason as delete; overridden so no per-message calls are made.
+     */
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        // No-op for now as messages are automatically removed during the pull operation
+    }
+
     /* 
      * Compute the Redis score based on priority and timestamp.
      * Higher priority results in a lower score. Timestamps are used to break ties within the same priority.
@@ -78,29 +166,82 @@ public class UpstashRedisPriorityQueueService implements QueueService {
     }
 
     /* 
-     * Serialize the message into a single string in the format: "priority:timestamp:body"
-     * This format is simple and effective for storage in Redis.
+     * Serialize the message into a single member in the format: "priority:timestamp.sequence.node:body"
+     * The header is ASCII and the body is stored as raw bytes (UTF-8 for text bodies), which Redis keeps as they are.
+     * The sequence number, zero-padded, and the id of this process make every member unique, so equal bodies pushed in
+     * the same millisecond are not merged into one member. Members of equal score are ordered by their bytes, so the
+     * padded sequence also keeps the push order of messages whose priority and timestamp are equal, e.g. of a batch;
+     * the score's precision has no room for it.
+     * A body compressed by the queue's compression is flagged by its codec's id after the node: "...node<id>:body".
      */
-    private String serializeMessage(Message message) {
-        return message.getPriority() + ":" + message.getTimestamp() + ":" + message.getBody(); // Serialize message into a string
+    private byte[] serializeMessage(Message message, PayloadCompression compression) {
+        ByteBuffer body = message.getBodyBuffer();
+        String flag = "";
+        if (compression != null) {
+            byte[] raw = new byte[body.remaining()];
+            body.get(raw);
+            byte[] compressed = compression.compress(raw); // Null if below the threshold or not worth it
+            body = ByteBuffer.wrap(compressed != null ? compressed : raw);
+            flag = compressed != null ? String.valueOf(compression.getCodec().id()) : "";
+        }
+
+        String unique = String.format("%019d", SEQUENCE.incrementAndGet()) + "." + Long.toUnsignedString(ReceiptHandle.NODE_ID);
+        byte[] header = (message.getPriority() + ":" + message.getTimestamp() + "." + unique + flag + ":").getBytes(StandardCharsets.US_ASCII);
+        byte[] serialized = new byte[header.length + body.remaining()];
+        System.arraycopy(header, 0, serialized, 0, header.length);
+        body.get(serialized, header.length, body.remaining()); // The body's only copy on the way to Redis when not compressing
+        return serialized;
     }
 
     /* 
-     * Deserialize a message from the serialized string format "priority:timestamp:body".
-     * This is necessary to convert the stored string back into a usable Message object.
+     * Deserialize a message from the serialized format "priority:timestamp.sequence.node:body", or "priority:timestamp:body"
+     * as written by earlier versions.
+     * The body stays a view of the member's bytes; getBody() decodes it as UTF-8 and getBodyBuffer() returns it as is.
+     * A compressed body, flagged after the timestamp, is decompressed into a new array instead.
      */
-    private Message deserializeMessage(String serialized) {
-        String[] parts = serialized.split(":", 3); // Split the serialized string into components
-        int priority = Integer.parseInt(parts[0]); // Extract priority
-        long timestamp = Long.parseLong(parts[1]); // Extract timestamp
-        String body = parts[2]; // Extract body
+    private Message deserializeMessage(byte[] serialized) {
+        int first = indexOf(serialized, ':', 0); // Split the serialized member into components
+        int second = indexOf(serialized, ':', first + 1);
+        int end = second;
+        while (end > first + 1 && !Character.isDigit(serialized[end - 1])) { // Codec flag, if any, ends the timestamp field
+            end--;
+        }
+        int stampEnd = first + 1;
+        while (stampEnd < end && serialized[stampEnd] != '.') { // Sequence and node, if any, follow the timestamp
+            stampEnd++;
+        }
+        int priority = Integer.parseInt(new String(serialized, 0, first, StandardCharsets.US_ASCII)); // Extract priority
+        long timestamp = Long.parseLong(new String(serialized, first + 1, stampEnd - first - 1, StandardCharsets.US_ASCII)); // Extract timestamp
+
+        ByteBuffer body = ByteBuffer.wrap(serialized, second + 1, serialized.length - second - 1).slice(); // Extract body
+        if (end < second) {
+            byte[] compressed = new byte[body.remaining()];
+            body.get(compressed);
+            body = ByteBuffer.wrap(PayloadCompression.decompress((char) serialized[end], compressed));
+        }
 
-        Message message = new Message(body);
-        message.setPriority(priority); // Set the priority from the extracted value
+        Message message = new Message(null, priority);
+        message.setBodyBuffer(body);
         message.setTimestamp(timestamp); // Set the timestamp from the extracted value
         return message; // Return the fully reconstructed Message object
     }
 
+    private static int indexOf(byte[] bytes, char c, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Malformed queue entry"); // Not written by serializeMessage
+    }
+
+    /* 
+     * The queue URL as a binary-safe key.
+     */
+    private static byte[] key(String queueUrl) {
+        return queueUrl.getBytes(StandardCharsets.UTF_8);
+    }
+
     /* 
      * Clear all messages from the queue. This method deletes the Redis sorted set entirely.
      */
@@ -116,7 +257,7 @@ public class UpstashRedisPriorityQueueService implements QueueService {
     }
 
     /* 
-     * Close the Jedis connection. Always ensure to close the connection to avoid resource leaks.
+     * Close the Jedis connection pool. Always ensure to close the pool to avoid resource leaks.
      */
     public void close() {
         jedis.close(); // Close the Redis client connection safely
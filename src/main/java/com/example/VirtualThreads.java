@@ -0,0 +1,29 @@
+package com.example;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Executors that use virtual threads when the JVM has them (Java 21+), without requiring them. */
+final class VirtualThreads {
+  private VirtualThreads() {}
+
+  /**
+   * An executor that starts a virtual thread per task if the JVM supports it, otherwise a cached
+   * pool of daemon threads named after name.
+   */
+  static ExecutorService newPerTaskExecutor(String name) {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      ThreadFactory daemonThreads =
+          r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+          };
+      return Executors.newCachedThreadPool(daemonThreads);
+    }
+  }
+}
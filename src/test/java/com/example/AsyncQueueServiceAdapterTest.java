@@ -0,0 +1,51 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncQueueServiceAdapterTest {
+	private AsyncQueueService qs;
+	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+	
+	@Before
+	public void setup() {
+		qs = new AsyncQueueServiceAdapter(new InMemoryQueueService());
+	}
+	
+	@Test
+	public void testPushPullDelete(){
+		qs.pushAsync(queueUrl, "Good message!").join();
+		Message msg = qs.pullAsync(queueUrl).join();
+		assertEquals("Good message!", msg.getBody());
+		
+		qs.deleteAsync(queueUrl, msg.getReceiptId()).join();
+		assertNull(qs.pullAsync(queueUrl).join());
+	}
+	
+	@Test
+	public void testManyOutstandingLongPolls(){
+		List<CompletableFuture<Message>> pulls = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			pulls.add(qs.pullAsync(queueUrl, Duration.ofSeconds(10)));
+		}
+		for (int i = 0; i < 100; i++) {
+			qs.pushAsync(queueUrl, "Message " + i);
+		}
+		
+		int received = 0;
+		for (CompletableFuture<Message> pull : pulls) {
+			if (pull.join() != null) {
+				received++;
+			}
+		}
+		assertEquals(100, received);
+	}
+}
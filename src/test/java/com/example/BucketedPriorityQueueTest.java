@@ -0,0 +1,112 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BucketedPriorityQueueTest {
+	
+	private final MessageStore store = new HeapMessageStore(true, false);
+	
+	private long message(String body, int priority){
+		return store.add(body, priority, store.newArrival(System.currentTimeMillis()), null);
+	}
+	
+	private String body(long handle){
+		Message msg = new Message(null, 0);
+		store.readBody(handle, msg);
+		return msg.getBody();
+	}
+	
+	@Test
+	public void testHighestPriorityFirstFCFSWithin(){
+		BucketedPriorityQueue lanes = new BucketedPriorityQueue(store, 0, 15);
+		lanes.offer(message("low 1", 1));
+		lanes.offer(message("high 1", 15));
+		lanes.offer(message("low 2", 1));
+		lanes.offer(message("high 2", 15));
+		lanes.offer(message("lowest", 0));
+		assertEquals(5, lanes.size());
+		
+		assertEquals("high 1", body(lanes.poll()));
+		assertEquals("high 2", body(lanes.poll()));
+		assertEquals("low 1", body(lanes.poll()));
+		assertEquals("low 2", body(lanes.poll()));
+		assertEquals("lowest", body(lanes.poll()));
+		assertEquals(MessageStore.NO_HANDLE, lanes.poll());
+		assertTrue(lanes.isEmpty());
+	}
+	
+	@Test
+	public void testRedeliveredMessageAtHeadOfLane(){
+		BucketedPriorityQueue lanes = new BucketedPriorityQueue(store, -2, 2);
+		lanes.offer(message("first", -1));
+		lanes.offer(message("second", -1));
+		
+		long handle = lanes.poll();
+		store.setAttempts(handle, 1); // delivered, then its visibility timeout expired
+		lanes.offer(handle);
+		
+		assertEquals("first", body(lanes.poll()));
+		assertEquals("second", body(lanes.poll()));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testPriorityOutOfRange(){
+		new BucketedPriorityQueue(store, 0, 15).offer(message("too high", 16));
+	}
+	
+	@Test
+	public void testConcurrentProducersAndConsumers() throws InterruptedException {
+		BucketedPriorityQueue lanes = new BucketedPriorityQueue(store, 0, 63);
+		int perProducer = 10000;
+		AtomicInteger received = new AtomicInteger();
+		
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < 4; p++) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					lanes.offer(message("m" + i, i % 64));
+				}
+			}));
+		}
+		for (int c = 0; c < 4; c++) {
+			threads.add(new Thread(() -> {
+				while (received.get() < 4 * perProducer) {
+					if (lanes.poll() == MessageStore.NO_HANDLE) {
+						Thread.yield();
+					} else {
+						received.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertEquals(4 * perProducer, received.get());
+		assertEquals(MessageStore.NO_HANDLE, lanes.poll());
+	}
+
+	@Test
+	public void testAgingPromotesOldMessages(){
+		BucketedPriorityQueue lanes = new BucketedPriorityQueue(store, 0, 15, 1000);
+		long old = store.add("old", 0, store.newArrival(System.currentTimeMillis() - 5500), null); // waited five and a half levels
+		lanes.offer(old);
+		lanes.offer(message("new 5", 5));
+		lanes.offer(message("new 6", 6));
+		
+		assertEquals("new 6", body(lanes.poll()));
+		assertEquals("old", body(lanes.poll()));
+		assertEquals("new 5", body(lanes.poll()));
+	}
+}
@@ -0,0 +1,53 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FairPriorityQueueTest {
+	
+	private final MessageStore store = new HeapMessageStore(true, false);
+	
+	private long message(String body, int priority, String tenant){
+		return store.add(body, priority, store.newArrival(System.currentTimeMillis()), tenant);
+	}
+	
+	private String body(long handle){
+		Message msg = new Message(null, 0);
+		store.readBody(handle, msg);
+		return msg.getBody();
+	}
+	
+	@Test
+	public void testEmptyLevelsAndIdleTenantsAreDropped(){
+		FairPriorityQueue fair = new FairPriorityQueue(store);
+		fair.setWeight("weighted", 3);
+		for (int i = 0; i < 1000; i++) {
+			fair.offer(message("m" + i, i, "tenant" + i));
+		}
+		assertEquals(1000, fair.levelCount());
+		assertEquals(1001, fair.tenantCount());
+		
+		for (int i = 999; i >= 0; i--) {
+			assertEquals("m" + i, body(fair.poll()));
+			assertEquals(i, fair.levelCount()); // A pull only sees the level it takes from
+		}
+		assertEquals(MessageStore.NO_HANDLE, fair.poll());
+		assertEquals(1, fair.tenantCount()); // The weight is kept for when the tenant returns
+		assertEquals(3, fair.getWeight("weighted"));
+	}
+	
+	@Test
+	public void testRemoveDropsEmptyLevel(){
+		FairPriorityQueue fair = new FairPriorityQueue(store);
+		long msg = message("only", 4, "a");
+		fair.offer(msg);
+		assertTrue(fair.remove(msg));
+		assertEquals(0, fair.levelCount());
+		assertEquals(0, fair.tenantCount());
+		
+		fair.offer(message("again", 4, "a"));
+		assertEquals("again", body(fair.poll()));
+	}
+}
@@ -1,14 +1,38 @@
 package com.example;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import org.junit.Before;
+import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class FileQueueTest {
-	private FileQueueService qs = new FileQueueService();
+	@ClassRule
+	public static TemporaryFolder queueFolder = new TemporaryFolder(); // Keeps segment files out of the working tree
+	
+	private String queueDir = queueFolder.getRoot().getPath();
+	private FileQueueService qs = new FileQueueService(queueDir);
 	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
 	
 	@Before
@@ -81,7 +105,7 @@ public class FileQueueTest {
 	 */
 	@Test
 	public void testAckTimeout(){
-		FileQueueService queueService = new FileQueueService();
+		FileQueueService queueService = new FileQueueService(queueDir);
 
 		queueService.push(queueUrl, "Message A.");
 		queueService.pull(queueUrl);
@@ -90,4 +114,321 @@ public class FileQueueTest {
 		Message msg = queueService.pull(queueUrl);
 		assertTrue(msg != null && msg.getBody().equals("Message A."));
 	}
+	
+	@Test
+	public void testBatch(){
+		qs.pushBatch(queueUrl, Arrays.asList("Message A.", "Message B.", "Message C."));
+		List<Message> msgs = qs.pullBatch(queueUrl, 2);
+		
+		assertEquals(2, msgs.size());
+		assertEquals("Message A.", msgs.get(0).getBody());
+		assertEquals("Message B.", msgs.get(1).getBody());
+		
+		qs.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId()));
+		msgs = qs.pullBatch(queueUrl, 10);
+		assertEquals(1, msgs.size());
+		assertEquals("Message C.", msgs.get(0).getBody());
+	}
+	
+	@Test
+	public void testDeadLetterAfterMaxReceiveCount(){
+		String dlqUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueueDLQ";
+		FileQueueService queueService = new FileQueueService(queueDir);
+		queueService.purgeQueue(dlqUrl);
+		queueService.setRedrivePolicy(queueUrl, new RedrivePolicy(2, dlqUrl));
+		try {
+			queueService.push(queueUrl, "Poison message.");
+			assertNotNull(queueService.pull(queueUrl));
+			queueService.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 31);
+			assertNotNull(queueService.pull(queueUrl));
+			queueService.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 62);
+			assertNull(queueService.pull(queueUrl));
+			
+			queueService.setTimeSupplier(null);
+			assertEquals(1, queueService.redriveDeadLetters(dlqUrl, queueUrl));
+			Message msg = queueService.pull(queueUrl);
+			assertEquals("Poison message.", msg.getBody());
+		} finally {
+			queueService.setRedrivePolicy(queueUrl, null);
+		}
+	}
+
+	@Test
+	public void testDelayedPush(){
+		FileQueueService queueService = new FileQueueService(queueDir);
+		queueService.push(queueUrl, "Delayed message.", Duration.ofSeconds(10));
+		assertNull(queueService.pull(queueUrl));
+		
+		queueService.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 10 + 1);
+		Message msg = queueService.pull(queueUrl);
+		assertEquals("Delayed message.", msg.getBody());
+	}
+	
+	@Test
+	public void testBinaryMessage(){
+		byte[] payload = {0, 1, (byte) 0xff, '\n', ':', (byte) 0x80};
+		qs.push(queueUrl, ByteBuffer.wrap(payload));
+		qs.push(queueUrl, "Text message.");
+		
+		Message msg = qs.pull(queueUrl);
+		ByteBuffer body = msg.getBodyBuffer();
+		byte[] received = new byte[body.remaining()];
+		body.get(received);
+		assertArrayEquals(payload, received);
+		assertEquals("Text message.", qs.pull(queueUrl).getBody());
+		
+		qs.delete(queueUrl, msg.getReceiptId());
+		qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		assertEquals("Text message.", qs.pull(queueUrl).getBody()); // The binary message is gone
+	}
+	
+	@Test
+	public void testCompressedMessages(){
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 100; i++) {
+			json.append("{\"id\":").append(i).append(",\"status\":\"pending\"},");
+		}
+		String large = json.append("{}]").toString();
+		byte[] payload = large.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+		
+		qs.setCompression(queueUrl, PayloadCompression.deflate(256));
+		qs.push(queueUrl, large);
+		qs.push(queueUrl, "Below the threshold.");
+		qs.push(queueUrl, ByteBuffer.wrap(payload));
+		qs.setCompression(queueUrl, null);
+		qs.push(queueUrl, large);
+		
+		// A reader that does not compress itself still reads every record
+		FileQueueService reader = new FileQueueService(queueDir);
+		assertEquals(large, reader.pull(queueUrl).getBody());
+		assertEquals("Below the threshold.", reader.pull(queueUrl).getBody());
+		ByteBuffer body = reader.pull(queueUrl).getBodyBuffer();
+		byte[] received = new byte[body.remaining()];
+		body.get(received);
+		assertArrayEquals(payload, received);
+		assertEquals(large, reader.pull(queueUrl).getBody());
+		
+		// Redelivery keeps the flags of the records
+		reader.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		assertEquals(large, reader.pull(queueUrl).getBody());
+		assertEquals("Below the threshold.", reader.pull(queueUrl).getBody());
+		assertEquals(large, reader.pull(queueUrl).getBody());
+	}
+	
+	@Test
+	public void testSegmentsSharedBetweenProcesses(){
+		FileQueueService writer = new FileQueueService(queueDir); // Each service stands for a process with its own index
+		FileQueueService other = new FileQueueService(queueDir);
+		writer.setSegmentSize(64);
+		writer.purgeQueue(queueUrl); // Segments are preallocated, so start one of the new size
+		for (int i = 0; i < 10; i++) {
+			writer.push(queueUrl, "Message " + i + ".");
+		}
+		assertTrue(writer.getSegmentCount(queueUrl) > 1);
+		
+		for (int i = 0; i < 10; i++) {
+			Message msg = (i % 2 == 0 ? other : qs).pull(queueUrl);
+			assertEquals("Message " + i + ".", msg.getBody());
+			(i % 2 == 0 ? qs : other).delete(queueUrl, msg.getReceiptId());
+		}
+		assertNull(other.pull(queueUrl));
+		
+		writer.push(queueUrl, "Last message.");
+		assertEquals(1, writer.getSegmentCount(queueUrl)); // Segments are deleted once all their messages are
+		assertEquals("Last message.", other.pull(queueUrl).getBody());
+	}
+	
+	@Test
+	public void testSyncDurability() throws InterruptedException{
+		qs.setDurability(Durability.SYNC);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			String prefix = "Thread " + t + " message ";
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 25; i++) {
+					qs.push(queueUrl, prefix + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, qs.getPendingWrites(queueUrl)); // Every push returned once it was forced
+		
+		Set<String> bodies = new HashSet<>();
+		for (Message msg; (msg = qs.pull(queueUrl)) != null; ) {
+			bodies.add(msg.getBody());
+		}
+		assertEquals(100, bodies.size());
+		assertTrue(qs.getPendingWrites(queueUrl) > 0); // Deliveries are not waited for
+		qs.flush();
+		assertEquals(0, qs.getPendingWrites(queueUrl));
+	}
+
+	@Test
+	public void testFailedPushThrows(){
+		qs.setDurability(Durability.SYNC);
+		Thread.currentThread().interrupt(); // The push cannot take the queue's lock
+		try {
+			qs.push(queueUrl, "Never written.");
+			fail("The push did not write the message");
+		} catch (IllegalStateException e) {
+			// The caller learns that the message may be lost
+		} finally {
+			Thread.interrupted();
+		}
+		assertNull(qs.pull(queueUrl));
+	}
+
+	@Test
+	public void testCompaction(){
+		FileQueueService service = new FileQueueService(queueDir);
+		service.setSegmentSize(256); // Four messages per segment
+		service.purgeQueue(queueUrl);
+		for (int i = 0; i < 9; i++) {
+			service.push(queueUrl, "Message " + i + ".");
+		}
+		assertEquals(3, service.getSegmentCount(queueUrl));
+		
+		Message first = service.pull(queueUrl);
+		for (int i = 1; i < 5; i++) {
+			service.delete(queueUrl, service.pull(queueUrl).getReceiptId());
+		}
+		service.compact();
+		assertEquals(3, service.getSegmentCount(queueUrl)); // The first message is in flight
+		
+		service.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		service.compact();
+		assertEquals(2, service.getSegmentCount(queueUrl)); // Moved to the end, which emptied its segment
+		service.delete(queueUrl, first.getReceiptId()); // Expired, so it does not delete the moved message
+		for (int i = 5; i < 9; i++) {
+			assertEquals("Message " + i + ".", service.pull(queueUrl).getBody());
+		}
+		assertEquals(first.getBody(), service.pull(queueUrl).getBody());
+		assertNull(service.pull(queueUrl));
+	}
+	
+	@Test(timeout = 10000)
+	public void testCompactionStopsAtTornLength() throws IOException{
+		FileQueueService service = new FileQueueService(queueDir);
+		service.setSegmentSize(256); // Four messages per segment
+		service.purgeQueue(queueUrl);
+		for (int i = 0; i < 9; i++) {
+			service.push(queueUrl, "Message " + i + ".");
+		}
+		Message first = service.pull(queueUrl);
+		for (int i = 1; i < 5; i++) {
+			service.delete(queueUrl, service.pull(queueUrl).getReceiptId());
+		}
+
+		// Tear the length of the second record in the first segment, which used to loop forever
+		Path segment;
+		try (Stream<Path> files = Files.list(Paths.get(queueDir, "MyQueue"))) {
+			segment = files.filter(f -> f.toString().endsWith(".seg")).sorted().findFirst().get();
+		}
+		int at = new String(Files.readAllBytes(segment), StandardCharsets.ISO_8859_1).indexOf("Message 1.");
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(at - 32); // The start of its record header
+			file.writeInt(-32);
+		}
+
+		service.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		service.compact();
+		assertEquals(2, service.getSegmentCount(queueUrl)); // The record before the torn one was still moved
+		for (int i = 5; i < 9; i++) {
+			assertEquals("Message " + i + ".", service.pull(queueUrl).getBody());
+		}
+		assertEquals(first.getBody(), service.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testRestartFromCheckpoint(){
+		for (int i = 0; i < 5; i++) {
+			qs.push(queueUrl, "Message " + i + ".");
+		}
+		Message inFlight = qs.pull(queueUrl);
+		qs.delete(queueUrl, qs.pull(queueUrl).getReceiptId());
+		qs.checkpoint();
+		qs.push(queueUrl, "Message 5.");
+		
+		FileQueueService restarted = new FileQueueService(queueDir); // Resumes after the second message
+		for (int i = 2; i < 6; i++) {
+			Message msg = restarted.pull(queueUrl);
+			assertEquals("Message " + i + ".", msg.getBody());
+			restarted.delete(queueUrl, msg.getReceiptId());
+		}
+		assertNull(restarted.pull(queueUrl));
+		
+		restarted.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		assertEquals(inFlight.getBody(), restarted.pull(queueUrl).getBody()); // Tracked by the checkpoint
+		assertNull(restarted.pull(queueUrl));
+	}
+	
+	@Test
+	public void testCorruptRecordsAreDropped() throws IOException{
+		qs.push(queueUrl, "First message,\nof two lines.");
+		qs.push(queueUrl, "Second message.");
+		qs.push(queueUrl, "Third message.");
+		
+		// Damage the second body in the segment file, like a write torn by a crash
+		Path segment;
+		try (Stream<Path> files = Files.list(Paths.get(queueDir, "MyQueue"))) {
+			segment = files.filter(f -> f.toString().endsWith(".seg")).findFirst().get();
+		}
+		byte[] bytes = Files.readAllBytes(segment);
+		int at = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("Second");
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(at);
+			file.write('X');
+		}
+		
+		FileQueueService other = new FileQueueService(queueDir);
+		assertEquals("First message,\nof two lines.", other.pull(queueUrl).getBody());
+		assertEquals("Third message.", other.pull(queueUrl).getBody());
+		assertNull(other.pull(queueUrl));
+	}
+	
+	@Test
+	public void testMigrateTextFormat() throws IOException, InterruptedException{
+		String textQueueUrl = "https://sqs.ap-1.amazonaws.com/007/TextQueue";
+		Path dir = Paths.get(queueDir, "TextQueue");
+		Files.createDirectories(dir);
+		Files.write(dir.resolve("messages"), "0:0::Old message.\n1b:0::AQID\n".getBytes(StandardCharsets.UTF_8));
+		
+		Map<String, Integer> converted = qs.migrateTextFormat();
+		assertEquals(Integer.valueOf(2), converted.get("TextQueue"));
+		assertTrue(Files.notExists(dir.resolve("messages")));
+		assertNull(qs.migrateTextFormat().get("TextQueue"));
+		
+		assertEquals("Old message.", qs.pull(textQueueUrl).getBody());
+		ByteBuffer body = qs.pull(textQueueUrl).getBodyBuffer();
+		assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), body);
+		qs.purgeQueue(textQueueUrl);
+	}
+	
+	@Test
+	public void testConcurrentProducers() throws InterruptedException{
+		FileQueueService other = new FileQueueService(queueDir); // Shares the queue's lock with qs, like another process
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			FileQueueService service = t % 2 == 0 ? qs : other;
+			String prefix = "Thread " + t + " message ";
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 50; i++) {
+					service.push(queueUrl, prefix + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		Set<String> bodies = new HashSet<>();
+		for (Message msg; (msg = other.pull(queueUrl)) != null; ) {
+			bodies.add(msg.getBody());
+		}
+		assertEquals(200, bodies.size());
+	}
 }
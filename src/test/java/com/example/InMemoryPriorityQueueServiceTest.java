@@ -1,5 +1,17 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -98,4 +110,379 @@ public class InMemoryPriorityQueueServiceTest {
         Message msg = priorityQueueService.pull(queueUrl);
         assertNull(msg); // Should return null as the queue is empty
     }
+
+    /* 
+     * Test that a long-polling pull is woken up by a push from another thread.
+     */
+    @Test
+    public void testLongPollWakesOnPush() throws InterruptedException {
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(100); // Let the consumer park first
+            } catch (InterruptedException e) {
+                return;
+            }
+            priorityQueueService.push(queueUrl, "Late message", 3);
+        });
+        producer.start();
+
+        Message msg = priorityQueueService.pull(queueUrl, Duration.ofSeconds(5));
+        producer.join();
+
+        assertNotNull(msg);
+        assertEquals("Late message", msg.getBody()); // Should receive the pushed message
+    }
+
+    /* 
+     * Test that a long-polling pull parked before a delayed push wakes up when that message is due, not later.
+     */
+    @Test
+    public void testLongPollWakesForDelayedPush() throws InterruptedException {
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(100); // Let the consumer park first, with nothing due to wake it
+            } catch (InterruptedException e) {
+                return;
+            }
+            priorityQueueService.push(queueUrl, "Delayed message", 3, Instant.now().plusMillis(200));
+        });
+        producer.start();
+
+        long start = System.nanoTime();
+        Message msg = priorityQueueService.pull(queueUrl, Duration.ofSeconds(10));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        producer.join();
+
+        assertNotNull(msg);
+        assertEquals("Delayed message", msg.getBody());
+        assertTrue("Waited " + waited + "ms", waited >= 250 && waited < 2000); // Due at about 300ms
+    }
+
+    /* 
+     * Test that a batch pull returns messages in priority order.
+     */
+    @Test
+    public void testPullBatchInPriorityOrder() {
+        priorityQueueService.pushBatch(queueUrl, Arrays.asList("Low 1", "Low 2"), 1);
+        priorityQueueService.push(queueUrl, "High priority message", 10);
+
+        List<Message> msgs = priorityQueueService.pullBatch(queueUrl, 10);
+        assertEquals(3, msgs.size());
+        assertEquals("High priority message", msgs.get(0).getBody()); // Highest priority first
+        assertEquals(1, (int) msgs.get(2).getPriority()); // Then the lower priority messages
+    }
+
+    /* 
+     * Test that a full queue with DROP_LOWEST_PRIORITY discards the lowest priority message.
+     */
+    @Test
+    public void testDropLowestPriorityOnOverflow() {
+        priorityQueueService.setQueueCapacity(queueUrl, 2, OverflowPolicy.DROP_LOWEST_PRIORITY);
+        priorityQueueService.push(queueUrl, "Low priority message", 1);
+        priorityQueueService.push(queueUrl, "Medium priority message", 5);
+
+        // A higher priority message displaces the lowest one, a lower one is dropped itself
+        assertEquals(PushStatus.DISPLACED, priorityQueueService.tryPush(queueUrl, "High priority message", 10));
+        assertEquals(PushStatus.DROPPED, priorityQueueService.tryPush(queueUrl, "Lowest priority message", 0));
+        assertEquals(2, priorityQueueService.getQueueSize(queueUrl));
+
+        assertEquals("High priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("Medium priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertNull(priorityQueueService.pull(queueUrl)); // The low priority message was discarded
+    }
+
+    /* 
+     * Test that a pulled message carries a receipt and is gone for good once deleted.
+     */
+    @Test
+    public void testDeletePulledMessage() {
+        long[] offset = {0};
+        InMemoryPriorityQueueService queueService = new InMemoryPriorityQueueService() {
+            long now() {
+                return System.currentTimeMillis() + offset[0];
+            }
+        };
+        queueService.push(queueUrl, "Message A", 5);
+
+        Message msg = queueService.pull(queueUrl);
+        assertNotNull(msg.getReceiptId()); // Every delivery is issued a receipt
+        assertEquals(5, (int) msg.getPriority());
+        queueService.delete(queueUrl, msg.getReceiptId());
+
+        offset[0] = 1000 * 30 + 1; // Past the visibility timeout
+        assertNull(queueService.pull(queueUrl)); // Deleted messages are not redelivered
+    }
+
+    /* 
+     * Test that an expired message is redelivered with its priority, ahead of later messages of the same priority.
+     */
+    @Test
+    public void testRedeliveryKeepsPriorityAndFCFSPosition() {
+        long[] offset = {0};
+        InMemoryPriorityQueueService queueService = new InMemoryPriorityQueueService() {
+            long now() {
+                return System.currentTimeMillis() + offset[0];
+            }
+        };
+        queueService.push(queueUrl, "Message 1", 5);
+        Message first = queueService.pull(queueUrl);
+        queueService.push(queueUrl, "Message 2", 5);
+        queueService.push(queueUrl, "Low priority message", 1);
+
+        offset[0] = 1000 * 30 + 1; // Message 1 becomes visible again
+        Message msg = queueService.pull(queueUrl);
+        assertEquals("Message 1", msg.getBody()); // Back at its original place
+        assertNotEquals(first.getReceiptId(), msg.getReceiptId()); // With a receipt for the new delivery
+
+        queueService.delete(queueUrl, first.getReceiptId()); // Stale receipt, nothing deleted
+        queueService.delete(queueUrl, msg.getReceiptId());
+        assertEquals("Message 2", queueService.pull(queueUrl).getBody());
+        assertEquals("Low priority message", queueService.pull(queueUrl).getBody());
+        assertNull(queueService.pull(queueUrl));
+    }
+
+    /* 
+     * Test that many messages pushed in random priority order come out sorted, FCFS within a priority.
+     */
+    @Test
+    public void testPriorityOrderUnderLoad() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            int priority = random.nextInt(10);
+            priorityQueueService.push(queueUrl, priority + ":" + i, priority);
+        }
+
+        List<Message> msgs = new ArrayList<>();
+        Message msg;
+        while ((msg = priorityQueueService.pull(queueUrl)) != null) {
+            msgs.add(msg);
+        }
+        assertEquals(10000, msgs.size());
+
+        for (int i = 1; i < msgs.size(); i++) {
+            String[] prev = msgs.get(i - 1).getBody().split(":");
+            String[] next = msgs.get(i).getBody().split(":");
+            int priorityComparison = Integer.compare(Integer.parseInt(next[0]), Integer.parseInt(prev[0]));
+            assertTrue(priorityComparison < 0
+                    || (priorityComparison == 0 && Integer.parseInt(prev[1]) < Integer.parseInt(next[1])));
+        }
+    }
+
+    /* 
+     * Test that a queue with a declared priority range keeps priority order and FCFS, and rejects other priorities.
+     */
+    @Test
+    public void testBucketedPriorityRange() {
+        priorityQueueService.setPriorityRange(queueUrl, 0, 15);
+        priorityQueueService.push(queueUrl, "Message 1", 5);
+        priorityQueueService.push(queueUrl, "Message 2", 5);
+        priorityQueueService.push(queueUrl, "High priority message", 15);
+
+        try {
+            priorityQueueService.push(queueUrl, "Out of range message", 16);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // The message was not queued and took no room
+        }
+        assertEquals(3, priorityQueueService.getQueueSize(queueUrl));
+
+        assertEquals("High priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("Message 1", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("Message 2", priorityQueueService.pull(queueUrl).getBody());
+        assertNull(priorityQueueService.pull(queueUrl));
+    }
+
+    /* 
+     * Test that with priority aging a message that has waited long enough overtakes a newer higher priority one.
+     */
+    @Test
+    public void testPriorityAging() throws InterruptedException {
+        priorityQueueService.setPriorityAging(queueUrl, Duration.ofMillis(10)); // One level per 10ms waited
+        priorityQueueService.push(queueUrl, "Old low priority message", 0);
+        Thread.sleep(50); // Worth 5 levels
+        priorityQueueService.push(queueUrl, "New high priority message", 3);
+        priorityQueueService.push(queueUrl, "New top priority message", 1000);
+
+        assertEquals("New top priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("Old low priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("New high priority message", priorityQueueService.pull(queueUrl).getBody());
+    }
+
+    /* 
+     * Test that a delayed message is invisible until it is due, then takes its place by priority.
+     */
+    @Test
+    public void testDelayedPush() {
+        long[] offset = {0};
+        InMemoryPriorityQueueService queueService = new InMemoryPriorityQueueService() {
+            long now() {
+                return System.currentTimeMillis() + offset[0];
+            }
+        };
+        queueService.push(queueUrl, "Delayed high priority message", 10, Instant.ofEpochMilli(queueService.now()).plusSeconds(10));
+        queueService.push(queueUrl, "Low priority message", 1);
+        queueService.push(queueUrl, "Another low priority message", 1);
+
+        assertEquals("Low priority message", queueService.pull(queueUrl).getBody()); // The delayed message is not due yet
+        offset[0] = 1000 * 10 + 1;
+        assertEquals("Delayed high priority message", queueService.pull(queueUrl).getBody());
+        assertEquals("Another low priority message", queueService.pull(queueUrl).getBody());
+    }
+
+    /* 
+     * Test that the skip-list engine keeps priority order and FCFS, and loses nothing under concurrent producers and consumers.
+     */
+    @Test
+    public void testSkipListEngine() throws InterruptedException {
+        priorityQueueService.setPriorityEngine(queueUrl, PriorityEngine.SKIP_LIST);
+        priorityQueueService.push(queueUrl, "Message 1", 5);
+        priorityQueueService.push(queueUrl, "Message 2", 5);
+        priorityQueueService.push(queueUrl, "High priority message", 10);
+        assertEquals("High priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("Message 1", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals("Message 2", priorityQueueService.pull(queueUrl).getBody());
+
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger(); // An assert in a consumer thread would not fail the test
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    priorityQueueService.push(queueUrl, producer + ":" + i, i % 16);
+                }
+            }));
+        }
+        for (int c = 0; c < 4; c++) {
+            threads.add(new Thread(() -> {
+                Message msg;
+                while ((msg = priorityQueueService.pull(queueUrl, Duration.ofSeconds(1))) != null) {
+                    if (!received.add(msg.getBody())) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, duplicates.get()); // Each message is delivered once
+        assertEquals(8000, received.size());
+    }
+
+    /* 
+     * Test that a fair queue keeps priority order, and shares each priority between tenants by weight.
+     */
+    @Test
+    public void testFairTenants() {
+        priorityQueueService.setPriorityEngine(queueUrl, PriorityEngine.FAIR);
+        priorityQueueService.setTenantWeight(queueUrl, "b", 2);
+        for (int i = 0; i < 6; i++) {
+            priorityQueueService.push(queueUrl, "a" + i, 5, "a"); // A burst from tenant a comes first
+        }
+        for (int i = 0; i < 4; i++) {
+            priorityQueueService.push(queueUrl, "b" + i, 5, "b");
+        }
+        priorityQueueService.push(queueUrl, "urgent", 10, "a");
+        assertEquals(Integer.valueOf(7), priorityQueueService.getTenantBacklogs(queueUrl).get("a"));
+        assertEquals(4, priorityQueueService.getTenantBacklog(queueUrl, "b"));
+
+        /* Priority still comes first, then a and b take turns, b getting two messages per turn */
+        Message urgent = priorityQueueService.pull(queueUrl);
+        assertEquals("urgent", urgent.getBody());
+        assertEquals("a", urgent.getTenant());
+        String[] expected = {"a0", "b0", "b1", "a1", "b2", "b3", "a2", "a3", "a4", "a5"};
+        for (String body : expected) {
+            assertEquals(body, priorityQueueService.pull(queueUrl).getBody());
+        }
+        assertNull(priorityQueueService.pull(queueUrl));
+        assertEquals(0, priorityQueueService.getTenantBacklog(queueUrl, "a"));
+        assertTrue(priorityQueueService.getTenantBacklogs(queueUrl).isEmpty());
+    }
+
+    /* 
+     * Test that tenant weights are refused on a queue that does not use the fair engine.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testTenantWeightNeedsFairEngine() {
+        priorityQueueService.setPriorityEngine(queueUrl, PriorityEngine.HEAP);
+        priorityQueueService.setTenantWeight(queueUrl, "a", 2);
+    }
+
+    /* 
+     * Test that the compact fields of a message still read as before, and its receipt handle is encoded on demand.
+     */
+    @Test
+    public void testCompactMessageView() {
+        Message plain = new Message("No priority");
+        assertNull(plain.getPriority()); // Sentinels still read as null
+        assertNull(plain.getTimestamp());
+        assertNull(plain.getReceiptId());
+
+        priorityQueueService.push(queueUrl, "Message", -7);
+        Message msg = priorityQueueService.pull(queueUrl);
+        assertEquals(Integer.valueOf(-7), msg.getPriority());
+        assertNotNull(msg.getTimestamp());
+        ReceiptHandle handle = ReceiptHandle.parse(msg.getReceiptId()); // Encoded on demand from the delivery
+        assertNotNull(handle);
+        assertEquals(msg.getSequence(), handle.slot);
+        assertEquals(1, handle.generation); // The first delivery
+        priorityQueueService.delete(queueUrl, msg.getReceiptId());
+        assertEquals(0, priorityQueueService.getQueueSize(queueUrl));
+        assertNull(priorityQueueService.pull(queueUrl));
+    }
+
+    /* 
+     * Test that off-heap bodies survive a move to the dead-letter queue and back, and are freed on delete.
+     */
+    @Test
+    public void testOffHeapBodies() {
+        long[] offset = {0};
+        InMemoryPriorityQueueService queueService = new InMemoryPriorityQueueService() {
+            long now() {
+                return System.currentTimeMillis() + offset[0];
+            }
+        };
+        queueService.setOffHeapBudget(OffHeapMessageStore.SLAB_SIZE);
+        queueService.setRedrivePolicy(queueUrl, new RedrivePolicy(1, "deadLetters"));
+        queueService.push(queueUrl, "Low priority message", 1);
+        queueService.push(queueUrl, "High priority message \u00e9", 10);
+        assertTrue(queueService.getOffHeapBytesUsed() > 0);
+
+        assertEquals("High priority message \u00e9", queueService.pull(queueUrl).getBody()); // Not deleted
+        offset[0] = 1000 * 30 + 1; // Visible again, so the next pull dead-letters it
+        Message msg = queueService.pull(queueUrl);
+        assertEquals("Low priority message", msg.getBody());
+        queueService.delete(queueUrl, msg.getReceiptId());
+
+        assertEquals(1, queueService.redriveDeadLetters("deadLetters", queueUrl));
+        queueService.setRedrivePolicy(queueUrl, null);
+        msg = queueService.pull(queueUrl);
+        assertEquals("High priority message \u00e9", msg.getBody());
+        queueService.delete(queueUrl, msg.getReceiptId());
+        assertEquals(0, queueService.getOffHeapBytesUsed());
+    }
+
+    /* 
+     * Test that binary messages keep their bytes, on and off the heap, and are ordered by priority like text ones.
+     */
+    @Test
+    public void testBinaryMessages() {
+        byte[] payload = {0, 1, (byte) 0xff, 'A'};
+        priorityQueueService.push(queueUrl, ByteBuffer.wrap(payload), 1);
+        priorityQueueService.push(queueUrl, "High priority message", 10);
+        assertEquals("High priority message", priorityQueueService.pull(queueUrl).getBody());
+        assertEquals(ByteBuffer.wrap(payload), priorityQueueService.pull(queueUrl).getBodyBuffer());
+
+        InMemoryPriorityQueueService offHeapService = new InMemoryPriorityQueueService();
+        offHeapService.setOffHeapBudget(OffHeapMessageStore.SLAB_SIZE);
+        offHeapService.push(queueUrl, ByteBuffer.wrap(payload));
+        Message msg = offHeapService.pull(queueUrl);
+        assertEquals(ByteBuffer.wrap(payload), msg.getBodyBuffer());
+        offHeapService.delete(queueUrl, msg.getReceiptId());
+        assertEquals(0, offHeapService.getOffHeapBytesUsed());
+    }
 }
@@ -4,6 +4,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -101,4 +108,258 @@ public class InMemoryQueueTest {
 		Message msg = queueService.pull(queueUrl);
 		assertTrue(msg != null && msg.getBody() == "Message A.");
 	}
+	
+	@Test
+	public void testRedeliveredMessageAtHead(){
+		long[] offset = {0};
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + offset[0];
+			}
+		};
+		
+		queueService.push(queueUrl, "Message A.");
+		queueService.push(queueUrl, "Message B.");
+		Message first = queueService.pull(queueUrl);
+		offset[0] = 1000 * 30 + 1;
+		
+		Message msg = queueService.pull(queueUrl);
+		assertEquals("Message A.", msg.getBody());
+		
+		// the receipt of the expired delivery is stale and must not delete the message
+		queueService.delete(queueUrl, first.getReceiptId());
+		offset[0] = 1000 * 60 + 1;
+		msg = queueService.pull(queueUrl);
+		assertEquals("Message A.", msg.getBody());
+	}
+	
+	@Test
+	public void testLongPollWakesOnPush() throws InterruptedException {
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				return;
+			}
+			qs.push(queueUrl, "Message A.");
+		});
+		producer.start();
+		
+		Message msg = qs.pull(queueUrl, Duration.ofSeconds(5));
+		producer.join();
+		
+		assertNotNull(msg);
+		assertEquals("Message A.", msg.getBody());
+	}
+	
+	@Test
+	public void testLongPollTimeout(){
+		long start = System.nanoTime();
+		Message msg = qs.pull(queueUrl, Duration.ofMillis(100));
+		
+		assertNull(msg);
+		assertTrue(System.nanoTime() - start >= Duration.ofMillis(100).toNanos());
+	}
+	
+	@Test
+	public void testBatch(){
+		qs.pushBatch(queueUrl, Arrays.asList("Message A.", "Message B.", "Message C."));
+		List<Message> msgs = qs.pullBatch(queueUrl, 2);
+		
+		assertEquals(2, msgs.size());
+		assertEquals("Message A.", msgs.get(0).getBody());
+		assertEquals("Message B.", msgs.get(1).getBody());
+		
+		qs.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId()));
+		msgs = qs.pullBatch(queueUrl, 10);
+		assertEquals(1, msgs.size());
+		assertEquals("Message C.", msgs.get(0).getBody());
+	}
+	
+	@Test
+	public void testBoundedQueue(){
+		InMemoryQueueService queueService = new InMemoryQueueService();
+		queueService.setQueueCapacity(queueUrl, 2, OverflowPolicy.REJECT);
+		
+		assertEquals(PushStatus.ACCEPTED, queueService.tryPush(queueUrl, "Message A."));
+		queueService.push(queueUrl, "Message B.");
+		assertEquals(PushStatus.FULL, queueService.tryPush(queueUrl, "Message C."));
+		try {
+			queueService.push(queueUrl, "Message C.");
+			fail("push onto a full queue should be rejected");
+		} catch (QueueFullException e) {
+		}
+		
+		// in-flight messages still take room until they are deleted
+		Message msg = queueService.pull(queueUrl);
+		assertEquals(PushStatus.FULL, queueService.tryPush(queueUrl, "Message C."));
+		queueService.delete(queueUrl, msg.getReceiptId());
+		assertEquals(PushStatus.ACCEPTED, queueService.tryPush(queueUrl, "Message C."));
+	}
+	
+	@Test
+	public void testBlockedPushResumesAfterDelete() throws InterruptedException {
+		InMemoryQueueService queueService = new InMemoryQueueService();
+		queueService.setQueueCapacity(queueUrl, 1, OverflowPolicy.BLOCK);
+		queueService.push(queueUrl, "Message A.");
+		
+		Thread producer = new Thread(() -> queueService.push(queueUrl, "Message B."));
+		producer.start();
+		Thread.sleep(100);
+		
+		Message msg = queueService.pull(queueUrl);
+		queueService.delete(queueUrl, msg.getReceiptId());
+		producer.join(5000);
+		
+		msg = queueService.pull(queueUrl);
+		assertNotNull(msg);
+		assertEquals("Message B.", msg.getBody());
+	}
+	
+	@Test
+	public void testRingBufferEngine(){
+		InMemoryQueueService queueService = new InMemoryQueueService();
+		queueService.setQueueCapacity(queueUrl, 2, OverflowPolicy.REJECT);
+		queueService.setQueueEngine(queueUrl, QueueEngine.RING_BUFFER);
+		
+		queueService.push(queueUrl, "Message A.");
+		queueService.push(queueUrl, "Message B.");
+		assertEquals(PushStatus.FULL, queueService.tryPush(queueUrl, "Message C."));
+		
+		Message msg = queueService.pull(queueUrl);
+		assertEquals("Message A.", msg.getBody());
+		queueService.delete(queueUrl, msg.getReceiptId());
+		queueService.push(queueUrl, "Message C.");
+		
+		assertEquals("Message B.", queueService.pull(queueUrl).getBody());
+		assertEquals("Message C.", queueService.pull(queueUrl).getBody());
+		assertNull(queueService.pull(queueUrl));
+	}
+	
+	@Test
+	public void testDeleteWithForeignReceipt(){
+		InMemoryQueueService queueService = new InMemoryQueueService();
+		String otherQueueUrl = "https://sqs.ap-1.amazonaws.com/007/OtherQueue";
+		queueService.setQueueCapacity(queueUrl, 1, OverflowPolicy.REJECT);
+		queueService.push(otherQueueUrl, "Message X.");
+		queueService.push(queueUrl, "Message A.");
+		Message msg = queueService.pull(queueUrl);
+		
+		queueService.delete(queueUrl, "not-a-receipt");
+		queueService.delete(otherQueueUrl, msg.getReceiptId());
+		queueService.delete(queueUrl, msg.getReceiptId() + "0");
+		assertEquals(PushStatus.FULL, queueService.tryPush(queueUrl, "Message B."));
+		
+		queueService.delete(queueUrl, msg.getReceiptId());
+		assertEquals(PushStatus.ACCEPTED, queueService.tryPush(queueUrl, "Message B."));
+	}
+	
+	@Test
+	public void testDeadLetterAfterMaxReceiveCount(){
+		long[] offset = {0};
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + offset[0];
+			}
+		};
+		String dlqUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueueDLQ";
+		queueService.setRedrivePolicy(queueUrl, new RedrivePolicy(2, dlqUrl));
+		
+		queueService.push(queueUrl, "Poison message.");
+		assertNotNull(queueService.pull(queueUrl));
+		offset[0] = 1000 * 30 + 1;
+		assertNotNull(queueService.pull(queueUrl));
+		offset[0] = 1000 * 60 + 2;
+		assertNull(queueService.pull(queueUrl));
+		
+		offset[0] = 0;
+		Message msg = queueService.pull(dlqUrl);
+		assertEquals("Poison message.", msg.getBody());
+		queueService.delete(dlqUrl, msg.getReceiptId());
+		assertEquals(0, queueService.redriveDeadLetters(dlqUrl, queueUrl));
+		
+		queueService.push(dlqUrl, "Redriven message.");
+		assertEquals(1, queueService.redriveDeadLetters(dlqUrl, queueUrl));
+		assertEquals("Redriven message.", queueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testDelayedPush(){
+		long[] offset = {0};
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + offset[0];
+			}
+		};
+		
+		queueService.push(queueUrl, "Delayed message.", Duration.ofSeconds(10));
+		queueService.push(queueUrl, "Message A.");
+		assertEquals("Message A.", queueService.pull(queueUrl).getBody());
+		assertNull(queueService.pull(queueUrl));
+		
+		offset[0] = 1000 * 10 + 1;
+		Message msg = queueService.pull(queueUrl);
+		assertEquals("Delayed message.", msg.getBody());
+		queueService.delete(queueUrl, msg.getReceiptId());
+		assertNull(queueService.pull(queueUrl));
+	}
+	
+	@Test
+	public void testLongPollWakesForDelayedMessage(){
+		InMemoryQueueService queueService = new InMemoryQueueService();
+		queueService.push(queueUrl, "Delayed message.", Duration.ofMillis(200));
+		
+		long start = System.nanoTime();
+		Message msg = queueService.pull(queueUrl, Duration.ofSeconds(5));
+		assertEquals("Delayed message.", msg.getBody());
+		assertTrue(System.nanoTime() - start < Duration.ofSeconds(4).toNanos());
+	}
+	
+	@Test
+	public void testOffHeapBodies(){
+		InMemoryQueueService queueService = new InMemoryQueueService();
+		queueService.setOffHeapBudget(OffHeapMessageStore.SLAB_SIZE);
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 100_000) {
+			large.append("Large message \u00e9. ");
+		}
+		
+		// 100 kB bodies take 128 kB slots, so one slab holds eight of them
+		for (int i = 0; i < 8; i++) {
+			queueService.push(queueUrl, large + Integer.toString(i));
+		}
+		try {
+			queueService.push(queueUrl, large.toString());
+			fail("The off-heap budget should be used up");
+		} catch (QueueFullException e) {
+		}
+		assertEquals(PushStatus.FULL, queueService.tryPush(queueUrl, large.toString()));
+		
+		Message msg = queueService.pull(queueUrl);
+		assertEquals(large + "0", msg.getBody());
+		queueService.delete(queueUrl, msg.getReceiptId());
+		queueService.push(queueUrl, large + "8"); // Reuses the freed slot
+		
+		for (int i = 1; i <= 8; i++) {
+			msg = queueService.pull(queueUrl);
+			assertEquals(large + Integer.toString(i), msg.getBody());
+			queueService.delete(queueUrl, msg.getReceiptId());
+		}
+		assertEquals(0, queueService.getOffHeapBytesUsed());
+	}
+	
+	@Test
+	public void testBinaryMessage(){
+		ByteBuffer payload = ByteBuffer.wrap(new byte[] {0, 1, (byte) 0xff, 'A'});
+		payload.position(1); // Only the remaining bytes are pushed
+		qs.push(queueUrl, payload);
+		
+		Message msg = qs.pull(queueUrl);
+		assertEquals(ByteBuffer.wrap(new byte[] {1, (byte) 0xff, 'A'}), msg.getBodyBuffer());
+		assertTrue(msg.getBodyBuffer().isReadOnly());
+		assertEquals(1, payload.position()); // The caller's buffer is left alone
+		
+		qs.push(queueUrl, "Text message.");
+		assertEquals(ByteBuffer.wrap("Text message.".getBytes(StandardCharsets.UTF_8)), qs.pull(queueUrl).getBodyBuffer());
+	}
 }
@@ -0,0 +1,117 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OffHeapMessageStoreTest {
+	
+	private static String body(MessageStore store, long handle){
+		Message msg = new Message(null, 0);
+		store.readBody(handle, msg);
+		return msg.getBody();
+	}
+	
+	/* Test that slabs freed by messages of one size can hold messages of another size */
+	@Test
+	public void testFreedSlabsAreSharedBetweenSizes(){
+		OffHeapMessageStore store = new OffHeapMessageStore(2 * OffHeapMessageStore.SLAB_SIZE, false);
+		String small = new String(new char[100]).replace('\0', 's');
+		List<Long> handles = new ArrayList<>();
+		try {
+			for (;;) {
+				handles.add(store.add(small, 0, 0, null));
+			}
+		} catch (QueueFullException e) {
+			// Both slabs are carved into small slots
+		}
+		for (long handle : handles) {
+			store.free(handle);
+		}
+		assertEquals(0, store.getOffHeapBytesUsed());
+		
+		// With its header, a large message takes a 1 kB slot
+		String large = new String(new char[900]).replace('\0', 'l');
+		List<Long> largeHandles = new ArrayList<>();
+		for (int i = 0; i < 2 * OffHeapMessageStore.SLAB_SIZE / 1024; i++) {
+			largeHandles.add(store.add(large, 0, 0, null));
+		}
+		for (long handle : largeHandles) {
+			assertEquals(large, body(store, handle));
+		}
+		
+		// Freeing the first slab's large messages gives it to the small ones, while the other slab stays large
+		int perSlab = largeHandles.size() / 2;
+		for (int i = 0; i < perSlab; i++) {
+			store.free(largeHandles.get(i));
+		}
+		long handle = store.add(small, 0, 0, null);
+		assertEquals(small, body(store, handle));
+		assertEquals(large, body(store, largeHandles.get(perSlab)));
+		try {
+			store.add(large, 0, 0, null);
+			fail("Both slabs are in use");
+		} catch (QueueFullException e) {
+			// The large class has no free slot, and no slab is left
+		}
+		
+		store.free(handle);
+		for (int i = perSlab; i < largeHandles.size(); i++) {
+			store.free(largeHandles.get(i));
+		}
+		assertEquals(0, store.getOffHeapBytesUsed());
+	}
+	
+	/* Test that the fields of a message are kept in its slot next to the body */
+	@Test
+	public void testMessageFieldsInSlot(){
+		OffHeapMessageStore store = new OffHeapMessageStore(OffHeapMessageStore.SLAB_SIZE, false);
+		long arrival = store.newArrival(System.currentTimeMillis());
+		long first = store.add("first \u00e9", -3, arrival, "tenant");
+		long second = store.add(ByteBuffer.wrap(new byte[] {1, 2, 3}), 7, arrival + 1, null);
+		
+		store.setAttempts(first, 2);
+		store.setNext(first, second);
+		store.setPriority(second, 8);
+		assertEquals(-3, store.priority(first));
+		assertEquals(arrival, store.arrival(first));
+		assertEquals(2, store.attempts(first));
+		assertEquals("tenant", store.tenant(first));
+		assertEquals(second, store.next(first));
+		assertEquals(8, store.priority(second));
+		assertEquals(0, store.attempts(second));
+		assertNull(store.tenant(second));
+		assertEquals(MessageStore.NO_HANDLE, store.next(second));
+		
+		assertEquals("first \u00e9", body(store, first));
+		Message msg = new Message(null, 0);
+		store.readBody(second, msg);
+		assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), msg.getBodyBuffer());
+		
+		store.free(first);
+		long third = store.add("third", 0, arrival + 2, "other");
+		assertEquals("other", store.tenant(third));
+		store.free(second);
+		store.free(third);
+		assertEquals(0, store.getOffHeapBytesUsed());
+	}
+	
+	/* Test that a body too large for a slab stays on the heap, while its fields still take a slot */
+	@Test
+	public void testBodyTooLargeForSlab(){
+		OffHeapMessageStore store = new OffHeapMessageStore(OffHeapMessageStore.SLAB_SIZE, false);
+		String huge = new String(new char[OffHeapMessageStore.SLAB_SIZE]).replace('\0', 'h');
+		long handle = store.add(huge, 5, 0, null);
+		assertEquals(OffHeapMessageStore.HEADER_BYTES, store.getOffHeapBytesUsed());
+		assertEquals(5, store.priority(handle));
+		assertEquals(huge, body(store, handle));
+		store.free(handle);
+		assertEquals(0, store.getOffHeapBytesUsed());
+	}
+}
@@ -0,0 +1,95 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueConsumerTest {
+	private InMemoryQueueService qs;
+	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+	
+	@Before
+	public void setup() {
+		qs = new InMemoryQueueService();
+	}
+	
+	@Test
+	public void testHandlesAndDeletesMessages() throws InterruptedException {
+		Set<String> handled = ConcurrentHashMap.newKeySet();
+		CountDownLatch latch = new CountDownLatch(50);
+		for (int i = 0; i < 50; i++) {
+			qs.push(queueUrl, "Message " + i);
+		}
+		
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			handled.add(msg.getBody());
+			latch.countDown();
+		}, 5, 4);
+		consumer.start();
+		
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		consumer.close();
+		
+		assertEquals(50, handled.size());
+		assertEquals(PushStatus.ACCEPTED, qs.tryPush(queueUrl, "Message 50"));
+		assertEquals("Message 50", qs.pull(queueUrl).getBody());
+	}
+	
+	@Test
+	public void testFailedMessageIsNotDeleted() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		qs.setQueueCapacity(queueUrl, 1, OverflowPolicy.REJECT);
+		qs.push(queueUrl, "Poison message.");
+		
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			latch.countDown();
+			throw new IllegalStateException("cannot handle " + msg.getBody());
+		});
+		consumer.start();
+		
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		consumer.shutdown();
+		assertTrue(consumer.awaitTermination(Duration.ofSeconds(10)));
+		
+		// still in flight, so it keeps its room in the queue
+		assertEquals(PushStatus.FULL, qs.tryPush(queueUrl, "Another message."));
+		assertNull(qs.pull(queueUrl));
+	}
+	
+	@Test
+	public void testKeepsConsumingAfterBackendFailure() throws InterruptedException {
+		AtomicBoolean failed = new AtomicBoolean();
+		CountDownLatch failure = new CountDownLatch(1);
+		InMemoryQueueService flaky = new InMemoryQueueService() {
+			@Override
+			public List<Message> pullBatch(String queueUrl, int maxMessages) {
+				if (failed.compareAndSet(false, true)) {
+					failure.countDown();
+					throw new IllegalStateException("Backend unavailable.");
+				}
+				return super.pullBatch(queueUrl, maxMessages);
+			}
+		};
+		CountDownLatch latch = new CountDownLatch(5);
+		QueueConsumer consumer = new QueueConsumer(flaky, queueUrl, msg -> latch.countDown(), 5, 4);
+		consumer.start();
+		
+		assertTrue(failure.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 5; i++) {
+			flaky.push(queueUrl, "Message " + i);
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS)); // The failed pull gave its buffer slots back
+		consumer.close();
+	}
+}
@@ -0,0 +1,106 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+	
+	@Test
+	public void testFIFO(){
+		RingBufferQueue ring = new RingBufferQueue(4);
+		ring.offer(1);
+		ring.offer(2);
+		ring.offer(3);
+		
+		assertEquals(1, ring.peek());
+		assertEquals(1, ring.poll());
+		assertEquals(2, ring.poll());
+		assertEquals(3, ring.poll());
+		assertEquals(MessageStore.NO_HANDLE, ring.poll());
+	}
+	
+	@Test
+	public void testCapacityRoundedToPowerOfTwo(){
+		RingBufferQueue ring = new RingBufferQueue(5);
+		assertEquals(8, ring.capacity());
+		
+		for (int i = 1; i <= 8; i++) {
+			assertTrue(ring.offer(i));
+		}
+		assertFalse(ring.offer(9));
+		assertEquals(8, ring.size());
+		
+		// wrap around the ring a few times
+		for (int i = 9; i < 100; i++) {
+			assertEquals(i - 8, ring.poll());
+			assertTrue(ring.offer(i));
+		}
+	}
+	
+	@Test
+	public void testForEachFromHeadToTail(){
+		RingBufferQueue ring = new RingBufferQueue(4);
+		for (int i = 1; i <= 6; i++) { // wrap around once
+			ring.offer(i);
+			if (i >= 3) {
+				ring.poll();
+			}
+		}
+		List<Long> handles = new ArrayList<>();
+		ring.forEach(handles::add);
+		assertEquals(Arrays.asList(5L, 6L), handles);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoHandleRejected(){
+		new RingBufferQueue(4).offer(MessageStore.NO_HANDLE);
+	}
+	
+	@Test
+	public void testConcurrentProducersAndConsumers() throws InterruptedException {
+		RingBufferQueue ring = new RingBufferQueue(64);
+		int threads = 4;
+		long perThread = 100_000;
+		AtomicLong consumed = new AtomicLong();
+		AtomicLong sum = new AtomicLong();
+		List<Thread> workers = new ArrayList<>();
+		
+		for (int t = 0; t < threads; t++) {
+			workers.add(new Thread(() -> {
+				for (long i = 1; i <= perThread; i++) {
+					while (!ring.offer(i)) {
+						Thread.yield();
+					}
+				}
+			}));
+			workers.add(new Thread(() -> {
+				while (consumed.get() < threads * perThread) {
+					long value = ring.poll();
+					if (value == MessageStore.NO_HANDLE) {
+						Thread.yield();
+					} else {
+						sum.addAndGet(value);
+						consumed.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		assertEquals(threads * perThread * (perThread + 1) / 2, sum.get());
+		assertTrue(ring.isEmpty());
+	}
+}
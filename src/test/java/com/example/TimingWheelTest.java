@@ -0,0 +1,80 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+	
+	@Test
+	public void testExpiresAtDeadline(){
+		TimingWheel<String> wheel = new TimingWheel<>(1000);
+		wheel.schedule(1001, "a");
+		wheel.schedule(1100, "b");
+		wheel.schedule(1000 + 64 * 64 * 64 + 5, "c");
+		
+		assertTrue(wheel.advance(1000).isEmpty());
+		assertEquals(Arrays.asList("a"), wheel.advance(1099));
+		assertEquals(Arrays.asList("b"), wheel.advance(1100));
+		assertTrue(wheel.advance(1000 + 64 * 64 * 64 + 4).isEmpty());
+		assertEquals(Arrays.asList("c"), wheel.advance(Long.MAX_VALUE / 2));
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test
+	public void testCancel(){
+		TimingWheel<String> wheel = new TimingWheel<>(0);
+		TimingWheel.Timer<String> timer = wheel.schedule(10, "a");
+		wheel.schedule(10, "b");
+		
+		assertTrue(wheel.cancel(timer));
+		assertFalse(wheel.cancel(timer));
+		assertEquals(Arrays.asList("b"), wheel.advance(10));
+	}
+	
+	@Test
+	public void testPastDeadlineExpiresOnNextAdvance(){
+		TimingWheel<String> wheel = new TimingWheel<>(500);
+		wheel.schedule(100, "late");
+		assertEquals(Arrays.asList("late"), wheel.advance(500));
+	}
+	
+	@Test
+	public void testRandomDeadlines(){
+		Random random = new Random(7);
+		TimingWheel<Long> wheel = new TimingWheel<>(0);
+		List<Long> deadlines = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			long deadline = 1 + (long) (random.nextDouble() * random.nextDouble() * 100_000_000L);
+			deadlines.add(deadline);
+			wheel.schedule(deadline, deadline);
+		}
+		Collections.sort(deadlines);
+		
+		List<Long> expired = new ArrayList<>();
+		for (long now = 0; !deadlines.isEmpty(); now += 1 + random.nextInt(50000)) {
+			List<Long> batch = new ArrayList<>(wheel.advance(now));
+			Collections.sort(batch);
+			for (Long deadline : batch) {
+				assertTrue(deadline <= now);
+			}
+			expired.addAll(batch);
+			int due = 0;
+			while (due < deadlines.size() && deadlines.get(due) <= now) {
+				due++;
+			}
+			assertEquals(due, batch.size()); // nothing due is left behind
+			deadlines.subList(0, due).clear();
+		}
+		assertEquals(100000, expired.size());
+		assertEquals(0, wheel.size());
+	}
+}
@@ -1,5 +1,9 @@
 package com.example;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -69,6 +73,21 @@ public class UpstashRedisPriorityQueueServiceTest {
         assertEquals(1, queueService.getQueueSize(queueUrl)); // Expected queue size: 1
     }
 
+    /* 
+     * Test that a batch keeps messages with equal bodies apart and is pulled in push order.
+     */
+    @Test
+    public void testPushBatchWithDuplicateBodies() {
+        queueService.pushBatch(queueUrl, Arrays.asList("Same body", "Other body", "Same body", "Last body"));
+        assertEquals(4, queueService.getQueueSize(queueUrl)); // Equal bodies are separate members
+
+        List<String> bodies = new ArrayList<>();
+        for (Message msg : queueService.pullBatch(queueUrl, 10)) {
+            bodies.add(msg.getBody());
+        }
+        assertEquals(Arrays.asList("Same body", "Other body", "Same body", "Last body"), bodies); // Push order within the batch
+    }
+
     /* 
      * Tear down method to clear the queue and close the Jedis connection after each test.
      * This ensures that each test starts with a clean state and no resources are left open.